@@ -30,15 +30,49 @@
 
 RingBuffer *ring_buffer;
 RingBuffer *stats_ring_buffer;
+RingBuffer *trace_ring_buffer;
 SynthUnit *synth_unit;
 
-const int N_BUFFERS = 2;
+// The output adapts its latency to the device: it starts with the smallest
+// buffer size and queue depth, grows them when callbacks miss their deadlines
+// and shrinks them again after a stable period, see AdaptBuffering. The queue
+// depth is the number of buffers cycling through the output queue, counting
+// the one playing; all but one are queued ahead.
+const int MIN_BUFFERS = 2;
+const int MAX_BUFFERS = 4;
 const int MAX_BUFFER_SIZE = 1024;
-int buffer_size;
+int min_buffer_size;
+volatile int buffer_size;
+volatile int queue_depth;
+int sample_rate_hz;
+// The number of times AdaptBuffering has changed the output, and the number
+// of those that have been logged. The audio thread can't log them itself.
+volatile int buffering_changes;
+int buffering_changes_logged;
 
-int16_t buffer[MAX_BUFFER_SIZE * N_BUFFERS];
+int16_t buffer[MAX_BUFFER_SIZE * MAX_BUFFERS];
 int cur_buffer = 0;
 
+// Buffers to add to (1) or take from (-1) the queue in the next callback.
+int depth_change;
+// The start and buffer length of the last callback that was checked, or 0,
+// and the number of callbacks left to skip while the queue settles after a
+// change.
+int64_t last_start_ns;
+int64_t last_period_ns;
+int settling;
+// When the output last changed or missed a deadline, how long it has to go
+// without missing one before shrinking, and whether the last change was to
+// shrink.
+int64_t stable_since_ns;
+int64_t stable_ns;
+bool shrunk;
+
+const int64_t MIN_STABLE_NS = 10 * (int64_t)1000000000;
+const int64_t MAX_STABLE_NS = 640 * (int64_t)1000000000;
+// A longer gap between callbacks is a pause rather than a missed deadline.
+const int64_t MAX_GAP_NS = 1000000000;
+
 // engine interfaces
 static SLObjectItf engineObject = NULL;
 static SLEngineItf engineEngine;
@@ -52,64 +86,126 @@ static SLPlayItf bq_player_play;
 static SLAndroidSimpleBufferQueueItf bq_player_buffer_queue;
 static SLBufferQueueItf buffer_queue_itf;
 
-static double ts_to_double(const struct timespec *tp) {
-  return tp->tv_sec + 1e-9 * tp->tv_nsec;
+// One record per callback in stats_ring_buffer, read by AndroidGlue.readStats.
+// The layout must match the STATS_ offsets in AndroidGlue.java. The ring size
+// is a multiple of the record size and records are only written whole, so a
+// record is never split across the end of the ring. Traced notes (NoteTrace in
+// synth_unit.h) go to trace_ring_buffer, read by AndroidGlue.readTraces, in
+// the same way.
+struct StatsRecord {
+  int64_t start_ns;  // CLOCK_MONOTONIC, when the callback started
+  int64_t end_ns;  // when the samples were rendered
+  int32_t n_samples;
+  int32_t voices;  // voices held down or sustained, after rendering
+  int32_t input_bytes;  // midi bytes waiting in ring_buffer at the start
+  int32_t queue_depth;  // buffers cycling through the output queue
+};
+
+static int64_t ts_to_ns(const struct timespec *tp) {
+  return tp->tv_sec * (int64_t)1000000000 + tp->tv_nsec;
 }
 
-// Roll our own decimal printing to guarantee no allocs
-static size_t simple_ftoa(char *buf, double f) {
-  size_t i = 0;
-  uint32_t intpart = (uint32_t)f;
-  uint32_t fracpart = (int)((f - intpart) * 1000000);
-  do {
-    buf[i++] = '0' + intpart % 10;
-    intpart /= 10;
-  } while (intpart > 0);
-  for (size_t j = 0; j < i >> 1; j++) {
-    char tmp = buf[j];
-    buf[j] = buf[i - j - 1];
-    buf[i - j - 1] = tmp;
+// Traced notes are heard from the buffer just rendered.
+static void WriteTraces() {
+  int64_t render_ns = SynthNowNs();
+  NoteTrace *traces = synth_unit->Traces();
+  for (int i = 0; i < synth_unit->TraceCount(); ++i) {
+    traces[i].render_ns = render_ns;
+    if (sizeof(NoteTrace) <= trace_ring_buffer->WriteBytesAvailable()) {
+      trace_ring_buffer->Write((const uint8_t *)&traces[i],
+          sizeof(NoteTrace));
+    }
   }
-  buf[i++] = '.';
-  const size_t nfrac = 6;
-  for (size_t j = 0; j < nfrac; j++) {
-    buf[i + nfrac - 1 - j] = '0' + fracpart % 10;
-    fracpart /= 10;
+}
+
+// Resizes the output after each callback. A callback is due one buffer after
+// the previous one started, and misses its deadline if it finishes after the
+// buffers queued ahead of it have played out. On a miss, the queue gets one
+// buffer deeper, or once it is full, the buffer size doubles. After stable_ns
+// without a miss, the output steps back the same way: the buffer size halves,
+// or once it is back to the smallest, the queue gets one buffer shallower. A
+// miss soon after shrinking doubles stable_ns, so that a device that can't
+// keep up at the smaller size doesn't keep trying it.
+static void AdaptBuffering(int64_t start_ns, int64_t end_ns) {
+  int64_t period_ns = buffer_size * (int64_t)1000000000 / sample_rate_hz;
+  bool late = false;
+  if (settling > 0) {
+    --settling;
+  } else if (last_start_ns != 0 && start_ns - last_start_ns < MAX_GAP_NS) {
+    int64_t due_ns = last_start_ns + last_period_ns;
+    late = end_ns - due_ns > (queue_depth - 1) * last_period_ns;
+  } else {
+    stable_since_ns = start_ns;
+  }
+  last_start_ns = start_ns;
+  last_period_ns = period_ns;
+
+  bool changed = false;
+  if (late) {
+    if (shrunk && end_ns - stable_since_ns < stable_ns) {
+      stable_ns = min(stable_ns * 2, MAX_STABLE_NS);
+    }
+    if (queue_depth < MAX_BUFFERS) {
+      ++queue_depth;
+      depth_change = 1;
+      changed = true;
+    } else if (buffer_size * 2 <= MAX_BUFFER_SIZE) {
+      buffer_size *= 2;
+      changed = true;
+    }
+    shrunk = false;
+    stable_since_ns = end_ns;
+  } else if (end_ns - stable_since_ns > stable_ns) {
+    if (buffer_size > min_buffer_size) {
+      buffer_size = max(buffer_size / 2, min_buffer_size);
+      changed = true;
+    } else if (queue_depth > MIN_BUFFERS) {
+      --queue_depth;
+      depth_change = -1;
+      changed = true;
+    }
+    shrunk = changed;
+    stable_since_ns = end_ns;
+  }
+  if (changed) {
+    // Callbacks come at odd times until the buffers queued before the change
+    // have played.
+    settling = queue_depth;
+    ++buffering_changes;
   }
-  return i + nfrac;
 }
 
 extern "C" void BqPlayerCallback(SLAndroidSimpleBufferQueueItf queueItf,
   void *data) {
+  StatsRecord record;
   struct timespec tp;
   clock_gettime(CLOCK_MONOTONIC, &tp);
-  double start_time = ts_to_double(&tp);
-  int16_t *buf_ptr = buffer + buffer_size * cur_buffer;
-  synth_unit->GetSamples(buffer_size, buf_ptr);
-  char buf[64];
-  //uint8_t *mem = new uint8_t[1024];
-  //delete[] mem;
-  //sprintf(buf, "%.6f", start_time);
+  record.start_ns = ts_to_ns(&tp);
+  record.input_bytes = ring_buffer->BytesAvailable();
+  // Normally one buffer replaces the one that finished playing, but the
+  // queue grows or shrinks by rendering one more or none.
+  int n_buffers = 1 + depth_change;
+  depth_change = 0;
+  int n_samples = buffer_size;
+  for (int i = 0; i < n_buffers; ++i) {
+    int16_t *buf_ptr = buffer + MAX_BUFFER_SIZE * cur_buffer;
+    synth_unit->GetSamples(n_samples, buf_ptr);
+    WriteTraces();
+    SLresult result = (*queueItf)->Enqueue(bq_player_buffer_queue,
+      buf_ptr, n_samples * 2);
+    assert(SL_RESULT_SUCCESS == result);
+    cur_buffer = (cur_buffer + 1) % MAX_BUFFERS;
+  }
   clock_gettime(CLOCK_MONOTONIC, &tp);
-  double end_time = ts_to_double(&tp);
-  SLresult result = (*queueItf)->Enqueue(bq_player_buffer_queue,
-    buf_ptr, buffer_size * 2);
-  assert(SL_RESULT_SUCCESS == result);
-  cur_buffer = (cur_buffer + 1) % N_BUFFERS;
-  size_t i = 0;
-  buf[i++] = 't';
-  buf[i++] = 's';
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, start_time);
-  buf[i++] = ' ';
-  i += simple_ftoa(buf + i, end_time);
-  buf[i++] = '\n';
-  buf[i] = 0;
-  if (i <= stats_ring_buffer->WriteBytesAvailable()) {
-    stats_ring_buffer->Write((const uint8_t *)buf, i);
+  record.end_ns = ts_to_ns(&tp);
+  record.n_samples = n_samples;
+  record.voices = synth_unit->VoiceCount();
+  record.queue_depth = queue_depth;
+  AdaptBuffering(record.start_ns, record.end_ns);
+  // If nobody is reading stats, the ring fills up and records are dropped.
+  if (sizeof(record) <= stats_ring_buffer->WriteBytesAvailable()) {
+    stats_ring_buffer->Write((const uint8_t *)&record, sizeof(record));
   }
-  // Could potentially defer writing indication of overrun, but probably
-  // not worth it.
 }
 
 void CreateEngine() {
@@ -134,10 +230,10 @@ SLresult result;
 
 extern "C" JNIEXPORT void JNICALL
 Java_com_manichord_synthesizer_android_AndroidGlue_start(JNIEnv *env,
-    jobject thiz, jint sample_rate, jint buf_size) {
+    jobject thiz, jint sample_rate, jint buf_size, jobject input) {
   CreateEngine();
   SLDataLocator_AndroidSimpleBufferQueue loc_bufq =
-    {SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, N_BUFFERS};
+    {SL_DATALOCATOR_ANDROIDSIMPLEBUFFERQUEUE, MAX_BUFFERS};
   SLDataFormat_PCM format_pcm = {
     SL_DATAFORMAT_PCM, 1, sample_rate * 1000,
     SL_PCMSAMPLEFORMAT_FIXED_16, SL_PCMSAMPLEFORMAT_FIXED_16,
@@ -167,12 +263,27 @@ Java_com_manichord_synthesizer_android_AndroidGlue_start(JNIEnv *env,
         &BqPlayerCallback, NULL);
   assert(SL_RESULT_SUCCESS == result);
 
-  buffer_size = buf_size;
+  min_buffer_size = min(buf_size, MAX_BUFFER_SIZE);
+  buffer_size = min_buffer_size;
+  queue_depth = MIN_BUFFERS;
+  sample_rate_hz = sample_rate;
+  depth_change = 0;
+  last_start_ns = 0;
+  settling = 0;
+  stable_since_ns = 0;
+  stable_ns = MIN_STABLE_NS;
+  shrunk = false;
   SynthUnit::Init(sample_rate);
-  ring_buffer = new RingBuffer();
+  // Java writes midi straight into this memory, see RingBufferWriter.java.
+  uint8_t *input_memory = (uint8_t *)env->GetDirectBufferAddress(input);
+  assert(input_memory != NULL &&
+      env->GetDirectBufferCapacity(input) == RingBuffer::kSharedSize &&
+      ((intptr_t)input_memory & 3) == 0);
+  ring_buffer = new RingBuffer(input_memory);
   stats_ring_buffer = new RingBuffer();
+  trace_ring_buffer = new RingBuffer();
   synth_unit = new SynthUnit(ring_buffer);
-  for (int i = 0; i < N_BUFFERS - 1; ++i) {
+  for (int i = 0; i < queue_depth - 1; ++i) {
     BqPlayerCallback(bq_player_buffer_queue, NULL);
   }
 
@@ -204,20 +315,43 @@ Java_com_manichord_synthesizer_android_AndroidGlue_shutdown(JNIEnv *env,
   ring_buffer = NULL;
   delete stats_ring_buffer;
   stats_ring_buffer = NULL;
+  delete trace_ring_buffer;
+  trace_ring_buffer = NULL;
   delete synth_unit;
   synth_unit = NULL;
 }
 
-extern "C" JNIEXPORT void JNICALL
-Java_com_manichord_synthesizer_android_AndroidGlue_sendMidi(JNIEnv *env,
-    jobject thiz, jbyteArray jb) {
-  uint8_t *data = (uint8_t *)env->GetByteArrayElements(jb, NULL);
-  if (data != NULL) {
-    ring_buffer->Write(data, env->GetArrayLength(jb));
-    env->ReleaseByteArrayElements(jb, (jbyte *)data, JNI_ABORT);
+extern "C" JNIEXPORT jlong JNICALL
+Java_com_manichord_synthesizer_android_AndroidGlue_getFrameTime(JNIEnv *env,
+    jobject thiz) {
+  return synth_unit->FrameTime();
+}
+
+// Logs the output size if AdaptBuffering has changed it since the last call.
+// This runs on the Java threads that read the output size, never on the audio
+// thread.
+static void LogBufferingChanges() {
+  int changes = buffering_changes;
+  if (changes != buffering_changes_logged) {
+    buffering_changes_logged = changes;
+    LOGI("output now %d buffers of %d samples", queue_depth, buffer_size);
   }
 }
 
+extern "C" JNIEXPORT jint JNICALL
+Java_com_manichord_synthesizer_android_AndroidGlue_getBufferSize(JNIEnv *env,
+    jobject thiz) {
+  LogBufferingChanges();
+  return buffer_size;
+}
+
+extern "C" JNIEXPORT jint JNICALL
+Java_com_manichord_synthesizer_android_AndroidGlue_getQueueDepth(JNIEnv *env,
+    jobject thiz) {
+  LogBufferingChanges();
+  return queue_depth;
+}
+
 extern "C" JNIEXPORT void JNICALL
 Java_com_manichord_synthesizer_android_AndroidGlue_setPlayState(JNIEnv *env,
     jobject thiz, jboolean isPlaying) {
@@ -226,28 +360,49 @@ Java_com_manichord_synthesizer_android_AndroidGlue_setPlayState(JNIEnv *env,
   assert(SL_RESULT_SUCCESS == result);
 }
 
+// Copies the synth's CpuStats, as CPU_STATS_SIZE longs in the order of the
+// CpuStats fields, into stats.
+extern "C" JNIEXPORT void JNICALL
+Java_com_manichord_synthesizer_android_AndroidGlue_getCpuStats(
+    JNIEnv *env, jobject thiz, jlongArray stats) {
+  const int size = sizeof(CpuStats) / sizeof(int64_t);
+  if (env->GetArrayLength(stats) < size) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+      "AndroidGlue.getCpuStats needs room for CPU_STATS_SIZE longs");
+    return;
+  }
+  CpuStats cpu_stats;
+  synth_unit->GetCpuStats(&cpu_stats);
+  env->SetLongArrayRegion(stats, 0, size, (const jlong *)&cpu_stats);
+}
+
+// Copies as many whole records of record_size bytes as are available in ring
+// and fit into a direct buffer, and returns how many were copied. The ring
+// size must be a multiple of record_size.
+static jint ReadRecords(JNIEnv *env, RingBuffer *ring, jobject jbuf,
+    int record_size) {
+  uint8_t *buf = (uint8_t *)env->GetDirectBufferAddress(jbuf);
+  if (buf == NULL) {
+    env->ThrowNew(env->FindClass("java/lang/IllegalArgumentException"),
+      "AndroidGlue needs a direct buffer to read records into");
+    return 0;
+  }
+  int n_records = min(ring->BytesAvailable() / record_size,
+      (int)(env->GetDirectBufferCapacity(jbuf) / record_size));
+  if (n_records > 0) {
+    ring->Read(n_records * record_size, buf);
+  }
+  return n_records;
+}
+
 extern "C" JNIEXPORT jint JNICALL
-Java_com_levien_synthesizer_android_AndroidGlue_statsBytesAvailable(
-    JNIEnv *env, jobject thiz) {
-  return stats_ring_buffer->BytesAvailable();
+Java_com_manichord_synthesizer_android_AndroidGlue_readStats(
+    JNIEnv *env, jobject thiz, jobject jbuf) {
+  return ReadRecords(env, stats_ring_buffer, jbuf, sizeof(StatsRecord));
 }
 
 extern "C" JNIEXPORT jint JNICALL
-Java_com_levien_synthesizer_android_AndroidGlue_readStatsBytes(
-    JNIEnv *env, jobject thiz, jbyteArray jb, jint off, jint len) {
-  int bytes_available = stats_ring_buffer->BytesAvailable();
-  int n = min(bytes_available, len);
-  if (n) {
-    size_t uoff = off;
-    size_t ulen = len;
-    if (off >= 0 && len >= 0 && uoff + ulen <= env->GetArrayLength(jb)) {
-      uint8_t *buf = (uint8_t *)env->GetByteArrayElements(jb, NULL);
-      stats_ring_buffer->Read(n, buf + uoff);
-      env->ReleaseByteArrayElements(jb, (jbyte *)buf, 0);
-    } else {
-      env->ThrowNew(env->FindClass("java/lang/ArrayIndexOutOfBoundsException"),
-        "out of bounds in AndroidGlue.readStatsBytes");
-    }
-  }
-  return n;
-}
\ No newline at end of file
+Java_com_manichord_synthesizer_android_AndroidGlue_readTraces(
+    JNIEnv *env, jobject thiz, jobject jbuf) {
+  return ReadRecords(env, trace_ring_buffer, jbuf, sizeof(NoteTrace));
+}
@@ -20,6 +20,7 @@
         'sin.cc',
         'synth_unit.cc',
         'test_ringbuffer.cc',
+        'test_synth_unit.cc',
       ],
       'include_dirs': ['.'],
     },
@@ -180,7 +180,7 @@ void Dx7Note::init(const char patch[156], int midinote, int velocity) {
 }
 
 void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
-  const Controllers *ctrls) {
+  const Controllers *ctrls, int64_t *core_ns) {
   int32_t pitchmod = pitchenv_.getsample();
   uint32_t pmd = pitchmoddepth_ * lfo_delay;  // Q32
   // TODO: add modulation sources (mod wheel, etc)
@@ -199,7 +199,22 @@ void Dx7Note::compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
     params_[op].freq = Freqlut::lookup(basepitch_[op] + pitchmod);
     params_[op].gain[1] = gain;
   }
-  core_.compute(buf, params_, algorithm_, fb_buf_, fb_shift_);
+  if (core_ns == NULL) {
+    core_.compute(buf, params_, algorithm_, fb_buf_, fb_shift_);
+  } else {
+    int64_t start = SynthNowNs();
+    core_.compute(buf, params_, algorithm_, fb_buf_, fb_shift_);
+    *core_ns += SynthNowNs() - start;
+  }
+}
+
+bool Dx7Note::isPlaying() const {
+  for (int op = 0; op < 6; op++) {
+    if (env_[op].isActive()) {
+      return true;
+    }
+  }
+  return false;
 }
 
 void Dx7Note::keyup() {
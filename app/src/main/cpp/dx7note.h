@@ -33,17 +33,17 @@ class Dx7Note {
 
   // Note: this _adds_ to the buffer. Interesting question whether it's
   // worth it...
+  // If core_ns isn't NULL, the time spent in FmCore is added to it.
   void compute(int32_t *buf, int32_t lfo_val, int32_t lfo_delay,
-    const Controllers *ctrls);
+    const Controllers *ctrls, int64_t *core_ns = NULL);
 
   void keyup();
 
-  // TODO: parameter changes
+  // Whether the note still makes any sound: false once the envelopes of all
+  // its operators have finished their release.
+  bool isPlaying() const;
 
-  // TODO: some way of indicating end-of-note. Maybe should be a return
-  // value from the compute method? (Having a count return from keyup
-  // is also tempting, but if there's a dynamic parameter change after
-  // keyup, that won't work.
+  // TODO: parameter changes
 
  private:
   FmCore core_;
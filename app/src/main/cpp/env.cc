@@ -63,6 +63,12 @@ void Env::keydown(bool d) {
   }
 }
 
+bool Env::isActive() const {
+  // 16 << 16 is the floor advance() clamps to, which a release level of 0
+  // always reaches.
+  return ix_ < 4 || targetlevel_ > (16 << 16);
+}
+
 void Env::setparam(int param, int value) {
   if (param < 4) {
     rates_[param] = value;
@@ -38,6 +38,11 @@ class Env {
   int32_t getsample();
 
   void keydown(bool down);
+
+  // Whether the envelope is still changing or settled at an audible level.
+  // Once the release has finished at the silent level, it is done.
+  bool isActive() const;
+
   void setparam(int param, int value);
   static int scaleoutlevel(int outlevel);
  private:
@@ -257,6 +257,7 @@ void mkdx7note(double sample_rate) {
 }
 
 void test_ringbuffer();
+void test_synth_unit();
 
 void test_exp2() {
   for (int32_t i = -16 << 24; i < 6 << 24; i += 123) {
@@ -291,6 +292,7 @@ int main(int argc, char **argv) {
   //mkdx7note(sample_rate);
   mksaw(sample_rate);
   //test_ringbuffer();
+  test_synth_unit();
   test_exp2();
   return 0;
 }
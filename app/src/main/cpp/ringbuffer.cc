@@ -21,20 +21,40 @@
 #include "ringbuffer.h"
 
 RingBuffer::RingBuffer() {
-  rd_ix_ = 0;
-  wr_ix_ = 0;
+  Init(new uint8_t[kSharedSize]);
+  owns_memory_ = true;
+  *rd_ix_ = 0;
+  *wr_ix_ = 0;
+}
+
+RingBuffer::RingBuffer(uint8_t *memory) {
+  Init(memory);
+  owns_memory_ = false;
+}
+
+RingBuffer::~RingBuffer() {
+  if (owns_memory_) {
+    delete[] memory_;
+  }
+}
+
+void RingBuffer::Init(uint8_t *memory) {
+  memory_ = memory;
+  rd_ix_ = (volatile unsigned int *)memory;
+  wr_ix_ = (volatile unsigned int *)(memory + kWriteIndexOffset);
+  buf_ = memory + kDataOffset;
 }
 
 int RingBuffer::BytesAvailable() {
-  return (wr_ix_ - rd_ix_) & (kBufSize - 1);
+  return (*wr_ix_ - *rd_ix_) & (kBufSize - 1);
 }
 
 int RingBuffer::WriteBytesAvailable() {
-  return (rd_ix_ - wr_ix_ - 1) & (kBufSize - 1);
+  return (*rd_ix_ - *wr_ix_ - 1) & (kBufSize - 1);
 }
 
 int RingBuffer::Read(int size, uint8_t *bytes) {
-  int rd_ix = rd_ix_;
+  int rd_ix = *rd_ix_;
   SynthMemoryBarrier();  // read barrier, make sure data is committed before ix
   unsigned int fragment_size = min((unsigned int)size, kBufSize - rd_ix);
   memcpy(bytes, buf_ + rd_ix, fragment_size);
@@ -42,15 +62,15 @@ int RingBuffer::Read(int size, uint8_t *bytes) {
     memcpy(bytes + fragment_size, buf_, size - fragment_size);
   }
   SynthMemoryBarrier();  // full barrier, make sure read commits before updating
-  rd_ix_ = (rd_ix + size) & (kBufSize - 1);
+  *rd_ix_ = (rd_ix + size) & (kBufSize - 1);
   return size;
 }
 
 void RingBuffer::Write(const uint8_t *bytes, int size) {
   unsigned int remaining = (unsigned int)size;
   while (remaining > 0) {
-    int rd_ix = rd_ix_;
-    int wr_ix = wr_ix_;
+    int rd_ix = *rd_ix_;
+    int wr_ix = *wr_ix_;
     unsigned int space_available = (rd_ix - wr_ix - 1) & (kBufSize - 1);
     if (space_available == 0) {
       struct timespec sleepTime;
@@ -65,7 +85,7 @@ void RingBuffer::Write(const uint8_t *bytes, int size) {
         memcpy(buf_, bytes + fragment_size, wr_size - fragment_size);
       }
       SynthMemoryBarrier();  // write barrier, make sure data commits
-      wr_ix_ = (wr_ix + wr_size) & (kBufSize - 1);
+      *wr_ix_ = (wr_ix + wr_size) & (kBufSize - 1);
       remaining -= wr_size;
       bytes += wr_size;
     }
@@ -19,8 +19,23 @@
 
 class RingBuffer {
  public:
+  // The layout of a ring buffer in shared memory: the read index at offset
+  // 0, the write index at kWriteIndexOffset, both native-endian 32-bit ints
+  // on separate cache lines, then kBufSize bytes of data at kDataOffset.
+  static const unsigned int kBufSize = 65536;
+  static const int kWriteIndexOffset = 64;
+  static const int kDataOffset = 128;
+  static const int kSharedSize = kDataOffset + kBufSize;
+
   RingBuffer();
 
+  // Creates a ring buffer in memory laid out as above, which the writer may
+  // share, for example a direct ByteBuffer written from Java. The memory must
+  // be kSharedSize bytes, zeroed, and outlive the RingBuffer.
+  explicit RingBuffer(uint8_t *memory);
+
+  ~RingBuffer();
+
   // Returns number of bytes available for reading.
   int BytesAvailable();
 
@@ -35,10 +50,13 @@ class RingBuffer {
   // block until space is available.
   void Write(const uint8_t *bytes, int size);
  private:
-  static const unsigned int kBufSize = 65536;
-  uint8_t buf_[kBufSize];
-  volatile unsigned int rd_ix_;
-  volatile unsigned int wr_ix_;
+  void Init(uint8_t *memory);
+
+  uint8_t *memory_;
+  bool owns_memory_;
+  uint8_t *buf_;
+  volatile unsigned int *rd_ix_;
+  volatile unsigned int *wr_ix_;
 };
 
 #endif  // SYNTH_RINGBUFFER_H_
@@ -20,6 +20,7 @@
 // This may not be present on MSVC.
 // See http://stackoverflow.com/questions/126279/c99-stdint-h-header-and-ms-visual-studio
 #include <stdint.h>
+#include <time.h>
 
 // TODO(raph): move from fixed to variable N
 #define LG_N 6
@@ -51,6 +52,15 @@ inline static T max(const T& a, const T& b) {
     return a > b ? a : b;
 }
 
+// CLOCK_MONOTONIC in nanoseconds, which is System.nanoTime() on Android. It
+// doesn't enter the kernel there, so it is cheap enough to time each stage of
+// rendering a block.
+static inline int64_t SynthNowNs() {
+  struct timespec tp;
+  clock_gettime(CLOCK_MONOTONIC, &tp);
+  return tp.tv_sec * (int64_t)1000000000 + tp.tv_nsec;
+}
+
 #ifdef __aarch64__
 #define HAVE_NEON_INTRINSICS
 #include <arm_neon.h>
@@ -62,8 +62,12 @@ SynthUnit::SynthUnit(RingBuffer *ring_buffer) {
     active_note_[note].keydown = false;
     active_note_[note].sustained = false;
     active_note_[note].live = false;
+    active_note_[note].delay = 0;
+    active_note_[note].carry_size = 0;
+    active_note_[note].trace_id = 0;
   }
   input_buffer_index_ = 0;
+  timed_buffer_index_ = 0;
   memcpy(patch_data_, epiano, sizeof(epiano));
   ProgramChange(0);
   current_note_ = 0;
@@ -73,6 +77,40 @@ SynthUnit::SynthUnit(RingBuffer *ring_buffer) {
   controllers_.values_[kControllerPitch] = 0x2000;
   sustain_ = false;
   extra_buf_size_ = 0;
+  frame_time_ = 0;
+  n_traces_ = 0;
+  memset(&cpu_stats_, 0, sizeof(cpu_stats_));
+  cpu_stats_seq_ = 0;
+}
+
+int64_t SynthUnit::FrameTime() {
+  // A 64-bit value can be read in two halves on 32-bit ARM, so read it until
+  // two reads agree.
+  int64_t frame_time;
+  do {
+    frame_time = frame_time_;
+  } while (frame_time != frame_time_);
+  return frame_time;
+}
+
+void SynthUnit::GetCpuStats(CpuStats *stats) {
+  int seq;
+  do {
+    seq = cpu_stats_seq_;
+    SynthMemoryBarrier();
+    *stats = cpu_stats_;
+    SynthMemoryBarrier();
+  } while ((seq & 1) != 0 || seq != cpu_stats_seq_);
+}
+
+int SynthUnit::VoiceCount() {
+  int count = 0;
+  for (int note = 0; note < max_active_notes; ++note) {
+    if (active_note_[note].keydown || active_note_[note].sustained) {
+      ++count;
+    }
+  }
+  return count;
 }
 
 // Transfer as many bytes as possible from ring buffer to input buffer.
@@ -120,7 +158,37 @@ void SynthUnit::SetController(int controller, int value) {
   controllers_.values_[controller] = value;
 }
 
-int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
+// Returns the length of the wire midi message at the start of buf, or 0 if it
+// isn't complete yet. A data byte without a status counts as a message of its
+// own, since running status isn't used on the synth's input.
+static int MidiMessageLength(const uint8_t *buf, int buf_size) {
+  uint8_t cmd = buf[0];
+  int length;
+  if (cmd < 0x80) {
+    length = 1;
+  } else if (cmd < 0xf0) {
+    uint8_t cmd_type = cmd & 0xf0;
+    length = (cmd_type == 0xc0 || cmd_type == 0xd0) ? 2 : 3;
+  } else if (cmd == 0xf0) {
+    for (int i = 1; i < buf_size; ++i) {
+      if (buf[i] == 0xf7) {
+        return i + 1;
+      }
+    }
+    return 0;
+  } else if (cmd == 0xf1 || cmd == 0xf3) {
+    length = 2;
+  } else if (cmd == 0xf2) {
+    length = 3;
+  } else {
+    length = 1;
+  }
+  return length <= buf_size ? length : 0;
+}
+
+
+int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size,
+    int block_offset, int32_t trace_id) {
   uint8_t cmd = buf[0];
   uint8_t cmd_type = cmd & 0xf0;
   //LOGI("got %d midi: %02x %02x %02x", buf_size, buf[0], buf[1], buf[2]);
@@ -151,6 +219,11 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
         active_note_[note_ix].keydown = true;
         active_note_[note_ix].sustained = sustain_;
         active_note_[note_ix].live = true;
+        active_note_[note_ix].delay = block_offset;
+        active_note_[note_ix].trace_id = trace_id;
+        if (trace_id != 0) {
+          active_note_[note_ix].trace_parse_ns = SynthNowNs();
+        }
         active_note_[note_ix].dx7_note->init(unpacked_patch_, buf[1], buf[2]);
       }
       return 3;
@@ -196,10 +269,13 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
       return 2;
     }
     return 0;
-  } else if (cmd == 0xe0) {
-    // pitch bend
-    SetController(kControllerPitch, buf[1] | (buf[2] << 7));
-    return 3;
+  } else if (cmd_type == 0xe0) {
+    if (buf_size >= 3) {
+      // pitch bend
+      SetController(kControllerPitch, buf[1] | (buf[2] << 7));
+      return 3;
+    }
+    return 0;
   } else if (cmd == 0xf0) {
     // sysex
     if (buf_size >= 6 && buf[1] == 0x43 && buf[2] == 0x00 && buf[3] == 0x09 &&
@@ -215,27 +291,109 @@ int SynthUnit::ProcessMidiMessage(const uint8_t *buf, int buf_size) {
     }
   }
 
-  // TODO: more robust handling
+  // Skip messages the synth doesn't handle, and only them, so that the
+  // messages queued behind them still get through.
+  int length = MidiMessageLength(buf, buf_size);
 #ifdef VERBOSE
   std::cout << "Unknown message " << std::hex << (int)cmd <<
-    ", skipping " << std::dec << buf_size << " bytes" << std::endl;
+    ", skipping " << std::dec << length << " bytes" << std::endl;
 #endif
-  return buf_size;
+  return length;
 }
 
-void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
-  TransferInput();
+// Returns the frame time of a message stamped with kMidiTimestamp.
+static int64_t ReadTimestamp(const uint8_t *buf) {
+  int64_t frame_time = 0;
+  for (int j = kMidiTimestampSize - 1; j > 0; --j) {
+    frame_time = (frame_time << 8) | buf[j];
+  }
+  return frame_time;
+}
+
+// Messages are handled in the order they were sent, except that a message
+// stamped for a later block is moved to the timed buffer to wait for it, so
+// that it doesn't hold up the messages sent after it.
+void SynthUnit::ProcessInput() {
+  int64_t block_start = frame_time_;
+
+  // The timed messages that have come due, keeping the rest in order.
+  size_t timed_kept = 0;
+  for (size_t timed_offset = 0; timed_offset < timed_buffer_index_; ) {
+    uint8_t *buf = timed_buffer_ + timed_offset;
+    int size = kMidiTimestampSize + MidiMessageLength(buf + kMidiTimestampSize,
+        timed_buffer_index_ - timed_offset - kMidiTimestampSize);
+    int64_t frame_time = ReadTimestamp(buf);
+    if (frame_time < block_start + N) {
+      ProcessMidiMessage(buf + kMidiTimestampSize, size - kMidiTimestampSize,
+          (int)max(frame_time - block_start, (int64_t)0), 0);
+    } else {
+      memmove(timed_buffer_ + timed_kept, buf, size);
+      timed_kept += size;
+    }
+    timed_offset += size;
+  }
+  timed_buffer_index_ = timed_kept;
+
   size_t input_offset;
   for (input_offset = 0; input_offset < input_buffer_index_; ) {
     int bytes_available = input_buffer_index_ - input_offset;
-    int bytes_consumed = ProcessMidiMessage(input_buffer_ + input_offset,
-        bytes_available);
+    const uint8_t *buf = input_buffer_ + input_offset;
+    int block_offset = 0;
+    int32_t trace_id = 0;
+    // The size of the timestamp or trace id before the message.
+    int timestamp_size = 0;
+    if (buf[0] == kMidiTimestamp) {
+      if (bytes_available <= kMidiTimestampSize) {
+        break;
+      }
+      int64_t frame_time = ReadTimestamp(buf);
+      if (frame_time >= block_start + N) {
+        int size = MidiMessageLength(buf + kMidiTimestampSize,
+            bytes_available - kMidiTimestampSize);
+        if (size != 0) {
+          size += kMidiTimestampSize;
+          if (timed_buffer_index_ + size > sizeof(timed_buffer_)) {
+            // The timed buffer is full, so the input waits until some of it
+            // comes due.
+            break;
+          }
+          memcpy(timed_buffer_ + timed_buffer_index_, buf, size);
+          timed_buffer_index_ += size;
+          input_offset += size;
+          continue;
+        }
+      }
+      block_offset = (int)max(frame_time - block_start, (int64_t)0);
+      timestamp_size = kMidiTimestampSize;
+    } else if (buf[0] == kMidiTraceId) {
+      if (bytes_available <= kMidiTraceIdSize) {
+        break;
+      }
+      trace_id = buf[1] | (buf[2] << 8) | (buf[3] << 16) | (buf[4] << 24);
+      timestamp_size = kMidiTraceIdSize;
+    }
+    int bytes_consumed = ProcessMidiMessage(buf + timestamp_size,
+        bytes_available - timestamp_size, block_offset, trace_id);
     if (bytes_consumed == 0) {
+      if (input_offset == 0 && input_buffer_index_ == sizeof(input_buffer_)) {
+        // A message that doesn't fit in the input buffer (an unterminated
+        // SysEx) can never complete, so drop it rather than stall.
+        input_offset = input_buffer_index_;
+      }
       break;
     }
-    input_offset += bytes_consumed;
+    input_offset += timestamp_size + bytes_consumed;
   }
   ConsumeInput(input_offset);
+}
+
+void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
+  // The time spent in each stage, added to cpu_stats_ at the end.
+  CpuStats cpu;
+  memset(&cpu, 0, sizeof(cpu));
+  int64_t t = SynthNowNs();
+  TransferInput();
+  n_traces_ = 0;
 
   int i;
   for (i = 0; i < n_samples && i < extra_buf_size_; i++) {
@@ -246,26 +404,84 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
       extra_buf_[j] = extra_buf_[j + n_samples];
     }
     extra_buf_size_ -= n_samples;
+    cpu.midi_ns = SynthNowNs() - t;
+    PublishCpuStats(cpu);
     return;
   }
 
   for (; i < n_samples; i += N) {
+    ProcessInput();
+    int64_t voice_start = SynthNowNs();
+    cpu.midi_ns += voice_start - t;
     AlignedBuf<int32_t, N> audiobuf;
     AlignedBuf<int32_t, N> audiobuf2;
+    AlignedBuf<int32_t, N> notebuf;
     for (int j = 0; j < N; ++j) {
       audiobuf.get()[j] = 0;
     }
     int32_t lfovalue = lfo_.getsample();
     int32_t lfodelay = lfo_.getdelay();
+    int live_voices = 0;
     for (int note = 0; note < max_active_notes; ++note) {
-      if (active_note_[note].live) {
-        active_note_[note].dx7_note->compute(audiobuf.get(), lfovalue, lfodelay,
-          &controllers_);
+      ActiveNote *active_note = &active_note_[note];
+      int32_t *out = audiobuf.get();
+      // The delayed output owed from the last block is played even if the
+      // note has finished since.
+      for (int j = 0; j < active_note->carry_size; ++j) {
+        out[j] += active_note->carry[j];
+      }
+      active_note->carry_size = 0;
+      if (active_note->live) {
+        ++live_voices;
+        int delay = active_note->delay;
+        if (delay == 0) {
+          active_note->dx7_note->compute(out, lfovalue, lfodelay,
+            &controllers_, &cpu.fm_core_ns);
+        } else {
+          // Render the block shifted right by delay samples, keeping the
+          // samples that spill past the end for the next block.
+          int32_t *note_out = notebuf.get();
+          for (int j = 0; j < N; ++j) {
+            note_out[j] = 0;
+          }
+          active_note->dx7_note->compute(note_out, lfovalue, lfodelay,
+            &controllers_, &cpu.fm_core_ns);
+          for (int j = 0; j < N - delay; ++j) {
+            out[j + delay] += note_out[j];
+          }
+          for (int j = 0; j < delay; ++j) {
+            active_note->carry[j] = note_out[N - delay + j];
+          }
+        }
+        active_note->carry_size = delay;
+        if (!active_note->keydown && !active_note->sustained &&
+            !active_note->dx7_note->isPlaying()) {
+          // The release has finished, so the voice is silent until it is
+          // reused.
+          active_note->live = false;
+        }
+        if (active_note->trace_id != 0) {
+          if (n_traces_ < kMaxTraces) {
+            NoteTrace *trace = &traces_[n_traces_++];
+            trace->id = active_note->trace_id;
+            trace->midi_note = active_note->midi_note;
+            trace->parse_ns = active_note->trace_parse_ns;
+            trace->render_ns = 0;
+            trace->frame_time = frame_time_;
+          }
+          active_note->trace_id = 0;
+        }
       }
     }
+    int64_t filter_start = SynthNowNs();
+    cpu.voice_ns += filter_start - voice_start;
+    cpu.voice_blocks += live_voices;
+    cpu.live_voices = live_voices;
     const int32_t *bufs[] = { audiobuf.get() };
     int32_t *bufs2[] = { audiobuf2.get() };
     filter_.process(bufs, filter_control_, filter_control_, bufs2);
+    int64_t convert_start = SynthNowNs();
+    cpu.filter_ns += convert_start - filter_start;
     int jmax = n_samples - i;
     for (int j = 0; j < N; ++j) {
       int32_t val = audiobuf2.get()[j] >> 4;
@@ -278,6 +494,29 @@ void SynthUnit::GetSamples(int n_samples, int16_t *buffer) {
         extra_buf_[j - jmax] = clip_val;
       }
     }
+    frame_time_ += N;
+    t = SynthNowNs();
+    cpu.convert_ns += t - convert_start;
+    ++cpu.blocks;
   }
   extra_buf_size_ = i - n_samples;
+  PublishCpuStats(cpu);
+}
+
+void SynthUnit::PublishCpuStats(const CpuStats &cpu) {
+  ++cpu_stats_seq_;
+  SynthMemoryBarrier();
+  cpu_stats_.midi_ns += cpu.midi_ns;
+  // Time in FmCore was counted as part of the voices.
+  cpu_stats_.voice_ns += cpu.voice_ns - cpu.fm_core_ns;
+  cpu_stats_.fm_core_ns += cpu.fm_core_ns;
+  cpu_stats_.filter_ns += cpu.filter_ns;
+  cpu_stats_.convert_ns += cpu.convert_ns;
+  cpu_stats_.blocks += cpu.blocks;
+  cpu_stats_.voice_blocks += cpu.voice_blocks;
+  if (cpu.blocks > 0) {
+    cpu_stats_.live_voices = cpu.live_voices;
+  }
+  SynthMemoryBarrier();
+  ++cpu_stats_seq_;
 }
@@ -20,12 +20,65 @@
 #include "ringbuffer.h"
 #include "resofilter.h"
 
+// A midi message may be preceded by a timestamp: kMidiTimestamp followed by
+// the frame time at which the message takes effect, as a little-endian
+// 64-bit count of samples rendered since the SynthUnit was created. Messages
+// without a timestamp take effect at the start of the next block rendered,
+// even if they were sent after a message stamped for a later block.
+//
+// Only note-ons start on the exact sample: the voice is rendered delayed by
+// its offset within the block. Every other stamped message (note-off,
+// controller, pitch bend, program change) takes effect at the start of the
+// N-sample block that contains its frame time, up to N - 1 samples early.
+const uint8_t kMidiTimestamp = 0xf9;
+const int kMidiTimestampSize = 9;
+
+// A note-on may instead be preceded by kMidiTraceId and a little-endian 32-bit
+// id, asking for the note to be traced: the time it is parsed and the block
+// it is first rendered in are reported through Traces().
+const uint8_t kMidiTraceId = 0xfd;
+const int kMidiTraceIdSize = 5;
+
+// One traced note-on. The layout must match the TRACE_ offsets in
+// AndroidGlue.java. Times are CLOCK_MONOTONIC nanoseconds.
+struct NoteTrace {
+  int32_t id;
+  int32_t midi_note;
+  int64_t parse_ns;  // when ProcessMidiMessage handled it
+  int64_t render_ns;  // filled in by the caller of GetSamples
+  int64_t frame_time;  // the block it was first rendered in
+};
+
+// The time spent in each stage of GetSamples, in CLOCK_MONOTONIC nanoseconds,
+// and the work done, all counted since the SynthUnit was created. The layout
+// must match the CPU_ indices in AndroidGlue.java.
+struct CpuStats {
+  int64_t midi_ns;  // reading and handling midi input
+  int64_t voice_ns;  // voices apart from FmCore: envelopes, pitch, mixing
+  int64_t fm_core_ns;  // FmCore::compute
+  int64_t filter_ns;  // ResoFilter
+  int64_t convert_ns;  // clipping and converting to 16 bits
+  int64_t blocks;  // blocks of N samples rendered
+  int64_t voice_blocks;  // voices rendered, summed over all blocks
+  int64_t live_voices;  // voices still sounding in the last block
+};
+
 struct ActiveNote {
   int midi_note;
   bool keydown;
   bool sustained;
+  // Whether the note is rendered: from note-on until its release finishes.
   bool live;
   Dx7Note *dx7_note;
+  // Samples the note's output is delayed by, so that it starts on the exact
+  // sample within a block, and the delayed output still owed to the next
+  // block.
+  int delay;
+  int carry_size;
+  int32_t carry[N];
+  // The id of a traced note-on not yet rendered, or 0, and when it was parsed.
+  int32_t trace_id;
+  int64_t trace_parse_ns;
 };
 
 class SynthUnit {
@@ -35,11 +88,31 @@ class SynthUnit {
   explicit SynthUnit(RingBuffer *ring_buffer);
 
   void GetSamples(int n_samples, int16_t *buffer);
+
+  // The number of voices held down or sustained.
+  int VoiceCount();
+
+  // The frame time of the next block to be rendered. Safe to call from any
+  // thread.
+  int64_t FrameTime();
+
+  // The traced note-ons first rendered by the last call to GetSamples.
+  int TraceCount() const { return n_traces_; }
+  NoteTrace *Traces() { return traces_; }
+
+  // Copies the CPU stats. Safe to call from any thread.
+  void GetCpuStats(CpuStats *stats);
  private:
   void TransferInput();
 
+  // Handle the messages that take effect within the next block.
+  void ProcessInput();
+
   void ConsumeInput(int n_input_bytes);
 
+  // Adds the CPU stats of one GetSamples call to cpu_stats_.
+  void PublishCpuStats(const CpuStats &cpu);
+
   // Choose a note for a new key-down, returns note number, or -1 if
   // none available.
   int AllocateNote();
@@ -49,7 +122,11 @@ class SynthUnit {
 
   void SetController(int controller, int value);
 
-  int ProcessMidiMessage(const uint8_t *buf, int buf_size);
+  // block_offset is the sample within the next block at which the message
+  // takes effect. Only note-ons use it; see kMidiTimestamp. trace_id is the id
+  // of a traced note-on, or 0.
+  int ProcessMidiMessage(const uint8_t *buf, int buf_size, int block_offset,
+      int32_t trace_id);
 
   RingBuffer *ring_buffer_;
   static const int max_active_notes = 16;
@@ -58,6 +135,12 @@ class SynthUnit {
   uint8_t input_buffer_[8192];
   size_t input_buffer_index_;
 
+  // Messages stamped for a later block than the one being rendered, with their
+  // timestamps, in the order they were sent. When it is full, the input waits
+  // until some of them come due.
+  uint8_t timed_buffer_[8192];
+  size_t timed_buffer_index_;
+
   uint8_t patch_data_[4096];
   int current_patch_;
 
@@ -76,4 +159,18 @@ class SynthUnit {
   // Extra buffering for when GetSamples wants a buffer not a multiple of N
   int16_t extra_buf_[N];
   int extra_buf_size_;
+
+  // Samples rendered so far, which is the frame time of the next block.
+  volatile int64_t frame_time_;
+
+  // Traced note-ons rendered in this GetSamples call. More than fit in one
+  // call are not reported.
+  static const int kMaxTraces = 16;
+  NoteTrace traces_[kMaxTraces];
+  int n_traces_;
+
+  // Published at the end of each GetSamples call. The sequence number is odd
+  // while they are being updated.
+  CpuStats cpu_stats_;
+  volatile int cpu_stats_seq_;
 };
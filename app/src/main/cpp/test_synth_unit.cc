@@ -0,0 +1,208 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include <iostream>
+
+#include "synth.h"
+#include "controllers.h"
+#include "dx7note.h"
+#include "patch.h"
+#include "ringbuffer.h"
+#include "synth_unit.h"
+
+#define kNumSamples 48000
+
+using namespace ::std;
+
+static int16_t expected_buf[kNumSamples];
+static int16_t actual_buf[kNumSamples];
+
+// A message, stamped with a frame time unless frame_time is negative.
+struct TimedMessage {
+  int64_t frame_time;
+  uint8_t data[3];
+};
+
+static void write_message(RingBuffer *rb, const TimedMessage &message) {
+  if (message.frame_time >= 0) {
+    uint8_t timestamp[kMidiTimestampSize];
+    timestamp[0] = kMidiTimestamp;
+    for (int i = 1; i < kMidiTimestampSize; ++i) {
+      timestamp[i] = (message.frame_time >> (8 * (i - 1))) & 0xff;
+    }
+    rb->Write(timestamp, kMidiTimestampSize);
+  }
+  rb->Write(message.data, 3);
+}
+
+// Sends the messages before rendering, then renders kNumSamples samples in
+// callbacks of callback_size samples, which must divide kNumSamples.
+static void render(const TimedMessage *messages, int n_messages,
+    int callback_size, int16_t *buf) {
+  RingBuffer rb;
+  SynthUnit synth_unit(&rb);
+  for (int i = 0; i < n_messages; ++i) {
+    write_message(&rb, messages[i]);
+  }
+  for (int i = 0; i < kNumSamples; i += callback_size) {
+    synth_unit.GetSamples(callback_size, buf + i);
+  }
+}
+
+// Checks that actual is expected delayed by shift samples.
+static void check_shifted(const char *name, int shift) {
+  int errors = 0;
+  for (int i = 0; i < kNumSamples; ++i) {
+    int expected = i >= shift ? expected_buf[i - shift] : 0;
+    if (actual_buf[i] != expected && errors++ < 4) {
+      cout << name << ": error at " << i << " expected " << expected <<
+        " got " << actual_buf[i] << endl;
+    }
+  }
+}
+
+// Returns the number of voices still sounding after sending the messages and
+// rendering kNumSamples samples.
+static int live_voices_after(const TimedMessage *messages, int n_messages) {
+  RingBuffer rb;
+  SynthUnit synth_unit(&rb);
+  for (int i = 0; i < n_messages; ++i) {
+    write_message(&rb, messages[i]);
+  }
+  for (int i = 0; i < kNumSamples; i += N) {
+    synth_unit.GetSamples(N, actual_buf + i);
+  }
+  CpuStats stats;
+  synth_unit.GetCpuStats(&stats);
+  return (int)stats.live_voices;
+}
+
+// The patch SynthUnit starts with, from synth_unit.cc.
+extern char epiano[];
+
+// Checks that a note adds nothing more to the output once isPlaying() is
+// false, so SynthUnit can stop rendering it without changing the output.
+static void check_silent_after_release() {
+  char patch[156];
+  UnpackPatch(epiano, patch);
+  Controllers controllers;
+  controllers.values_[kControllerPitch] = 0x2000;
+  int32_t buf[N];
+  for (int midi_note = 24; midi_note < 108; midi_note += 7) {
+    Dx7Note note;
+    note.init(patch, midi_note, 100);
+    int blocks = 0;
+    while (blocks < 100000 && (blocks < 100 || note.isPlaying())) {
+      if (blocks == 100) {
+        note.keyup();
+      }
+      note.compute(buf, 0, 0, &controllers);
+      ++blocks;
+    }
+    for (int block = 0; block < 2000; ++block) {
+      for (int j = 0; j < N; ++j) {
+        buf[j] = 0;
+      }
+      note.compute(buf, 0, 0, &controllers);
+      for (int j = 0; j < N; ++j) {
+        if (buf[j] != 0) {
+          cout << "note " << midi_note << ": " << buf[j] << " at " << j <<
+            " of block " << block << " after the release" << endl;
+          return;
+        }
+      }
+    }
+  }
+}
+
+void test_synth_unit() {
+  SynthUnit::Init(44100);
+
+  // A note-on stamped partway through a block starts on that sample, and the
+  // samples pushed past the end of the block are carried into the next one.
+  // Callbacks of 48 samples don't line up with the 64-sample blocks.
+  TimedMessage on_at_0[] = { { 0, { 0x90, 60, 100 } } };
+  render(on_at_0, 1, 48, expected_buf);
+  TimedMessage on_at_100[] = { { 100, { 0x90, 60, 100 } } };
+  render(on_at_100, 1, 48, actual_buf);
+  check_shifted("offset 100", 100);
+
+  // The longest carry, N - 1 samples.
+  TimedMessage on_at_127[] = { { 2 * N - 1, { 0x90, 60, 100 } } };
+  render(on_at_127, 1, N, actual_buf);
+  check_shifted("offset 127", 2 * N - 1);
+
+  // A note-on stamped at the start of a block sounds like an unstamped one.
+  TimedMessage on_now[] = { { -1, { 0x90, 60, 100 } } };
+  render(on_now, 1, N, expected_buf);
+  render(on_at_0, 1, N, actual_buf);
+  check_shifted("block start", 0);
+
+  // An unstamped note sent after one stamped far ahead isn't held up by it.
+  TimedMessage stamped_first[] = {
+    { 4000, { 0x90, 72, 100 } },
+    { -1, { 0x90, 60, 100 } },
+  };
+  TimedMessage unstamped_first[] = {
+    { -1, { 0x90, 60, 100 } },
+    { 4000, { 0x90, 72, 100 } },
+  };
+  render(unstamped_first, 2, N, expected_buf);
+  render(stamped_first, 2, N, actual_buf);
+  check_shifted("held stamp", 0);
+
+  // Stamps sent out of order each take effect at their own frame.
+  TimedMessage in_order[] = {
+    { 1000, { 0x90, 60, 100 } },
+    { 2000, { 0x80, 60, 0 } },
+    { 20000, { 0x90, 72, 100 } },
+  };
+  TimedMessage out_of_order[] = {
+    { 20000, { 0x90, 72, 100 } },
+    { 1000, { 0x90, 60, 100 } },
+    { 2000, { 0x80, 60, 0 } },
+  };
+  render(in_order, 3, N, expected_buf);
+  render(out_of_order, 3, N, actual_buf);
+  check_shifted("out of order", 0);
+
+  // A stamped note sounds the same as an unstamped one, shifted, through the
+  // end of its release. The note starting at 100 is first rendered in the
+  // block at 64, so its note-off is one block later, to come after as many of
+  // its own blocks.
+  TimedMessage released_at_0[] = {
+    { 0, { 0x90, 60, 100 } },
+    { 2000, { 0x80, 60, 0 } },
+  };
+  TimedMessage released_at_100[] = {
+    { 100, { 0x90, 60, 100 } },
+    { 2000 + N, { 0x80, 60, 0 } },
+  };
+  render(released_at_0, 2, N, expected_buf);
+  render(released_at_100, 2, N, actual_buf);
+  check_shifted("released", 100);
+
+  // A voice counts as live until its release has finished.
+  TimedMessage held[] = { { -1, { 0x90, 60, 100 } } };
+  int held_voices = live_voices_after(held, 1);
+  int released_voices = live_voices_after(released_at_100, 2);
+  if (held_voices != 1 || released_voices != 0) {
+    cout << "live voices: " << held_voices << " held, " << released_voices <<
+      " released" << endl;
+  }
+
+  check_silent_after_release();
+}
@@ -1,6 +1,15 @@
 package com.manichord.synthesizer.android;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.manichord.synthesizer.android.metrics.Counter;
+import com.manichord.synthesizer.android.metrics.Gauge;
+import com.manichord.synthesizer.android.metrics.MetricsRegistry;
 import com.manichord.synthesizer.core.midi.MessageOutputProcessor;
+import com.manichord.synthesizer.core.midi.NoteTracer;
+import com.manichord.synthesizer.core.midi.PackedMessage;
 
 /**
  * JNI container for connecting to C++ synth engine. The actual implementation is in the cpp/src
@@ -12,9 +21,19 @@ import com.manichord.synthesizer.core.midi.MessageOutputProcessor;
 public class AndroidGlue extends MessageOutputProcessor {
 
   /**
-   * Create and initialize the engine. This should be done once per process.
+   * Create and initialize the engine. This should be done once per process. The output starts
+   * with buffers of buf_size samples, two of them in the queue, and grows them when callbacks
+   * miss their deadlines, then shrinks them back once it has kept up for a while, so it settles
+   * at the smallest latency the device can play without glitches. buf_size should be the smallest
+   * buffer worth trying.
    */
-  public native void start(int sample_rate, int buf_size);
+  public void start(int sample_rate, int buf_size) {
+    sampleRate_ = sample_rate;
+    input_ = new RingBufferWriter();
+    start(sample_rate, buf_size, input_.getBuffer());
+  }
+
+  private native void start(int sample_rate, int buf_size, ByteBuffer input);
 
   /**
    *  Shut down the OpenSL ES engine and audio synthesizer.
@@ -28,24 +47,557 @@ public class AndroidGlue extends MessageOutputProcessor {
    */
   public native void setPlayState(boolean isPlaying);
 
+  /**
+   * What to do with a message when the synth's input buffer is full.
+   */
+  public enum OverflowPolicy {
+    /**
+     * For continuous controllers, pitch bend and aftertouch: hold the message back and send it
+     * with the next message once there is room, dropping any older held message of the same
+     * stream. Other messages are rejected.
+     */
+    DROP_OLDEST,
+    /** Drop the message. */
+    REJECT,
+    /** Wait for room, up to the time set with setBlockTimeout(), then drop the message. */
+    BLOCK
+  }
+
+  /**
+   * Sets what to do when the input buffer is full, for one type of message.
+   *
+   * @param status The status byte of the message type: 0x80 to 0xE0 for channel messages, or
+   *     0xF0 for SysEx and anything else that isn't a channel message.
+   * @param policy The policy.
+   */
+  public void setOverflowPolicy(int status, OverflowPolicy policy) {
+    if (status < 0x80 || status > 0xFF) {
+      throw new IllegalArgumentException("Invalid status " + status + ".");
+    }
+    policies_[Math.min(status, 0xF0) >> 4] = policy;
+  }
+
+  /**
+   * Sets the longest time that sending a message with the BLOCK policy waits for room.
+   *
+   * @param timeoutNanos The timeout, in nanoseconds.
+   */
+  public void setBlockTimeout(long timeoutNanos) {
+    blockTimeoutNanos_ = timeoutNanos;
+  }
+
+  /**
+   * @return The number of bytes of MIDI dropped because the input buffer was full.
+   */
+  public long getDroppedBytes() {
+    return droppedBytes_.get();
+  }
+
+  /**
+   * @return The number of bytes of MIDI that had to wait for room in the input buffer, whether
+   *     or not they were sent in the end.
+   */
+  public long getDelayedBytes() {
+    return delayedBytes_.get();
+  }
+
   /**
    * Send a MIDI message. Currently supported messages include DX7 sysex data, and note-on/note-off,
-   * but it will expand.
+   * but it will expand. Realtime messages and meta events are dropped, since they mean nothing to
+   * the synth.
+   *
+   * The message is written straight into a ring buffer shared with the synth, which picks it up
+   * on its next audio callback, so no JNI call is made. Any thread may send messages, and each
+   * one reaches the synth whole. If the buffer is full, the message is handled according to the
+   * OverflowPolicy for its type, and this never waits longer than the block timeout.
    * 
-   * @param midiData The midi data to send.
+   * @param midiData The midi data to send, as on the wire.
+   * @return Whether the message was sent or held back to be sent, rather than dropped.
+   */
+  public boolean sendMidi(byte[] midiData) {
+    if (!isForSynth(midiData)) {
+      return false;
+    }
+    int packed = packChannelMessage(midiData);
+    if (packed != 0) {
+      return sendPacked(packed);
+    }
+    countMessage();
+    return send(null, 0, midiData, midiData.length, policies_[0xF]);
+  }
+
+  /**
+   * Send a MIDI message that takes effect at a given frame, so that a note starts on the exact
+   * sample rather than at the start of the next audio buffer. A frame time that has already
+   * passed takes effect as soon as possible. A timed message can't be held back, so DROP_OLDEST
+   * rejects it.
+   *
+   * Messages stamped for a later buffer wait in the synth without holding up the messages sent
+   * after them. The synth holds up to 8 KB of them, several hundred notes; beyond that all input
+   * waits until some come due, so don't schedule further ahead than needed.
+   *
+   * @param midiData The midi data to send, as on the wire.
+   * @param frameTime When the message takes effect, in the frame time of getFrameTime().
+   * @return Whether the message was sent, rather than dropped.
    */
-  public native void sendMidi(byte[] midiData);
+  public boolean sendMidi(byte[] midiData, long frameTime) {
+    if (!isForSynth(midiData)) {
+      return false;
+    }
+    byte[] timestamp = scratch_.get();
+    timestamp[0] = TIMESTAMP_PREFIX;
+    for (int i = 1; i < TIMESTAMP_SIZE; i++) {
+      timestamp[i] = (byte)(frameTime >> (8 * (i - 1)));
+    }
+    int status = midiData.length > 0 ? midiData[0] & 0xFF : 0;
+    countMessage();
+    return send(timestamp, TIMESTAMP_SIZE, midiData, midiData.length,
+                policies_[status >= 0x80 ? status >> 4 : 0xF]);
+  }
+
+  // Realtime messages and meta events (0xFF) aren't passed to the synth: it ignores them, and the
+  // status bytes it uses as in-band prefixes, such as TIMESTAMP_PREFIX, are realtime ones.
+  private static boolean isForSynth(byte[] midiData) {
+    return midiData.length > 0 && (midiData[0] & 0xFF) < 0xF8;
+  }
+
+  /**
+   * @return The frame time of the next block the synth will render: the number of samples it has
+   *     rendered since start(). Adding the output latency in frames gives the frame time of a
+   *     message that should sound now.
+   */
+  public native long getFrameTime();
+
+  /**
+   * A change of the output size is logged by the next call to this or getQueueDepth(), rather
+   * than by the audio thread that makes it.
+   *
+   * @return The number of samples in each output buffer now.
+   */
+  public native int getBufferSize();
+
+  /**
+   * @return The number of buffers cycling through the output queue now, counting the one playing.
+   *     The output latency is about this many buffers.
+   */
+  public native int getQueueDepth();
 
   public void onMessage(byte[] midiData) {
     sendMidi(midiData);
   }
 
+  @Override
+  public void onPackedMessage(int packed, long timestampNanos) {
+    sendPacked(packed);
+  }
+
+  /**
+   * Sends a packed channel message according to the policy for its type.
+   */
+  private boolean sendPacked(int packed) {
+    countMessage();
+    OverflowPolicy policy = policies_[(packed >> 4) & 0xF];
+    byte[] message = scratch_.get();
+    int length = PackedMessage.unpack(packed, message, 0);
+    NoteTracer tracer = NoteTracer.getInstance();
+    if (tracer != null && (packed & 0xF0) == 0x90 && PackedMessage.getData2(packed) != 0) {
+      int id = tracer.take(NoteTracer.HOP_SEND, PackedMessage.getData1(packed));
+      if (id != 0) {
+        // Pass the trace on to the synth.
+        message[0] = TRACE_ID_PREFIX;
+        for (int i = 1; i < TRACE_ID_SIZE; i++) {
+          message[i] = (byte)(id >> (8 * (i - 1)));
+        }
+        length = TRACE_ID_SIZE + PackedMessage.unpack(packed, message, TRACE_ID_SIZE);
+      }
+    }
+    if (coalesceThread_ != null && LatestValueTable.isContinuous(packed)) {
+      boolean wake;
+      synchronized (held_) {
+        wake = held_.isEmpty();
+        int replaced = held_.put(packed);
+        if (replaced != 0) {
+          coalescedMessages_.incrementAndGet();
+        }
+        heldCount_ = held_.size();
+      }
+      if (wake) {
+        Thread thread = coalesceThread_;
+        if (thread != null) {
+          LockSupport.unpark(thread);
+        }
+      }
+      return true;
+    }
+    if (policy == OverflowPolicy.DROP_OLDEST && LatestValueTable.isContinuous(packed)) {
+      if (heldCount_ != 0) {
+        sendHeld();
+      }
+      // While older values are held back, this one has to wait behind them.
+      if (heldCount_ == 0 && input_.tryWrite(null, 0, message, 0, length) != 0) {
+        return true;
+      }
+      synchronized (held_) {
+        int replaced = held_.put(packed);
+        if (replaced != 0) {
+          droppedBytes_.addAndGet(PackedMessage.getLength(replaced));
+        }
+        heldCount_ = held_.size();
+      }
+      delayedBytes_.addAndGet(length);
+      return true;
+    }
+    return send(null, 0, message, length, policy);
+  }
+
+  /**
+   * Publish the state of the synth's input and the synth itself to a metrics registry:
+   * <ul>
+   * <li>glue.messages, a counter of the messages sent.
+   * <li>glue.input_bytes and glue.input_high_water, the bytes waiting in the input buffer now and
+   *     at most.
+   * <li>glue.dropped_bytes, glue.delayed_bytes and glue.coalesced_messages, as returned by the
+   *     getters of the same names.
+   * <li>synth.voices, the number of voices still sounding: held, sustained or releasing.
+   * <li>synth.buffer_size and synth.queue_depth, the size of the output now, as returned by
+   *     getBufferSize() and getQueueDepth().
+   * </ul>
+   *
+   * @param metrics The registry.
+   */
+  public void registerMetrics(MetricsRegistry metrics) {
+    metrics.gauge("glue.input_bytes", new Gauge() {
+      public long read() {
+        RingBufferWriter input = input_;
+        return input == null ? 0 : input.bytesUsed();
+      }
+    });
+    metrics.gauge("glue.input_high_water", new Gauge() {
+      public long read() {
+        RingBufferWriter input = input_;
+        return input == null ? 0 : input.getHighWater();
+      }
+    });
+    metrics.gauge("glue.dropped_bytes", new Gauge() {
+      public long read() {
+        return getDroppedBytes();
+      }
+    });
+    metrics.gauge("glue.delayed_bytes", new Gauge() {
+      public long read() {
+        return getDelayedBytes();
+      }
+    });
+    metrics.gauge("glue.coalesced_messages", new Gauge() {
+      public long read() {
+        return getCoalescedMessages();
+      }
+    });
+    metrics.gauge("synth.voices", new Gauge() {
+      private final long[] stats_ = new long[CPU_STATS_SIZE];
+
+      public long read() {
+        if (input_ == null) {
+          return 0;
+        }
+        synchronized (stats_) {
+          getCpuStats(stats_);
+          return stats_[CPU_LIVE_VOICES];
+        }
+      }
+    });
+    metrics.gauge("synth.buffer_size", new Gauge() {
+      public long read() {
+        return input_ == null ? 0 : getBufferSize();
+      }
+    });
+    metrics.gauge("synth.queue_depth", new Gauge() {
+      public long read() {
+        return input_ == null ? 0 : getQueueDepth();
+      }
+    });
+    messages_ = metrics.counter("glue.messages");
+  }
+
+  private void countMessage() {
+    Counter messages = messages_;
+    if (messages != null) {
+      messages.increment();
+    }
+  }
+
+  /**
+   * Start coalescing continuous controllers, pitch bend and aftertouch. Such a message is held
+   * back for up to one period, the duration of one output buffer, and if a newer value of the
+   * same stream arrives meanwhile, only the newer one is sent. Held values are sent whenever any
+   * other kind of message is sent, so notes, program changes and SysEx keep their order relative
+   * to each other and to the controller values sent before them. This cuts the traffic of knob and
+   * wheel sweeps down to about one message per stream per period, for up to one period of added
+   * latency on those streams.
+   *
+   * The period is read again every time, so it follows the output buffer if that changes. Call
+   * this after start().
+   */
+  public synchronized void startCoalescing() {
+    if (coalesceThread_ != null) {
+      return;
+    }
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        Thread self = Thread.currentThread();
+        while (coalesceThread_ == self) {
+          if (heldCount_ == 0) {
+            // Woken by the first value held back.
+            LockSupport.parkNanos(this, MAX_COALESCE_PARK_NANOS);
+          } else {
+            LockSupport.parkNanos(this, coalescePeriodNanos());
+            sendHeld();
+          }
+        }
+      }
+    }, "AndroidGlue coalesce");
+    thread.setDaemon(true);
+    coalesceThread_ = thread;
+    thread.start();
+  }
+
+  /**
+   * Stop coalescing, sending any values still held back.
+   */
+  public synchronized void stopCoalescing() {
+    Thread thread = coalesceThread_;
+    coalesceThread_ = null;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+    sendHeld();
+  }
+
+  /**
+   * Returns how long coalesced values are held back: the duration of one output buffer at its
+   * current size.
+   */
+  private long coalescePeriodNanos() {
+    return getBufferSize() * 1000000000L / sampleRate_;
+  }
+
+  /**
+   * @return The number of continuous controller messages that were never sent because a newer
+   *     value replaced them while coalescing.
+   */
+  public long getCoalescedMessages() {
+    return coalescedMessages_.get();
+  }
+
+  /**
+   * Sends a message according to policy, which is treated as REJECT if it is DROP_OLDEST. The
+   * message is never written ahead of values still held back, so if they don't all fit, it
+   * counts as not fitting either.
+   */
+  private boolean send(byte[] prefix, int prefixLength, byte[] data, int length,
+                       OverflowPolicy policy) {
+    if ((heldCount_ == 0 || sendHeld()) &&
+        input_.tryWrite(prefix, prefixLength, data, 0, length) != 0) {
+      return true;
+    }
+    int size = prefixLength + length;
+    if (policy == OverflowPolicy.BLOCK) {
+      delayedBytes_.addAndGet(size);
+      // The held values go first, within the same timeout as the message.
+      long timeoutNanos = blockTimeoutNanos_;
+      long deadline = System.nanoTime() + Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+      while (heldCount_ != 0 && !sendHeld()) {
+        long now = System.nanoTime();
+        if (now - deadline >= 0) {
+          timeoutNanos = 0;
+          break;
+        }
+        LockSupport.parkNanos(Math.min(RingBufferWriter.FULL_WAIT_NANOS, deadline - now));
+        timeoutNanos = deadline - System.nanoTime();
+      }
+      if (timeoutNanos > 0 &&
+          input_.write(prefix, prefixLength, data, 0, length, timeoutNanos)) {
+        return true;
+      }
+    }
+    droppedBytes_.addAndGet(size);
+    return false;
+  }
+
+  /**
+   * Sends as many of the held back messages as there is room for, oldest stream first.
+   * Values that don't fit stay held, and are retried with the next message or period.
+   * @return Whether every held value was sent.
+   */
+  private boolean sendHeld() {
+    synchronized (held_) {
+      while (!held_.isEmpty()) {
+        int length = PackedMessage.unpack(held_.peek(), heldMessage_, 0);
+        if (input_.tryWrite(null, 0, heldMessage_, 0, length) == 0) {
+          break;
+        }
+        held_.remove();
+      }
+      heldCount_ = held_.size();
+      return heldCount_ == 0;
+    }
+  }
+
+  /**
+   * Returns a short, well-formed channel message packed with PackedMessage, or 0.
+   */
+  private static int packChannelMessage(byte[] midiData) {
+    if (midiData.length < 2 || midiData.length > 3) {
+      return 0;
+    }
+    int status = midiData[0] & 0xFF;
+    if (!PackedMessage.isPackable(status) ||
+        PackedMessage.lengthForStatus(status) != midiData.length) {
+      return 0;
+    }
+    int data1 = midiData[1];
+    int data2 = midiData.length > 2 ? midiData[2] : 0;
+    if (((data1 | data2) & 0x80) != 0) {
+      return 0;
+    }
+    return PackedMessage.pack(status, data1, data2);
+  }
+
+  /**
+   * Copy the per-callback stats records that the synth has written since the last call into a
+   * direct buffer, as many as fit. Each record is STATS_RECORD_SIZE bytes in native byte order,
+   * with the fields at the STATS_ offsets. If nobody reads them, records are dropped once about
+   * 2000 have piled up.
+   *
+   * @param records A direct buffer to copy into, from its start.
+   * @return The number of records copied.
+   */
+  public native int readStats(ByteBuffer records);
+
+  // The layout of a stats record, which must match StatsRecord in android_glue.cc.
+  public static final int STATS_RECORD_SIZE = 32;
+  // When the callback started and finished rendering, in System.nanoTime() nanoseconds (long).
+  public static final int STATS_START_NANOS = 0;
+  public static final int STATS_END_NANOS = 8;
+  // The number of samples in the buffer rendered (int).
+  public static final int STATS_SAMPLES = 16;
+  // The number of voices held down or sustained (int).
+  public static final int STATS_VOICES = 20;
+  // The number of MIDI bytes waiting to be read at the start of the callback (int).
+  public static final int STATS_INPUT_BYTES = 24;
+  // The number of buffers cycling through the output queue, counting the one playing (int).
+  public static final int STATS_QUEUE_DEPTH = 28;
+
+  /**
+   * Copy the traces of the note-ons that the synth has rendered since the last call into a direct
+   * buffer, as many as fit. Note-ons are traced while a NoteTracer is installed, and this gives
+   * the last two hops, HOP_PARSE and HOP_RENDER, of each. Each record is TRACE_RECORD_SIZE bytes in
+   * native byte order, with the fields at the TRACE_ offsets. If nobody reads them, traces are
+   * dropped once about 2000 have piled up.
+   *
+   * @param records A direct buffer to copy into, from its start.
+   * @return The number of records copied.
+   */
+  public native int readTraces(ByteBuffer records);
+
+  // The layout of a trace record, which must match NoteTrace in synth_unit.h.
+  public static final int TRACE_RECORD_SIZE = 32;
+  // The id the NoteTracer gave the note-on (int).
+  public static final int TRACE_ID = 0;
+  // The note number (int).
+  public static final int TRACE_NOTE = 4;
+  // When the synth read the note-on, and when it finished rendering the first buffer with the
+  // note, in System.nanoTime() nanoseconds (long).
+  public static final int TRACE_PARSE_NANOS = 8;
+  public static final int TRACE_RENDER_NANOS = 16;
+  // The frame time of the block the note started in (long).
+  public static final int TRACE_FRAME_TIME = 24;
+
   /**
-   * @return Number of stats bytes available from synth core
+   * Copy how long the synth has spent in each stage of rendering, and how much it has rendered,
+   * all counted since start(), into stats at the CPU_ indices. Differences between two readings
+   * give the figures for the time between them. Safe to call from any thread.
+   *
+   * @param stats Room for CPU_STATS_SIZE counts.
    */
-  public native int statsBytesAvailable();
+  public native void getCpuStats(long[] stats);
+
+  // The stats from getCpuStats(), which must match CpuStats in synth_unit.h. Times are in
+  // nanoseconds: reading and handling MIDI input, rendering voices apart from the FM operators
+  // (envelopes, pitch, mixing), the FM operators, the resonant filter, and clipping and
+  // converting to 16 bits.
+  public static final int CPU_MIDI_NANOS = 0;
+  public static final int CPU_VOICE_NANOS = 1;
+  public static final int CPU_FM_CORE_NANOS = 2;
+  public static final int CPU_FILTER_NANOS = 3;
+  public static final int CPU_CONVERT_NANOS = 4;
+  // The number of 64 sample blocks rendered, and the number of voices rendered summed over them.
+  public static final int CPU_BLOCKS = 5;
+  public static final int CPU_VOICE_BLOCKS = 6;
+  // The number of voices rendered in the latest block: those held, sustained or releasing. A
+  // voice stops being rendered once its release has finished.
+  public static final int CPU_LIVE_VOICES = 7;
+  public static final int CPU_STATS_SIZE = 8;
+
+  // Traced note-ons are preceded by this byte and the trace id as a little-endian int, matching
+  // kMidiTraceId in synth_unit.h.
+  private static final byte TRACE_ID_PREFIX = (byte)0xFD;
+  private static final int TRACE_ID_SIZE = 5;
+
+  // Timed messages are preceded by this byte and the frame time as a little-endian long, matching
+  // kMidiTimestamp in synth_unit.h.
+  private static final byte TIMESTAMP_PREFIX = (byte)0xF9;
+  private static final int TIMESTAMP_SIZE = 9;
+
+  public static final long DEFAULT_BLOCK_TIMEOUT_NANOS = 100000000;
+
+  // The longest the coalescing thread sleeps without checking for held values, in case a wakeup
+  // is missed.
+  private static final long MAX_COALESCE_PARK_NANOS = 10000000;
+
+  // The sample rate passed to start().
+  private int sampleRate_;
+
+  // The synth's input, shared with the native code.
+  private volatile RingBufferWriter input_;
+
+  // The overflow policy for each type of message, indexed by the high nibble of its status.
+  private final OverflowPolicy[] policies_ = {
+      null, null, null, null, null, null, null, null,
+      OverflowPolicy.REJECT,  // note off
+      OverflowPolicy.REJECT,  // note on
+      OverflowPolicy.DROP_OLDEST,  // note aftertouch
+      OverflowPolicy.DROP_OLDEST,  // controller
+      OverflowPolicy.REJECT,  // program change
+      OverflowPolicy.DROP_OLDEST,  // channel aftertouch
+      OverflowPolicy.DROP_OLDEST,  // pitch bend
+      OverflowPolicy.BLOCK,  // SysEx and the rest
+  };
+  private volatile long blockTimeoutNanos_ = DEFAULT_BLOCK_TIMEOUT_NANOS;
+
+  // Continuous messages held back to coalesce them or while the input buffer is full, how many
+  // there are, which can be read without the lock, and room to unpack them, guarded by held_.
+  private final LatestValueTable held_ = new LatestValueTable();
+  private volatile int heldCount_;
+  private final byte[] heldMessage_ = new byte[3];
+
+  // The thread that sends coalesced values once per period, or null if coalescing is off.
+  private volatile Thread coalesceThread_;
+  private final AtomicLong coalescedMessages_ = new AtomicLong();
+
+  // Counts messages sent, once registerMetrics() is called.
+  private volatile Counter messages_;
+
+  private final AtomicLong droppedBytes_ = new AtomicLong();
+  private final AtomicLong delayedBytes_ = new AtomicLong();
 
-  public native int readStatsBytes(byte[] buf, int off, int len);
+  // Room for each thread to build short messages without allocating.
+  private final ThreadLocal<byte[]> scratch_ = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[TIMESTAMP_SIZE];
+    }
+  };
 
   static {
     System.loadLibrary("synth");
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android;
+
+/**
+ * A LatestValueTable holds the newest message of each continuous stream: each controller, pitch
+ * bend and aftertouch of each channel.  Adding a message replaces any older one of the same
+ * stream, since only the newest value matters.  Messages are taken out in the order their
+ * streams were first added.
+ *
+ * Only continuous streams can be held.  Switches such as sustain, bank select, data entry and
+ * the (N)RPN numbers, and channel mode messages, mean something at every step, so they never
+ * count as continuous.
+ *
+ * A LatestValueTable is not thread-safe.
+ */
+class LatestValueTable {
+  /**
+   * Creates a new, empty table.
+   */
+  LatestValueTable() {
+    values_ = new int[KEY_COUNT];
+    order_ = new int[KEY_COUNT];
+    head_ = 0;
+    size_ = 0;
+  }
+
+  /**
+   * Returns whether a packed message belongs to a continuous stream that a LatestValueTable can
+   * hold.
+   */
+  static boolean isContinuous(int packed) {
+    switch (packed & 0xF0) {
+      case 0xA0:
+      case 0xD0:
+      case 0xE0:
+        return true;
+      case 0xB0:
+        int controller = (packed >> 8) & 0x7F;
+        return controller != 0 && controller != 6 && controller != 32 && controller != 38 &&
+            (controller < 64 || controller > 69) && (controller < 96 || controller > 101) &&
+            controller < 120;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Adds a message, which must be continuous, replacing any older message of the same stream.
+   * @return The message that was replaced, or 0 if there was none.
+   */
+  int put(int packed) {
+    int key = keyOf(packed);
+    int replaced = values_[key];
+    values_[key] = packed;
+    if (replaced == 0) {
+      order_[(head_ + size_) % KEY_COUNT] = key;
+      ++size_;
+    }
+    return replaced;
+  }
+
+  /**
+   * Returns whether the table holds no messages.
+   */
+  boolean isEmpty() {
+    return size_ == 0;
+  }
+
+  /**
+   * Returns the number of messages in the table.
+   */
+  int size() {
+    return size_;
+  }
+
+  /**
+   * Returns the message whose stream was added first, without removing it.  The table must not
+   * be empty.
+   */
+  int peek() {
+    return values_[order_[head_]];
+  }
+
+  /**
+   * Removes the message returned by peek().
+   */
+  void remove() {
+    values_[order_[head_]] = 0;
+    head_ = (head_ + 1) % KEY_COUNT;
+    --size_;
+  }
+
+  /**
+   * Returns the stream a continuous message belongs to.
+   */
+  private static int keyOf(int packed) {
+    int channel = packed & 0x0F;
+    switch (packed & 0xF0) {
+      case 0xB0: return (channel << 7) | ((packed >> 8) & 0x7F);
+      case 0xA0: return 16 * 128 + ((channel << 7) | ((packed >> 8) & 0x7F));
+      case 0xD0: return 2 * 16 * 128 + channel;
+      default: return 2 * 16 * 128 + 16 + channel;
+    }
+  }
+
+  // Controllers and poly aftertouch for each channel, then channel aftertouch and pitch bend.
+  private static final int KEY_COUNT = 2 * 16 * 128 + 2 * 16;
+
+  // The newest message of each stream, or 0.
+  private final int[] values_;
+
+  // The streams that hold a message, as a queue in the order they were added.
+  private final int[] order_;
+  private int head_;
+  private int size_;
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A RingBufferWriter writes into a ring buffer in a direct ByteBuffer that is shared with the
+ * native RingBuffer (see ringbuffer.h), which the audio thread reads from.  Writing is plain
+ * stores into the buffer followed by an ordered store of the write index, so it needs no JNI
+ * call and no copy beyond the bytes themselves.
+ *
+ * Any number of threads may write at once.  Each write first reserves space for the whole message
+ * with a compare-and-set, then copies the message into its reserved space and marks it ready.
+ * Whichever writer holds the commit flag then publishes the write index past every ready message
+ * that follows the last one published, in reservation order, including messages of other writers.
+ * A writer never waits for another: if a message reserved earlier isn't ready yet, the writer of
+ * that message publishes this one too when it finishes.  The reader never sees part of a message
+ * or bytes of two messages interleaved, and never waits for a writer.
+ */
+class RingBufferWriter {
+  // The shared memory layout, which must match RingBuffer in ringbuffer.h.
+  static final int BUF_SIZE = 65536;
+  static final int WRITE_INDEX_OFFSET = 64;
+  static final int DATA_OFFSET = 128;
+  static final int SHARED_SIZE = DATA_OFFSET + BUF_SIZE;
+
+  // The longest message that can be written, since the ring keeps one byte free.
+  static final int MAX_MESSAGE_SIZE = BUF_SIZE - 1;
+
+  /**
+   * Creates a new, empty ring buffer.
+   */
+  RingBufferWriter() {
+    buffer_ = ByteBuffer.allocateDirect(SHARED_SIZE).order(ByteOrder.nativeOrder());
+    reserved_ = new AtomicLong();
+    ready_ = new AtomicIntegerArray(BUF_SIZE);
+    committing_ = new AtomicBoolean();
+    committed_ = 0;
+    highWater_ = new AtomicInteger();
+    views_ = new ThreadLocal<ByteBuffer>() {
+      @Override
+      protected ByteBuffer initialValue() {
+        return buffer_.duplicate();
+      }
+    };
+  }
+
+  /**
+   * Returns the shared memory, to hand to the native reader.
+   */
+  ByteBuffer getBuffer() {
+    return buffer_;
+  }
+
+  /**
+   * Returns the number of bytes that can be written without waiting.
+   */
+  int writeBytesAvailable() {
+    return freeSpace(reserved_.get());
+  }
+
+  /**
+   * Returns the number of bytes written or being written that the reader hasn't read yet.
+   */
+  int bytesUsed() {
+    return MAX_MESSAGE_SIZE - writeBytesAvailable();
+  }
+
+  /**
+   * Returns the most bytes that have been waiting for the reader at once.
+   */
+  int getHighWater() {
+    return highWater_.get();
+  }
+
+  /**
+   * Writes len bytes of data, starting at off, as one message.  If the buffer is too full, waits
+   * for the reader for as long as it takes.
+   */
+  void write(byte[] data, int off, int len) {
+    write(null, 0, data, off, len, Long.MAX_VALUE);
+  }
+
+  /**
+   * Writes prefixLen bytes of prefix followed by len bytes of data, starting at off, as one
+   * message, if there is room for all of it right now.  Never waits, for the reader or for other
+   * writers; it only retries its reservation when another writer reserves at the same moment.
+   * @return The number of bytes written, which is either the whole message or 0.
+   * @throws IllegalArgumentException - If the message is longer than MAX_MESSAGE_SIZE.
+   * @throws IndexOutOfBoundsException - If prefixLen, off or len are outside their arrays.
+   */
+  int tryWrite(byte[] prefix, int prefixLen, byte[] data, int off, int len) {
+    return write(prefix, prefixLen, data, off, len, 0) ? prefixLen + len : 0;
+  }
+
+  /**
+   * Writes prefixLen bytes of prefix followed by len bytes of data, starting at off, as one
+   * message.  If the buffer is too full, waits up to timeoutNanos for the reader to make room.
+   * It never waits for other writers.
+   * @return Whether the message was written.
+   * @throws IllegalArgumentException - If the message is longer than MAX_MESSAGE_SIZE.
+   * @throws IndexOutOfBoundsException - If prefixLen, off or len are outside their arrays.
+   */
+  boolean write(byte[] prefix, int prefixLen, byte[] data, int off, int len, long timeoutNanos) {
+    int size = checkMessage(prefix, prefixLen, data, off, len);
+    if (size == 0) {
+      return true;
+    }
+    // Everything that can throw happens before space is reserved, since a reservation that is
+    // never marked ready would hold up every message after it.
+    ByteBuffer view = views_.get();
+
+    // Reserve space for the whole message.
+    long start;
+    int free;
+    boolean waiting = false;
+    long deadline = 0;
+    while (true) {
+      start = reserved_.get();
+      free = freeSpace(start);
+      if (free < size) {
+        if (timeoutNanos <= 0) {
+          return false;
+        }
+        // The clock is only read once the buffer turns out to be full.
+        long now = System.nanoTime();
+        if (!waiting) {
+          waiting = true;
+          deadline = now + Math.min(timeoutNanos, Long.MAX_VALUE / 2);
+        } else if (now - deadline >= 0) {
+          return false;
+        }
+        LockSupport.parkNanos(Math.min(FULL_WAIT_NANOS, deadline - now));
+      } else if (reserved_.compareAndSet(start, start + size)) {
+        break;
+      }
+    }
+    int used = MAX_MESSAGE_SIZE - free + size;
+    int highWater = highWater_.get();
+    while (used > highWater && !highWater_.compareAndSet(highWater, used)) {
+      highWater = highWater_.get();
+    }
+
+    // Copy it in, through this thread's own view of the buffer, then mark it ready.  The ordered
+    // store to ready_ makes the copied bytes visible to whichever writer commits them.
+    int startIx = (int)start & (BUF_SIZE - 1);
+    int wrIx = copy(view, startIx, prefix, 0, prefixLen);
+    copy(view, wrIx, data, off, len);
+    ready_.set(startIx, size);
+    commit();
+    return true;
+  }
+
+  /**
+   * Checks the arguments of a write before anything is reserved.
+   * @return The size of the message.
+   * @throws IllegalArgumentException - If the message is longer than MAX_MESSAGE_SIZE.
+   * @throws IndexOutOfBoundsException - If prefixLen, off or len are outside their arrays.
+   */
+  private static int checkMessage(byte[] prefix, int prefixLen, byte[] data, int off, int len) {
+    if (prefixLen < 0 || prefixLen > (prefix == null ? 0 : prefix.length)) {
+      throw new IndexOutOfBoundsException("Invalid prefix length " + prefixLen + ".");
+    }
+    if (off < 0 || len < 0 || len > data.length - off) {
+      throw new IndexOutOfBoundsException("Invalid offset " + off + " or length " + len + ".");
+    }
+    int size = prefixLen + len;
+    if (size > MAX_MESSAGE_SIZE) {
+      throw new IllegalArgumentException("Message of " + size + " bytes is too long.");
+    }
+    return size;
+  }
+
+  /**
+   * Publishes every ready message after the last one published, up to the first that isn't ready,
+   * unless another writer is already doing so.  That writer may have looked at this thread's
+   * message before it was ready, so after letting go of the flag the last one out looks again.
+   */
+  private void commit() {
+    while (committing_.compareAndSet(false, true)) {
+      long committed = committed_;
+      try {
+        int size;
+        while ((size = ready_.get((int)committed & (BUF_SIZE - 1))) != 0) {
+          ready_.set((int)committed & (BUF_SIZE - 1), 0);
+          committed += size;
+        }
+        if (committed != committed_) {
+          // Makes sure the data is visible before the index that covers it.
+          fence();
+          buffer_.putInt(WRITE_INDEX_OFFSET, (int)committed & (BUF_SIZE - 1));
+          committed_ = committed;
+        }
+      } finally {
+        committing_.set(false);
+      }
+      if (ready_.get((int)committed & (BUF_SIZE - 1)) == 0) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the space left once everything reserved up to position is written.
+   */
+  private int freeSpace(long position) {
+    int rdIx = buffer_.getInt(0);
+    // Makes sure the reader is done with the space before it is written.
+    fence();
+    return (rdIx - (int)position - 1) & (BUF_SIZE - 1);
+  }
+
+  /**
+   * Copies len bytes of data into the ring at wrIx, wrapping around the end.
+   * @return The index just past the copied bytes.
+   */
+  private static int copy(ByteBuffer view, int wrIx, byte[] data, int off, int len) {
+    if (len == 0) {
+      return wrIx;
+    }
+    int fragmentSize = Math.min(len, BUF_SIZE - wrIx);
+    view.position(DATA_OFFSET + wrIx);
+    view.put(data, off, fragmentSize);
+    if (len > fragmentSize) {
+      view.position(DATA_OFFSET);
+      view.put(data, off + fragmentSize, len - fragmentSize);
+    }
+    return (wrIx + len) & (BUF_SIZE - 1);
+  }
+
+  /**
+   * Orders every memory access before it against every access after it, including the plain
+   * accesses to the direct buffer.  A volatile write followed by a volatile read of the same
+   * field is a full fence, which stands in for Unsafe or VarHandle fences on older Android.
+   */
+  private int fence() {
+    fence_ = 0;
+    return fence_;
+  }
+
+  // How long to wait for the reader when the buffer is full.
+  static final long FULL_WAIT_NANOS = 1000000;
+
+  private final ByteBuffer buffer_;
+
+  // The total number of bytes reserved by writers, and of those, the number committed to the
+  // reader.  Both only grow, and the write index is their low bits.  committed_ is only written
+  // while holding committing_.
+  private final AtomicLong reserved_;
+  private volatile long committed_;
+
+  // The size of each message that has been copied in but not committed, indexed by where in the
+  // ring it starts, and 0 everywhere else.
+  private final AtomicIntegerArray ready_;
+
+  // Held by the writer that is publishing ready messages.
+  private final AtomicBoolean committing_;
+
+  // The most bytes reserved and not yet read at once.
+  private final AtomicInteger highWater_;
+
+  // Each writing thread's view of buffer_, so that their positions don't collide.
+  private final ThreadLocal<ByteBuffer> views_;
+
+  private volatile int fence_;
+}
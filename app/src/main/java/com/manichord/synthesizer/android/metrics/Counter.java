@@ -0,0 +1,63 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Counter counts events, such as packets received.  Any thread may count without locking.
+ * Counting only happens while a MetricsReporter is attached to the registry; otherwise add() just
+ * reads one volatile field, so counters can stay in hot paths.
+ */
+public class Counter {
+  Counter(String name, MetricsRegistry registry) {
+    name_ = name;
+    registry_ = registry;
+    value_ = new AtomicLong();
+  }
+
+  public String getName() {
+    return name_;
+  }
+
+  /**
+   * Counts one event.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Counts n events.
+   */
+  public void add(long n) {
+    if (registry_.isReporting()) {
+      value_.addAndGet(n);
+    }
+  }
+
+  /**
+   * Returns the number of events counted while reporting.
+   */
+  public long get() {
+    return value_.get();
+  }
+
+  private final String name_;
+  private final MetricsRegistry registry_;
+  private final AtomicLong value_;
+}
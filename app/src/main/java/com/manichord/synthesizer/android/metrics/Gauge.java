@@ -0,0 +1,28 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+/**
+ * A Gauge reads a value that already exists somewhere, such as the fill level of a buffer.  It is
+ * only read when a MetricsReporter takes a snapshot, so it costs nothing in between.
+ */
+public interface Gauge {
+  /**
+   * Returns the current value.  Called on the reporter's thread, so it must be thread-safe.
+   */
+  long read();
+}
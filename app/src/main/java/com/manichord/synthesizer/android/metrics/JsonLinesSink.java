@@ -0,0 +1,80 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * A JsonLinesSink appends each snapshot to a file as one line of JSON, an object with the
+ * snapshot time in "time_ms" and a field for each metric, for example
+ * {"time_ms":1700000000000,"usb.packets":120,"glue.input_bytes":0}
+ * Each line is flushed as it is written, so the file is complete up to the last report even if
+ * the process dies.
+ */
+public class JsonLinesSink implements MetricsSink {
+  /**
+   * Opens a file to append to, creating it if needed.
+   */
+  public JsonLinesSink(File file) throws IOException {
+    writer_ = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+        "UTF-8"));
+    line_ = new StringBuilder();
+  }
+
+  public void write(MetricsSnapshot snapshot) throws IOException {
+    line_.setLength(0);
+    line_.append("{\"time_ms\":").append(snapshot.getTimeMillis());
+    for (int i = 0; i < snapshot.size(); i++) {
+      line_.append(',');
+      appendString(line_, snapshot.getName(i));
+      line_.append(':').append(snapshot.getValue(i));
+    }
+    line_.append("}\n");
+    writer_.write(line_.toString());
+    writer_.flush();
+  }
+
+  /**
+   * Closes the file.
+   */
+  public void close() throws IOException {
+    writer_.close();
+  }
+
+  private static void appendString(StringBuilder sb, String s) {
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < 0x20) {
+        sb.append(String.format("\\u%04x", (int)c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+
+  private final Writer writer_;
+  private final StringBuilder line_;
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MemorySink keeps the snapshots it is given, for tests and for showing recent figures in the
+ * app.  It keeps at most a fixed number, dropping the oldest.
+ */
+public class MemorySink implements MetricsSink {
+  /**
+   * Creates a sink that keeps up to capacity snapshots.
+   */
+  public MemorySink(int capacity) {
+    capacity_ = capacity;
+    snapshots_ = new ArrayList<MetricsSnapshot>();
+  }
+
+  public synchronized void write(MetricsSnapshot snapshot) {
+    if (snapshots_.size() == capacity_) {
+      snapshots_.remove(0);
+    }
+    snapshots_.add(snapshot);
+  }
+
+  /**
+   * Returns the snapshots kept, oldest first.
+   */
+  public synchronized List<MetricsSnapshot> getSnapshots() {
+    return new ArrayList<MetricsSnapshot>(snapshots_);
+  }
+
+  /**
+   * Returns the latest snapshot, or null if there is none.
+   */
+  public synchronized MetricsSnapshot getLatest() {
+    return snapshots_.isEmpty() ? null : snapshots_.get(snapshots_.size() - 1);
+  }
+
+  public synchronized void clear() {
+    snapshots_.clear();
+  }
+
+  private final int capacity_;
+  private final List<MetricsSnapshot> snapshots_;
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A MetricsRegistry holds named counters and gauges, which parts of the app publish their
+ * runtime figures to, for MetricsReporters to take snapshots of.  With no reporter attached,
+ * counters don't count and gauges aren't read, so publishing costs next to nothing.
+ *
+ * All methods are thread-safe.  Snapshots and counting never lock.
+ */
+public class MetricsRegistry {
+  /**
+   * Creates a new, empty registry.
+   */
+  public MetricsRegistry() {
+    metrics_ = new Metrics(new String[0], new Object[0]);
+  }
+
+  /**
+   * Returns the counter with the given name, creating it if there is none yet.
+   * @throws IllegalArgumentException - If a gauge has the name.
+   */
+  public synchronized Counter counter(String name) {
+    int index = indexOf(name);
+    if (index >= 0) {
+      Object metric = metrics_.metrics_[index];
+      if (!(metric instanceof Counter)) {
+        throw new IllegalArgumentException("Metric " + name + " is not a counter.");
+      }
+      return (Counter)metric;
+    }
+    Counter counter = new Counter(name, this);
+    add(name, counter);
+    return counter;
+  }
+
+  /**
+   * Adds a gauge, replacing any older gauge with the same name.
+   * @throws IllegalArgumentException - If a counter has the name.
+   */
+  public synchronized void gauge(String name, Gauge gauge) {
+    int index = indexOf(name);
+    if (index >= 0) {
+      if (!(metrics_.metrics_[index] instanceof Gauge)) {
+        throw new IllegalArgumentException("Metric " + name + " is not a gauge.");
+      }
+      remove(name);
+    }
+    add(name, gauge);
+  }
+
+  /**
+   * Removes a counter or gauge.
+   * @return false if there was none with the name.
+   */
+  public synchronized boolean remove(String name) {
+    int index = indexOf(name);
+    if (index < 0) {
+      return false;
+    }
+    Metrics metrics = metrics_;
+    int size = metrics.names_.length - 1;
+    String[] names = new String[size];
+    Object[] values = new Object[size];
+    System.arraycopy(metrics.names_, 0, names, 0, index);
+    System.arraycopy(metrics.names_, index + 1, names, index, size - index);
+    System.arraycopy(metrics.metrics_, 0, values, 0, index);
+    System.arraycopy(metrics.metrics_, index + 1, values, index, size - index);
+    metrics_ = new Metrics(names, values);
+    return true;
+  }
+
+  /**
+   * Returns whether any reporter is attached, and so whether counters count.
+   */
+  public boolean isReporting() {
+    return reporters_ != 0;
+  }
+
+  /**
+   * Returns the current value of every counter and gauge, in the order they were added.  A gauge
+   * that throws is left out, so that one failing gauge doesn't lose the rest of the snapshot.
+   */
+  public MetricsSnapshot snapshot() {
+    Metrics metrics = metrics_;
+    String[] names = new String[metrics.names_.length];
+    long[] values = new long[names.length];
+    int size = 0;
+    for (int i = 0; i < names.length; i++) {
+      Object metric = metrics.metrics_[i];
+      try {
+        values[size] = metric instanceof Counter ? ((Counter)metric).get() : ((Gauge)metric).read();
+      } catch (RuntimeException e) {
+        continue;
+      }
+      names[size++] = metrics.names_[i];
+    }
+    if (size < names.length) {
+      names = Arrays.copyOf(names, size);
+      values = Arrays.copyOf(values, size);
+    }
+    return new MetricsSnapshot(System.currentTimeMillis(), names, values);
+  }
+
+  synchronized void attach() {
+    reporters_++;
+  }
+
+  synchronized void detach() {
+    reporters_--;
+  }
+
+  private int indexOf(String name) {
+    String[] names = metrics_.names_;
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private void add(String name, Object metric) {
+    Metrics metrics = metrics_;
+    int size = metrics.names_.length;
+    String[] names = new String[size + 1];
+    Object[] values = new Object[size + 1];
+    System.arraycopy(metrics.names_, 0, names, 0, size);
+    System.arraycopy(metrics.metrics_, 0, values, 0, size);
+    names[size] = name;
+    values[size] = metric;
+    metrics_ = new Metrics(names, values);
+  }
+
+  /**
+   * An immutable list of the metrics, each a Counter or a Gauge, with their names.
+   */
+  private static class Metrics {
+    Metrics(String[] names, Object[] metrics) {
+      names_ = names;
+      metrics_ = metrics;
+    }
+
+    final String[] names_;
+    final Object[] metrics_;
+  }
+
+  // The current metrics, replaced as a whole on every change.
+  private volatile Metrics metrics_;
+
+  // The number of reporters attached.
+  private volatile int reporters_;
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import android.util.Log;
+
+/**
+ * A MetricsReporter takes a snapshot of a registry at a fixed period, on its own thread, and
+ * writes it to a sink.  Counters in the registry only count while a reporter is running.
+ */
+public class MetricsReporter {
+  /**
+   * Creates a reporter, which does nothing until it is started.
+   */
+  public MetricsReporter(MetricsRegistry registry, MetricsSink sink) {
+    registry_ = registry;
+    sink_ = sink;
+  }
+
+  /**
+   * Starts taking a snapshot every periodMillis, the first one after one period.
+   */
+  public synchronized void start(long periodMillis) {
+    if (executor_ != null) {
+      return;
+    }
+    registry_.attach();
+    executor_ = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "MetricsReporter");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor_.scheduleAtFixedRate(new Runnable() {
+      public void run() {
+        report();
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stops taking snapshots.  A snapshot that is being written may still finish.
+   */
+  public synchronized void stop() {
+    if (executor_ == null) {
+      return;
+    }
+    executor_.shutdown();
+    executor_ = null;
+    registry_.detach();
+  }
+
+  /**
+   * Takes a snapshot now and writes it to the sink.  Errors are logged rather than thrown, so that
+   * a failing sink doesn't stop the reports that follow.
+   */
+  public void report() {
+    try {
+      MetricsSnapshot snapshot = registry_.snapshot();
+      synchronized (sink_) {
+        sink_.write(snapshot);
+      }
+    } catch (IOException e) {
+      Log.w("synth", "writing metrics failed: " + e);
+    } catch (RuntimeException e) {
+      Log.w("synth", "reporting metrics failed: " + e);
+    }
+  }
+
+  private final MetricsRegistry registry_;
+  private final MetricsSink sink_;
+
+  // Runs the reports, or null while stopped.
+  private ScheduledExecutorService executor_;
+}
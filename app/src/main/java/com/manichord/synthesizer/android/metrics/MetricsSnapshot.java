@@ -0,0 +1,68 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+/**
+ * The values of all the metrics in a registry at one time: the total of each counter and the
+ * reading of each gauge.  Counters are totals rather than counts since the last snapshot, so a
+ * rate is the difference between two snapshots, and several reporters can share a registry.
+ */
+public class MetricsSnapshot {
+  MetricsSnapshot(long timeMillis, String[] names, long[] values) {
+    timeMillis_ = timeMillis;
+    names_ = names;
+    values_ = values;
+  }
+
+  /**
+   * Returns when the snapshot was taken, in System.currentTimeMillis() milliseconds.
+   */
+  public long getTimeMillis() {
+    return timeMillis_;
+  }
+
+  /**
+   * Returns the number of metrics.
+   */
+  public int size() {
+    return names_.length;
+  }
+
+  public String getName(int index) {
+    return names_[index];
+  }
+
+  public long getValue(int index) {
+    return values_[index];
+  }
+
+  /**
+   * Returns the value of the metric with the given name, or defaultValue if there is none.
+   */
+  public long get(String name, long defaultValue) {
+    for (int i = 0; i < names_.length; i++) {
+      if (names_[i].equals(name)) {
+        return values_[i];
+      }
+    }
+    return defaultValue;
+  }
+
+  private final long timeMillis_;
+  private final String[] names_;
+  private final long[] values_;
+}
@@ -41,10 +41,17 @@ import android.util.Log;
 
 import com.manichord.synthesizer.R;
 import com.manichord.synthesizer.android.AndroidGlue;
+import com.manichord.synthesizer.android.stats.NoteLatencyStats;
+import com.manichord.synthesizer.android.metrics.Counter;
+import com.manichord.synthesizer.android.metrics.Gauge;
+import com.manichord.synthesizer.android.metrics.MetricsRegistry;
+import com.manichord.synthesizer.android.stats.JitterStats;
 import com.manichord.synthesizer.android.usb.UsbMidiDevice;
-import com.manichord.synthesizer.core.midi.MessageTee;
-import com.manichord.synthesizer.core.midi.MidiChannelFilter;
+import com.manichord.synthesizer.core.midi.AsyncMidiListener;
+import com.manichord.synthesizer.core.midi.MidiBroadcaster;
 import com.manichord.synthesizer.core.midi.MidiListener;
+import com.manichord.synthesizer.core.midi.MidiRouter;
+import com.manichord.synthesizer.core.midi.NoteTracer;
 
 /**
  * An Android Service that plays audio from a synthesizer.
@@ -56,13 +63,22 @@ public class SynthesizerService extends Service {
 
   public void setCurrentChannel(int currentChannel) {
     currentChannel_ = currentChannel;
-    if (usbMidiDevice_ != null) {
-      usbMidiDevice_.replaceReceiver(new MidiChannelFilter(midiListener_, currentChannel_));
-    } else {
-      Log.e("SynthesizerService", "cannot set current channel no usb midi device");
+    // The router outlives USB devices, so a device attached later uses the new channel too.
+    if (usbRouter_ != null) {
+      usbRouter_.setTable(usbRoutes(currentChannel_));
     }
   }
 
+  /**
+   * Returns the routes from the USB MIDI device: the current channel and all system messages go
+   * to the synthesizer.
+   */
+  private MidiRouter.Table usbRoutes(int channel) {
+    return new MidiRouter.Table()
+        .addRoute(channel, midiListener_, MidiRouter.ALL_TYPES)
+        .addSystemRoute(midiListener_);
+  }
+
   // Class for local client access.
   public class LocalBinder extends Binder {
     public SynthesizerService getService() {
@@ -85,7 +101,10 @@ public class SynthesizerService extends Service {
         getJbMr1Params(params);
       }
       // Empirical testing shows better performance with small buffer size
-      // than actually matching the media server's reported buffer size.
+      // than actually matching the media server's reported buffer size, so
+      // start from the smallest and let the glue grow the output only as far
+      // as this device needs to play without glitches.
+      Log.d("synth", "device " + params + ", starting at 64");
       params.bufferSize = 64;
 
       androidGlue_ = new AndroidGlue();
@@ -99,8 +118,36 @@ public class SynthesizerService extends Service {
       } catch (IOException e) {
         Log.e(getClass().getName(), "loading patches failed");
       }
+      // Send at most one value per controller stream per audio buffer.
+      androidGlue_.startCoalescing();
+
+      metrics_ = new MetricsRegistry();
+      androidGlue_.registerMetrics(metrics_);
+      jitterStats_ = new JitterStats();
+      jitterStats_.setNominalCb((double)params.bufferSize / params.sampleRate);
+      jitterStats_.setSampleRate(params.sampleRate);
+      // The gauges only read what the stats thread has collected.
+      metrics_.gauge("synth.xruns", new Gauge() {
+        public long read() {
+          return jitterStats_.getUnderruns();
+        }
+      });
+      metrics_.gauge("synth.cb_time_p99", new Gauge() {
+        public long read() {
+          return cbTimeP99_;
+        }
+      });
+      metrics_.gauge("synth.start_jitter_p99", new Gauge() {
+        public long read() {
+          return startJitterP99_;
+        }
+      });
+      rawEvents_ = metrics_.counter("events.raw");
+      startStatsThread();
     }
-    midiListener_ = new MessageTee(androidGlue_);
+    midiListener_ = new MidiBroadcaster();
+    midiListener_.addListener(androidGlue_);
+    usbRouter_ = new MidiRouter(usbRoutes(currentChannel_));
     androidGlue_.setPlayState(true);
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
@@ -120,6 +167,7 @@ public class SynthesizerService extends Service {
   public void onDestroy() {
     Log.d("synth", "service onDestroy");
     androidGlue_.setPlayState(false);
+    stopNoteTracing();
     setMidiInterface(null, null);
     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
       unregisterReceiver(usbReceiver_);
@@ -144,9 +192,26 @@ public class SynthesizerService extends Service {
    * @param buf MIDI bytes to send
    */
   public void sendRawMidi(byte[] buf) {
+    rawEvents_.increment();
     androidGlue_.sendMidi(buf);
   }
 
+  /**
+   * Returns the registry that the synthesizer, its input and the USB MIDI device publish their
+   * runtime figures to. Nothing is counted until a MetricsReporter is started on it. Besides the
+   * metrics of AndroidGlue.registerMetrics() and UsbMidiDevice, the service publishes:
+   * <ul>
+   * <li>events.raw, a counter of the messages sent with sendRawMidi().
+   * <li>synth.xruns, the number of audio callbacks that finished too late to keep the output fed.
+   * <li>synth.cb_time_p99 and synth.start_jitter_p99, the 99th percentile of the time callbacks
+   *     took and of how far they started from their nominal time, in nanoseconds, over the last
+   *     second of callbacks collected.
+   * </ul>
+   */
+  public MetricsRegistry getMetrics() {
+    return metrics_;
+  }
+
   public List<String> getPatchNames() {
     return patchNames_;
   }
@@ -234,7 +299,7 @@ public class SynthesizerService extends Service {
           usbDevice_ = device;
           usbMidiConnection_ = connection;
           usbMidiInterface_ = intf;
-          usbMidiDevice_ = new UsbMidiDevice(new MidiChannelFilter(midiListener_, currentChannel_), usbMidiConnection_, intf);
+          usbMidiDevice_ = new UsbMidiDevice(usbRouter_, usbMidiConnection_, intf, metrics_);
           usbMidiDevice_.start();
           return true;
         } else {
@@ -284,21 +349,122 @@ public class SynthesizerService extends Service {
 
   /**
    * Set a MidiListener. At the moment, this listener gets all MIDI events, but
-   * it might change to only get them from the USB MIDI device.
+   * it might change to only get them from the USB MIDI device. It is called on
+   * its own thread, so it can take its time without delaying the synthesizer.
    *
    * @param target MidiListener to receive messages, or null if none
    */
-  public void setMidiListener(MidiListener target) {
-    midiListener_.setSecondTarget(target);
+  public synchronized void setMidiListener(MidiListener target) {
+    if (asyncListener_ != null) {
+      midiListener_.removeListener(asyncListener_);
+      asyncListener_.stop();
+      asyncListener_ = null;
+    }
+    if (target != null) {
+      asyncListener_ = new AsyncMidiListener(target, ASYNC_QUEUE_SIZE);
+      asyncListener_.start();
+      midiListener_.addListener(asyncListener_);
+    }
+  }
+
+  /**
+   * Start tracing note-ons from the keyboard and USB to the synthesizer. The latency of each hop
+   * adds up in the returned stats, which the stats thread collects from the synthesizer every
+   * STATS_PERIOD_MS, and which can be read from any thread. Tracing restarts from zero if it was
+   * already on.
+   *
+   * @return The stats of the note-ons traced from now on.
+   */
+  public synchronized NoteLatencyStats startNoteTracing() {
+    NoteTracer tracer = new NoteTracer();
+    NoteLatencyStats stats = new NoteLatencyStats(tracer);
+    noteStats_ = stats;
+    NoteTracer.setInstance(tracer);
+    return stats;
+  }
+
+  /**
+   * Stop tracing note-ons. The stats returned by startNoteTracing() keep the notes traced so far.
+   */
+  public synchronized void stopNoteTracing() {
+    NoteTracer.setInstance(null);
+    noteStats_ = null;
+  }
+
+  /**
+   * Starts the thread that reads the synthesizer's callback stats and note traces, and has
+   * changes to the output size logged. It is the only reader of the stats and traces, so nothing
+   * is lost between two readers, and the gauges that publish them never call into the
+   * synthesizer.
+   */
+  private static void startStatsThread() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        int periods = 0;
+        while (true) {
+          try {
+            Thread.sleep(STATS_PERIOD_MS);
+          } catch (InterruptedException e) {
+            return;
+          }
+          // Reading the output size logs any change the audio thread has made to it.
+          androidGlue_.getBufferSize();
+          NoteLatencyStats noteStats = noteStats_;
+          if (noteStats != null) {
+            noteStats.collect(androidGlue_);
+          }
+          // Audio callbacks are only collected while metrics are being reported.
+          if (metrics_.isReporting()) {
+            jitterStats_.collect(androidGlue_);
+            if (++periods == PERCENTILE_PERIODS) {
+              periods = 0;
+              cbTimeP99_ =
+                  jitterStats_.getCbTimes().snapshotAndReset().getValueAtPercentile(.99);
+              startJitterP99_ =
+                  jitterStats_.getStartJitter().snapshotAndReset().getValueAtPercentile(.99);
+            }
+          }
+        }
+      }
+    }, "synth stats");
+    thread.setDaemon(true);
+    thread.start();
   }
 
-  private MessageTee midiListener_;
+  // How often the stats thread reads from the synthesizer.
+  private static final long STATS_PERIOD_MS = 100;
+
+  // The number of periods the published percentiles are taken over, one second.
+  private static final int PERCENTILE_PERIODS = 10;
+
+  // The number of events that can be waiting for the listener set with setMidiListener().
+  private static final int ASYNC_QUEUE_SIZE = 1024;
+
+  private MidiBroadcaster midiListener_;
+
+  // Routes messages from the USB MIDI device to midiListener_.
+  private MidiRouter usbRouter_;
+
+  // The listener set with setMidiListener(), running on its own thread.
+  private AsyncMidiListener asyncListener_;
 
   // Binder to use for Activities in this process.
   private final IBinder binder_ = new LocalBinder();
 
   private static AndroidGlue androidGlue_;
 
+  private static MetricsRegistry metrics_;
+  private static Counter rawEvents_;
+
+  // Audio callbacks collected by the stats thread, and the p99 callback time and start jitter it
+  // last took from them, in nanoseconds over one second.
+  private static JitterStats jitterStats_;
+  private static volatile long cbTimeP99_;
+  private static volatile long startJitterP99_;
+
+  // The stats of the note-ons being traced, or null if tracing is off.
+  private static volatile NoteLatencyStats noteStats_;
+
   private static List<String> patchNames_;
 
   // State for USB MIDI keyboard connection
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.stats;
+
+import com.manichord.synthesizer.android.AndroidGlue;
+
+// Where the synth's rendering time goes, stage by stage, over the time between the last two
+// calls to collect().
+public class CpuStats {
+  public CpuStats(int sampleRate) {
+    blockNanos_ = BLOCK_SIZE * 1e9 / sampleRate;
+    previous_ = new long[AndroidGlue.CPU_STATS_SIZE];
+    current_ = new long[AndroidGlue.CPU_STATS_SIZE];
+  }
+
+  // Reads the synth's counts, starting a new interval.
+  public void collect(AndroidGlue glue) {
+    long[] previous = previous_;
+    previous_ = current_;
+    current_ = previous;
+    glue.getCpuStats(current_);
+  }
+
+  // The number of blocks rendered in the last interval.
+  public long getBlocks() {
+    return delta(AndroidGlue.CPU_BLOCKS);
+  }
+
+  // The mean time a stage took per block in the last interval, in nanoseconds, where stage is
+  // one of the AndroidGlue.CPU_ times.
+  public double getNanosPerBlock(int stage) {
+    long blocks = getBlocks();
+    return blocks == 0 ? 0 : (double)delta(stage) / blocks;
+  }
+
+  // The mean time of the FM operators of one voice per block, in nanoseconds.
+  public double getFmCoreNanosPerVoice() {
+    long voiceBlocks = delta(AndroidGlue.CPU_VOICE_BLOCKS);
+    return voiceBlocks == 0 ? 0 : (double)delta(AndroidGlue.CPU_FM_CORE_NANOS) / voiceBlocks;
+  }
+
+  // The mean number of voices rendered per block in the last interval.
+  public double getMeanVoices() {
+    long blocks = getBlocks();
+    return blocks == 0 ? 0 : (double)delta(AndroidGlue.CPU_VOICE_BLOCKS) / blocks;
+  }
+
+  // The number of voices still sounding in the latest block.
+  public int getLiveVoices() {
+    return (int)current_[AndroidGlue.CPU_LIVE_VOICES];
+  }
+
+  // Reports the mean time per block of each stage in microseconds, with the share of the time
+  // the block takes to play, and the voices rendered.
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    double total = 0;
+    for (int stage = 0; stage < STAGE_NAMES.length; stage++) {
+      double nanos = getNanosPerBlock(stage);
+      total += nanos;
+      sb.append(STAGE_NAMES[stage] + " = " + micros(nanos) + "us, ");
+    }
+    sb.append("total = " + micros(total) + "us (" + Math.round(total * 100 / blockNanos_) +
+        "% of " + micros(blockNanos_) + "us), fm core per voice = " +
+        micros(getFmCoreNanosPerVoice()) + "us, mean voices = " +
+        Math.round(getMeanVoices() * 10) / 10.0 + ", live voices = " + getLiveVoices());
+    return sb.toString();
+  }
+
+  private long delta(int index) {
+    return current_[index] - previous_[index];
+  }
+
+  private static String micros(double nanos) {
+    return Double.toString(Math.round(nanos * 1e-2) / 10.0);
+  }
+
+  // The names of the AndroidGlue.CPU_ times, in order.
+  static final String[] STAGE_NAMES = { "midi", "voices", "fm core", "filter", "convert" };
+  // The number of samples the synth renders at a time, N in synth.h.
+  static final int BLOCK_SIZE = 64;
+  final double blockNanos_;
+  long[] previous_;
+  long[] current_;
+}
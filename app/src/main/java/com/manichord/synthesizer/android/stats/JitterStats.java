@@ -1,59 +1,159 @@
 package com.manichord.synthesizer.android.stats;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.manichord.synthesizer.android.AndroidGlue;
+
 public class JitterStats {
   public JitterStats() {
-    startTime_ = new double[N_STATS];
-    endTime_ = new double[N_STATS];
-
-  }
-
-  // Takes stats buf in format from android_glue
-  public void aggregate(byte[] statsBuf) {
-    String[] lines = new String(statsBuf).split("\n");
-    for (int i = 0; i < lines.length; i++) {
-      String[] toks = lines[i].split(" ");
-      if (toks.length == 3 && "ts".equals(toks[0])) {
-        double startTime = Double.parseDouble(toks[1]);
-        double endTime = Double.parseDouble(toks[2]);
-        startTime_[bufIx_] = startTime;
-        endTime_[bufIx_] = endTime;
-        bufIx_ = (bufIx_ + 1) % N_STATS;
-        double cbTime = endTime - startTime;
-        meanCbTime_ += (cbTime - meanCbTime_) * .01;
+    startTime_ = new long[N_STATS];
+    endTime_ = new long[N_STATS];
+    records_ = ByteBuffer.allocateDirect(N_RECORDS * AndroidGlue.STATS_RECORD_SIZE)
+        .order(ByteOrder.nativeOrder());
+    cbTimes_ = new LatencyHistogram();
+    startJitter_ = new LatencyHistogram();
+    underruns_ = new AtomicLong();
+  }
+
+  // Reads the records the synth has written since the last call, and aggregates them.
+  // Returns the number of records read.
+  public int collect(AndroidGlue glue) {
+    int total = 0;
+    int count;
+    do {
+      count = glue.readStats(records_);
+      aggregate(records_, count);
+      total += count;
+    } while (count == N_RECORDS);
+    return total;
+  }
+
+  // Takes count stats records in the format from android_glue, starting at the start of buf.
+  public void aggregate(ByteBuffer buf, int count) {
+    for (int i = 0; i < count; i++) {
+      int record = i * AndroidGlue.STATS_RECORD_SIZE;
+      long startTime = buf.getLong(record + AndroidGlue.STATS_START_NANOS);
+      long endTime = buf.getLong(record + AndroidGlue.STATS_END_NANOS);
+      startTime_[bufIx_] = startTime;
+      endTime_[bufIx_] = endTime;
+      bufIx_ = (bufIx_ + 1) % N_STATS;
+      double cbTime = (endTime - startTime) * 1e-9;
+      meanCbTime_ += (cbTime - meanCbTime_) * .01;
+      cbTimes_.record(endTime - startTime);
+      recordSchedule(startTime, endTime, buf.getInt(record + AndroidGlue.STATS_SAMPLES),
+                     buf.getInt(record + AndroidGlue.STATS_QUEUE_DEPTH));
+      voices_ = buf.getInt(record + AndroidGlue.STATS_VOICES);
+      maxInputBytes_ = Math.max(maxInputBytes_,
+                                buf.getInt(record + AndroidGlue.STATS_INPUT_BYTES));
+    }
+  }
+
+  // Compares a callback against the one before it.  A callback is due one period after the
+  // previous one started, and its samples are needed by the time the buffers queued ahead of it
+  // have played out, one period for each buffer in the queue but the one playing; finishing after
+  // that counts as an underrun.  This is the deadline android_glue resizes the output by.  The
+  // period is the length of the previous callback's buffer if the sample rate is set, and the
+  // nominal period otherwise.
+  private void recordSchedule(long startTime, long endTime, int samples, int queueDepth) {
+    long period = lastPeriod_;
+    long due = lastStartTime_ + period;
+    // After a pause, or records dropped while nobody was collecting, there is nothing to compare.
+    if (period > 0 && lastStartTime_ != 0 && startTime - lastStartTime_ < MAX_GAP_NANOS) {
+      startJitter_.record(Math.abs(startTime - due));
+      if (endTime - due > (queueDepth - 1) * period) {
+        underruns_.incrementAndGet();
       }
     }
+    lastStartTime_ = startTime;
+    lastPeriod_ = sampleRate_ > 0 ? samples * 1000000000L / sampleRate_
+        : (long)(nominalCbPeriod_ * 1e9);
+  }
+
+  // The time each callback took to render, in nanoseconds.
+  public LatencyHistogram getCbTimes() {
+    return cbTimes_;
+  }
+
+  // How far each callback started from one nominal period after the previous one, in nanoseconds.
+  public LatencyHistogram getStartJitter() {
+    return startJitter_;
+  }
+
+  // The number of callbacks that finished too late to keep the output fed.
+  public long getUnderruns() {
+    return underruns_.get();
+  }
+
+  // A moving average of the time each callback took, in seconds.
+  public double getMeanCbTime() {
+    return meanCbTime_;
+  }
+
+  // Reports percentiles of callback time and start jitter, and the underrun count, since the last
+  // reset.  If reset is set, starts counting again from zero, without losing any callback
+  // collected meanwhile, so a long session can be reported in intervals.
+  public String reportPercentiles(boolean reset) {
+    LatencyHistogram.Snapshot cbTimes =
+        reset ? cbTimes_.snapshotAndReset() : cbTimes_.snapshot();
+    LatencyHistogram.Snapshot startJitter =
+        reset ? startJitter_.snapshotAndReset() : startJitter_.snapshot();
+    long underruns = reset ? underruns_.getAndSet(0) : underruns_.get();
+    return "cb time: " + cbTimes.report() + "\nstart jitter: " + startJitter.report() +
+        "\nunderruns = " + underruns;
   }
 
   public String report() {
-    double maxCbTime = 0.0;
+    long maxCbTime = 0;
     for (int i = 0; i < N_STATS; i++) {
-      double cbTime = endTime_[i] - startTime_[i];
+      long cbTime = endTime_[i] - startTime_[i];
       maxCbTime = Math.max(maxCbTime, cbTime);
     }
-    return "max cb = " + Double.toString(maxCbTime * 1000) + "ms";
+    return "max cb = " + Double.toString(maxCbTime * 1e-6) + "ms, voices = " + voices_ +
+        ", max midi queue = " + maxInputBytes_ + ", underruns = " + underruns_.get();
   }
 
   public void setNominalCb(double nominalCb) {
     nominalCbPeriod_ = nominalCb;
   }
 
+  // Sets the output's sample rate, so that the period of each callback follows the size of its
+  // buffer, which the synth changes as it adapts to the device.
+  public void setSampleRate(int sampleRate) {
+    sampleRate_ = sampleRate;
+  }
+
   public String reportLong() {
     StringBuilder sb = new StringBuilder();
-    double startTime = startTime_[bufIx_];
+    long startTime = startTime_[bufIx_];
     for (int i = 0; i < N_STATS; i++) {
-      double nominalStart = startTime + nominalCbPeriod_ * i;
-      double thisStart = startTime_[(bufIx_ + i) % N_STATS] - nominalStart;
-      double thisEnd = endTime_[(bufIx_ + i) % N_STATS] - nominalStart;
+      double nominalStart = nominalCbPeriod_ * i;
+      double thisStart = (startTime_[(bufIx_ + i) % N_STATS] - startTime) * 1e-9 - nominalStart;
+      double thisEnd = (endTime_[(bufIx_ + i) % N_STATS] - startTime) * 1e-9 - nominalStart;
       sb.append(thisStart + " " + thisEnd + "\n");
     }
     return sb.toString();
   }
 
   static final int N_STATS = 2000;
+  // The number of records read from the synth at a time.
+  static final int N_RECORDS = 256;
+  // A longer gap between callbacks is a pause rather than jitter.
+  static final long MAX_GAP_NANOS = 1000000000L;
   double meanCbTime_;
-  double startTime_[];
-  double endTime_[];
+  long startTime_[];
+  long endTime_[];
   double nominalCbPeriod_;
+  int sampleRate_;
   int bufIx_ = 0;
+  int voices_;
+  int maxInputBytes_;
+  final ByteBuffer records_;
+  long lastStartTime_;
+  long lastPeriod_;
+  final LatencyHistogram cbTimes_;
+  final LatencyHistogram startJitter_;
+  final AtomicLong underruns_;
 
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds, bucketed logarithmically in the style of HdrHistogram:
+ * each power of two is split into 32 linear sub-buckets, so any recorded value is reported within
+ * about 3% while the whole range from 1ns to minutes takes about 1200 counters.  Memory is fixed,
+ * so it can run for hours.
+ *
+ * Recording and taking snapshots are lock-free and can happen on different threads.
+ * snapshotAndReset() moves each count into the snapshot atomically, so a value recorded during
+ * the reset ends up in either this snapshot or the next one, never in both or neither.
+ */
+public class LatencyHistogram {
+  public LatencyHistogram() {
+    counts_ = new AtomicLongArray(BUCKET_COUNT);
+    max_ = new AtomicLong();
+  }
+
+  // Records one value, in nanoseconds.  Negative values count as 0, and values beyond the
+  // range (about 18 minutes) as the largest value in the range.
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts_.incrementAndGet(bucketOf(Math.min(value, MAX_VALUE)));
+    long max = max_.get();
+    while (value > max && !max_.compareAndSet(max, value)) {
+      max = max_.get();
+    }
+  }
+
+  // Returns a copy of the current counts.
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = counts_.get(i);
+    }
+    return new Snapshot(counts, max_.get());
+  }
+
+  // Returns a copy of the current counts and starts counting again from zero.
+  public Snapshot snapshotAndReset() {
+    long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = counts_.getAndSet(i, 0);
+    }
+    return new Snapshot(counts, max_.getAndSet(0));
+  }
+
+  // An immutable copy of a histogram's counts.
+  public static class Snapshot {
+    Snapshot(long[] counts, long max) {
+      counts_ = counts;
+      max_ = max;
+      long total = 0;
+      for (int i = 0; i < counts.length; i++) {
+        total += counts[i];
+      }
+      totalCount_ = total;
+    }
+
+    public long getTotalCount() {
+      return totalCount_;
+    }
+
+    // Returns the exact largest value recorded, or 0 if there were none.
+    public long getMax() {
+      return max_;
+    }
+
+    // Returns the value below which the given fraction (0 to 1) of recorded values fall, rounded
+    // up to the top of its bucket and capped at the maximum, or 0 if there were none.
+    public long getValueAtPercentile(double fraction) {
+      if (totalCount_ == 0) {
+        return 0;
+      }
+      long rank = Math.max(1, (long)Math.ceil(fraction * totalCount_));
+      long seen = 0;
+      for (int i = 0; i < counts_.length; i++) {
+        seen += counts_[i];
+        if (seen >= rank) {
+          return Math.min(highestValueIn(i), max_);
+        }
+      }
+      return max_;
+    }
+
+    // Returns the number of recorded values greater than value.  Since values are bucketed, the
+    // count includes values up to 3% below it.
+    public long getCountAbove(long value) {
+      long count = 0;
+      for (int i = bucketOf(Math.min(Math.max(value, 0), MAX_VALUE)) + 1; i < counts_.length;
+           i++) {
+        count += counts_[i];
+      }
+      return count;
+    }
+
+    // Reports p50, p90, p99, p99.9 and the maximum, in milliseconds.
+    public String report() {
+      return "p50 = " + millis(getValueAtPercentile(.5)) +
+          "ms, p90 = " + millis(getValueAtPercentile(.9)) +
+          "ms, p99 = " + millis(getValueAtPercentile(.99)) +
+          "ms, p99.9 = " + millis(getValueAtPercentile(.999)) +
+          "ms, max = " + millis(max_) + "ms (n = " + totalCount_ + ")";
+    }
+
+    private static String millis(long nanos) {
+      return Double.toString(Math.round(nanos * 1e-3) / 1000.0);
+    }
+
+    private final long[] counts_;
+    private final long max_;
+    private final long totalCount_;
+  }
+
+  // Returns the bucket a value between 0 and MAX_VALUE falls in.
+  static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int)(value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  // Returns the largest value that falls in a bucket.
+  static long highestValueIn(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+  // Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  // The largest value that can be recorded exactly, about 18 minutes in nanoseconds.
+  static final long MAX_VALUE = (1L << 40) - 1;
+  private static final int BUCKET_COUNT = bucketOf(MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts_;
+  private final AtomicLong max_;
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.stats;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.manichord.synthesizer.android.AndroidGlue;
+import com.manichord.synthesizer.core.midi.NoteTracer;
+
+// Latency of traced note-ons from their source to the first audio buffer that sounds them, per
+// hop.  System.nanoTime() and the synth's CLOCK_MONOTONIC are the same clock on Android, so the
+// Java and native stamps can be compared directly.  The time the buffer then spends queued in the
+// audio output isn't included.  collect() and aggregate() are called from one thread at a time;
+// the histograms and getTraced() may be read from any.
+public class NoteLatencyStats {
+  public NoteLatencyStats(NoteTracer tracer) {
+    tracer_ = tracer;
+    hops_ = new LatencyHistogram[NoteTracer.HOP_COUNT];
+    for (int hop = 1; hop < NoteTracer.HOP_COUNT; hop++) {
+      hops_[hop] = new LatencyHistogram();
+    }
+    total_ = new LatencyHistogram();
+    stamps_ = new long[NoteTracer.HOP_COUNT];
+    records_ = ByteBuffer.allocateDirect(N_RECORDS * AndroidGlue.TRACE_RECORD_SIZE)
+        .order(ByteOrder.nativeOrder());
+  }
+
+  // Reads the traces the synth has written since the last call, and aggregates them.
+  // Returns the number of traces read.
+  public int collect(AndroidGlue glue) {
+    int total = 0;
+    int count;
+    do {
+      count = glue.readTraces(records_);
+      aggregate(records_, count);
+      total += count;
+    } while (count == N_RECORDS);
+    return total;
+  }
+
+  // Takes count trace records in the format from android_glue, starting at the start of buf,
+  // and matches each with the Java stamps of the same id.
+  public void aggregate(ByteBuffer buf, int count) {
+    for (int i = 0; i < count; i++) {
+      int record = i * AndroidGlue.TRACE_RECORD_SIZE;
+      if (!tracer_.getStamps(buf.getInt(record + AndroidGlue.TRACE_ID), stamps_)) {
+        continue;
+      }
+      stamps_[NoteTracer.HOP_PARSE] = buf.getLong(record + AndroidGlue.TRACE_PARSE_NANOS);
+      stamps_[NoteTracer.HOP_RENDER] = buf.getLong(record + AndroidGlue.TRACE_RENDER_NANOS);
+      // Each hop is timed from the last hop before it that the note passed.
+      long last = stamps_[NoteTracer.HOP_SOURCE];
+      for (int hop = 1; hop < NoteTracer.HOP_COUNT; hop++) {
+        if (stamps_[hop] != 0) {
+          hops_[hop].record(stamps_[hop] - last);
+          last = stamps_[hop];
+        }
+      }
+      total_.record(last - stamps_[NoteTracer.HOP_SOURCE]);
+      traced_++;
+    }
+  }
+
+  // The time from the hop before to the given hop, in nanoseconds.
+  public LatencyHistogram getHop(int hop) {
+    return hops_[hop];
+  }
+
+  // The time from the source to the first buffer with the note, in nanoseconds.
+  public LatencyHistogram getTotal() {
+    return total_;
+  }
+
+  // Reports percentiles of the latency of each hop, and the total.  If reset is set, starts
+  // counting again from zero.
+  public String report(boolean reset) {
+    StringBuilder sb = new StringBuilder();
+    for (int hop = 1; hop < NoteTracer.HOP_COUNT; hop++) {
+      LatencyHistogram.Snapshot snapshot =
+          reset ? hops_[hop].snapshotAndReset() : hops_[hop].snapshot();
+      sb.append(HOP_NAMES[hop] + ": " + snapshot.report() + "\n");
+    }
+    LatencyHistogram.Snapshot total = reset ? total_.snapshotAndReset() : total_.snapshot();
+    sb.append("total: " + total.report());
+    return sb.toString();
+  }
+
+  // The number of notes traced all the way to the synth.
+  public long getTraced() {
+    return traced_;
+  }
+
+  static final String[] HOP_NAMES = { "source", "fan out", "send", "parse", "render" };
+  // The number of records read from the synth at a time.
+  static final int N_RECORDS = 64;
+  final NoteTracer tracer_;
+  final LatencyHistogram[] hops_;
+  final LatencyHistogram total_;
+  final long[] stamps_;
+  final ByteBuffer records_;
+  volatile long traced_;
+}
@@ -27,20 +27,35 @@ import android.hardware.usb.UsbInterface;
 import android.os.Build;
 import android.util.Log;
 
-import com.manichord.synthesizer.core.midi.MessageFromBytes;
+import com.manichord.synthesizer.android.metrics.Counter;
+import com.manichord.synthesizer.android.metrics.MetricsRegistry;
 import com.manichord.synthesizer.core.midi.MidiListener;
+import com.manichord.synthesizer.core.midi.MidiStreamParser;
+import com.manichord.synthesizer.core.midi.NoteTracer;
 
 @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
 public class UsbMidiDevice {
-  private MidiListener mReceiver;
+  private final MidiStreamParser mParser;
   private final UsbDeviceConnection mDeviceConnection;
   private final UsbEndpoint mEndpoint;
 
   private final WaiterThread mWaiterThread = new WaiterThread();
 
-  public UsbMidiDevice(MidiListener receiver, UsbDeviceConnection connection, UsbInterface intf) {
-    mReceiver = receiver;
+  // USB transfers that brought data, and the USB-MIDI event packets in them that carried midi.
+  private final Counter mPackets;
+  private final Counter mEvents;
+
+  // The number of midi bytes in a USB-MIDI event packet, by Code Index Number.
+  private static final int[] PAYLOAD_BYTES = {
+    0, 0, 2, 3, 3, 1, 2, 3, 3, 3, 3, 3, 2, 2, 3, 1
+  };
+
+  public UsbMidiDevice(MidiListener receiver, UsbDeviceConnection connection, UsbInterface intf,
+                       MetricsRegistry metrics) {
+    mParser = new MidiStreamParser(receiver);
     mDeviceConnection = connection;
+    mPackets = metrics.counter("usb.packets");
+    mEvents = metrics.counter("events.usb");
 
     mEndpoint = getInputEndpoint(intf);
   }
@@ -70,7 +85,7 @@ public class UsbMidiDevice {
   }
 
   public void replaceReceiver(MidiListener receiver) {
-    mReceiver = receiver;
+    mParser.setListener(receiver);
   }
 
   // A helper function for clients that might want to query whether a
@@ -108,18 +123,22 @@ public class UsbMidiDevice {
           //Log.e("synth", "bulkTransfer error " + nBytes);
           //  break;
         }
-        for (int i = 0; i < nBytes; i += 4) {
+        if (nBytes > 0) {
+          mPackets.increment();
+        }
+        NoteTracer tracer = NoteTracer.getInstance();
+        long received = tracer != null ? System.nanoTime() : 0;
+        // Each 4 byte USB-MIDI event packet carries up to 3 bytes of the midi stream; the
+        // parser puts SysEx and running status back together across packets.
+        for (int i = 0; i + 4 <= nBytes; i += 4) {
           int codeIndexNumber = buf[i] & 0xf;
-          int payloadBytes = 0;
-          if (codeIndexNumber == 8 || codeIndexNumber == 9 || codeIndexNumber == 11 ||
-                  codeIndexNumber == 14) {
-            payloadBytes = 3;
-          } else if (codeIndexNumber == 12) {
-            payloadBytes = 2;
+          if (tracer != null && codeIndexNumber == 0x9 && buf[i + 3] != 0) {
+            tracer.begin(buf[i + 2], received);
           }
+          int payloadBytes = PAYLOAD_BYTES[codeIndexNumber];
           if (payloadBytes > 0) {
-            //Log.d("synth", "sending midi");
-            MessageFromBytes.send(mReceiver, buf, i + 1, payloadBytes);
+            mEvents.increment();
+            mParser.parse(buf, i + 1, payloadBytes);
           }
         }
       }
@@ -28,6 +28,7 @@ import android.view.MotionEvent;
 import android.view.View;
 
 import com.manichord.synthesizer.core.midi.MidiListener;
+import com.manichord.synthesizer.core.midi.NoteTracer;
 
 public class KeyboardView extends View {
   public KeyboardView(Context context, AttributeSet attrs) {
@@ -222,6 +223,10 @@ public class KeyboardView extends View {
       noteForFinger_[id] = note;
       noteStatus_[note] = (byte)velocity;
       if (midiListener_ != null) {
+        NoteTracer tracer = NoteTracer.getInstance();
+        if (tracer != null) {
+          tracer.begin(note, System.nanoTime());
+        }
         midiListener_.onNoteOn(0, note, velocity);
       }
       return true;
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An AsyncMidiListener takes events on any number of threads and passes them on to another
+ * listener on its own thread, so that a slow listener never holds up the thread that sent the
+ * event.  Events are queued in a fixed-size lock-free ring of primitive slots: queueing a channel
+ * message doesn't allocate, and if the listener falls so far behind that the ring fills up, new
+ * events are dropped and counted instead of blocking the sender.
+ * @see MidiBroadcaster
+ */
+public class AsyncMidiListener implements MidiListener, PackedMidiListener {
+  /**
+   * Creates a new AsyncMidiListener.  Call start() to begin delivering events.
+   * @param listener - The listener to pass events on to.
+   * @param capacity - The number of events that can be queued, rounded up to a power of 2.
+   */
+  public AsyncMidiListener(MidiListener listener, int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    listener_ = listener;
+    packedListener_ = PackedToMidiListener.adapt(listener);
+    mask_ = size - 1;
+    sequences_ = new AtomicLongArray(size);
+    for (int i = 0; i < size; ++i) {
+      sequences_.set(i, i);
+    }
+    kinds_ = new int[size];
+    args_ = new int[size];
+    timestamps_ = new long[size];
+    data_ = new byte[size][];
+    tail_ = new AtomicLong();
+    dropped_ = new AtomicLong();
+  }
+
+  /**
+   * Starts the thread that delivers events.  An AsyncMidiListener can only be started once.
+   */
+  public synchronized void start() {
+    if (thread_ != null || stopped_) {
+      return;
+    }
+    thread_ = new Thread(new Runnable() {
+      public void run() {
+        deliver();
+      }
+    }, "AsyncMidiListener");
+    thread_.setDaemon(true);
+    thread_.start();
+  }
+
+  /**
+   * Stops delivering events.  Events still in the queue are discarded.
+   */
+  public synchronized void stop() {
+    stopped_ = true;
+    Thread thread = thread_;
+    thread_ = null;
+    if (thread != null) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  /**
+   * Returns the number of events dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    return dropped_.get();
+  }
+
+  /**
+   * Adds an event to the queue, or counts it as dropped if the queue is full.
+   */
+  private void offer(int kind, int arg, long timestampNanos, byte[] data) {
+    long pos = tail_.get();
+    int index;
+    while (true) {
+      index = (int)(pos & mask_);
+      long difference = sequences_.get(index) - pos;
+      if (difference == 0) {
+        if (tail_.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+        pos = tail_.get();
+      } else if (difference < 0) {
+        dropped_.incrementAndGet();
+        return;
+      } else {
+        pos = tail_.get();
+      }
+    }
+    kinds_[index] = kind;
+    args_[index] = arg;
+    timestamps_[index] = timestampNanos;
+    data_[index] = data;
+    // Publishes the slot to the delivery thread.
+    sequences_.set(index, pos + 1);
+    if (waiting_) {
+      Thread thread = thread_;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * The body of the delivery thread.
+   */
+  private void deliver() {
+    Thread self = Thread.currentThread();
+    long head = 0;
+    while (thread_ == self) {
+      int index = (int)(head & mask_);
+      if (sequences_.get(index) != head + 1) {
+        waiting_ = true;
+        if (sequences_.get(index) != head + 1) {
+          LockSupport.parkNanos(this, MAX_PARK_NANOS);
+        }
+        waiting_ = false;
+        continue;
+      }
+      int kind = kinds_[index];
+      int arg = args_[index];
+      long timestamp = timestamps_[index];
+      byte[] data = data_[index];
+      data_[index] = null;
+      // Hands the slot back to the producers, one lap ahead.
+      sequences_.set(index, head + mask_ + 1);
+      ++head;
+      dispatch(kind, arg, timestamp, data);
+    }
+  }
+
+  /**
+   * Passes one queued event on to the listener.
+   */
+  private void dispatch(int kind, int arg, long timestamp, byte[] data) {
+    switch (kind) {
+      case PACKED: packedListener_.onPackedMessage(arg, timestamp); break;
+      case TIMING_CLOCK: listener_.onTimingClock(); break;
+      case ACTIVE_SENSING: listener_.onActiveSensing(); break;
+      case SEQUENCE_NUMBER: listener_.onSequenceNumber(arg); break;
+      case TEXT: listener_.onText(data); break;
+      case COPYRIGHT_NOTICE: listener_.onCopyrightNotice(data); break;
+      case SEQUENCE_NAME: listener_.onSequenceName(data); break;
+      case INSTRUMENT_NAME: listener_.onInstrumentName(data); break;
+      case LYRICS: listener_.onLyrics(data); break;
+      case MARKER: listener_.onMarker(data); break;
+      case CUE_POINT: listener_.onCuePoint(data); break;
+      case CHANNEL_PREFIX: listener_.onChannelPrefix(arg); break;
+      case PORT: listener_.onPort(data); break;
+      case END_OF_TRACK: listener_.onEndOfTrack(); break;
+      case SET_TEMPO: listener_.onSetTempo(arg); break;
+      case SMPTE_OFFSET: listener_.onSmpteOffset(data); break;
+      case TIME_SIGNATURE:
+        listener_.onTimeSignature(arg & 0xFF, (arg >> 8) & 0xFF, (arg >> 16) & 0xFF,
+                                  (arg >> 24) & 0xFF);
+        break;
+      case KEY_SIGNATURE: listener_.onKeySignature(arg >> 1, (arg & 1) != 0); break;
+      case SEQUENCER_SPECIFIC_EVENT: listener_.onSequencerSpecificEvent(data); break;
+      case SYSEX: listener_.onSysEx(data); break;
+    }
+  }
+
+  // Packed channel messages.
+  public void onPackedMessage(int packed, long timestampNanos) {
+    offer(PACKED, packed, timestampNanos, null);
+  }
+
+  //
+  // The rest of these methods are just midi listener events.
+  //
+
+  public void onNoteOff(int channel, int note, int velocity) {
+    offer(PACKED, PackedMessage.pack(0x80 | channel, note, velocity), System.nanoTime(), null);
+  }
+
+  public void onNoteOn(int channel, int note, int velocity) {
+    offer(PACKED, PackedMessage.pack(0x90 | channel, note, velocity), System.nanoTime(), null);
+  }
+
+  public void onNoteAftertouch(int channel, int note, int aftertouch) {
+    offer(PACKED, PackedMessage.pack(0xA0 | channel, note, aftertouch), System.nanoTime(), null);
+  }
+
+  public void onController(int channel, int control, int value) {
+    offer(PACKED, PackedMessage.pack(0xB0 | channel, control, value), System.nanoTime(), null);
+  }
+
+  public void onProgramChange(int channel, int program) {
+    offer(PACKED, PackedMessage.pack(0xC0 | channel, program, 0), System.nanoTime(), null);
+  }
+
+  public void onChannelAftertouch(int channel, int aftertouch) {
+    offer(PACKED, PackedMessage.pack(0xD0 | channel, aftertouch, 0), System.nanoTime(), null);
+  }
+
+  public void onPitchBend(int channel, int value) {
+    offer(PACKED, PackedMessage.pack(0xE0 | channel, value & 0x7F, value >> 7), System.nanoTime(),
+          null);
+  }
+
+  public void onTimingClock() {
+    offer(TIMING_CLOCK, 0, 0, null);
+  }
+
+  public void onActiveSensing() {
+    offer(ACTIVE_SENSING, 0, 0, null);
+  }
+
+  public void onSequenceNumber(int sequenceNumber) {
+    offer(SEQUENCE_NUMBER, sequenceNumber, 0, null);
+  }
+
+  public void onText(byte[] text) {
+    offer(TEXT, 0, 0, text);
+  }
+
+  public void onCopyrightNotice(byte[] text) {
+    offer(COPYRIGHT_NOTICE, 0, 0, text);
+  }
+
+  public void onSequenceName(byte[] text) {
+    offer(SEQUENCE_NAME, 0, 0, text);
+  }
+
+  public void onInstrumentName(byte[] text) {
+    offer(INSTRUMENT_NAME, 0, 0, text);
+  }
+
+  public void onLyrics(byte[] text) {
+    offer(LYRICS, 0, 0, text);
+  }
+
+  public void onMarker(byte[] text) {
+    offer(MARKER, 0, 0, text);
+  }
+
+  public void onCuePoint(byte[] text) {
+    offer(CUE_POINT, 0, 0, text);
+  }
+
+  public void onChannelPrefix(int channel) {
+    offer(CHANNEL_PREFIX, channel, 0, null);
+  }
+
+  public void onPort(byte[] data) {
+    offer(PORT, 0, 0, data);
+  }
+
+  public void onEndOfTrack() {
+    offer(END_OF_TRACK, 0, 0, null);
+  }
+
+  public void onSetTempo(int microsecondsPerQuarterNote) {
+    offer(SET_TEMPO, microsecondsPerQuarterNote, 0, null);
+  }
+
+  public void onSmpteOffset(byte[] data) {
+    offer(SMPTE_OFFSET, 0, 0, data);
+  }
+
+  public void onTimeSignature(int numerator,
+                              int denominator,
+                              int metronomePulse,
+                              int thirtySecondNotesPerQuarterNote) {
+    offer(TIME_SIGNATURE, (numerator & 0xFF) | ((denominator & 0xFF) << 8) |
+          ((metronomePulse & 0xFF) << 16) | (thirtySecondNotesPerQuarterNote << 24), 0, null);
+  }
+
+  public void onKeySignature(int key, boolean isMinor) {
+    offer(KEY_SIGNATURE, (key << 1) | (isMinor ? 1 : 0), 0, null);
+  }
+
+  public void onSequencerSpecificEvent(byte[] data) {
+    offer(SEQUENCER_SPECIFIC_EVENT, 0, 0, data);
+  }
+
+  public void onSysEx(byte[] data) {
+    offer(SYSEX, 0, 0, data);
+  }
+
+  // The kinds of queued event.
+  private static final int PACKED = 0;
+  private static final int TIMING_CLOCK = 1;
+  private static final int ACTIVE_SENSING = 2;
+  private static final int SEQUENCE_NUMBER = 3;
+  private static final int TEXT = 4;
+  private static final int COPYRIGHT_NOTICE = 5;
+  private static final int SEQUENCE_NAME = 6;
+  private static final int INSTRUMENT_NAME = 7;
+  private static final int LYRICS = 8;
+  private static final int MARKER = 9;
+  private static final int CUE_POINT = 10;
+  private static final int CHANNEL_PREFIX = 11;
+  private static final int PORT = 12;
+  private static final int END_OF_TRACK = 13;
+  private static final int SET_TEMPO = 14;
+  private static final int SMPTE_OFFSET = 15;
+  private static final int TIME_SIGNATURE = 16;
+  private static final int KEY_SIGNATURE = 17;
+  private static final int SEQUENCER_SPECIFIC_EVENT = 18;
+  private static final int SYSEX = 19;
+
+  // The longest the delivery thread sleeps without checking the queue, in case a wakeup is missed.
+  private static final long MAX_PARK_NANOS = 10000000;
+
+  // The listener to pass events on to, and the same listener for packed messages.
+  private final MidiListener listener_;
+  private final PackedMidiListener packedListener_;
+
+  // The queue.  Slot i holds an event once sequences_[i] is one more than the event's position,
+  // and is free for position p once sequences_[i] is p.
+  private final int mask_;
+  private final AtomicLongArray sequences_;
+  private final int[] kinds_;
+  private final int[] args_;
+  private final long[] timestamps_;
+  private final byte[][] data_;
+
+  // The position of the next event to be queued.
+  private final AtomicLong tail_;
+
+  private final AtomicLong dropped_;
+
+  // The delivery thread, or null if it isn't running, and whether it is parked.
+  private volatile Thread thread_;
+  private volatile boolean waiting_;
+
+  // Whether stop() has been called.
+  private boolean stopped_;
+}
@@ -24,7 +24,7 @@ import java.io.IOException;
  * form of each one.
  * @see MidiListener
  */
-public abstract class MessageOutputProcessor implements MidiListener {
+public abstract class MessageOutputProcessor implements MidiListener, PackedMidiListener {
   /**
    * Creates a new MessageOutputProcessor.
    */
@@ -38,6 +38,21 @@ public abstract class MessageOutputProcessor implements MidiListener {
    */
   protected abstract void onMessage(byte[] message);
 
+  /**
+   * Called for each channel voice message.  Subclasses that can send packed messages without
+   * converting them to bytes should override this; by default the message is unpacked into a
+   * reused array and passed to onMessage().
+   * @param packed - The message, packed with PackedMessage.
+   * @param timestampNanos - When the message was generated, or 0 if it isn't known.
+   */
+  public void onPackedMessage(int packed, long timestampNanos) {
+    if (PackedMessage.getLength(packed) == 2) {
+      notify2(packed & 0xFF, (packed >> 8) & 0xFF);
+    } else {
+      notify3(packed & 0xFF, (packed >> 8) & 0xFF, (packed >> 16) & 0xFF);
+    }
+  }
+
   /**
    * Internal function called to flush the internal byte buffer to onMessage().
    */
@@ -51,39 +66,39 @@ public abstract class MessageOutputProcessor implements MidiListener {
   //
 
   public void onNoteOff(int channel, int note, int velocity) {
-    notify3(0x80 | channel, note, velocity);
+    onPackedMessage(PackedMessage.pack(0x80 | channel, note, velocity), 0);
   }
 
   public void onNoteOn(int channel, int note, int velocity) {
-    notify3(0x90 | channel, note, velocity);
+    onPackedMessage(PackedMessage.pack(0x90 | channel, note, velocity), 0);
   }
 
   public void onNoteAftertouch(int channel, int note, int aftertouch) {
-    notify3(0xA0 | channel, note, aftertouch);
+    onPackedMessage(PackedMessage.pack(0xA0 | channel, note, aftertouch), 0);
   }
 
   public void onController(int channel, int control, int value) {
-    notify3(0xB0 | channel, control, value);
+    onPackedMessage(PackedMessage.pack(0xB0 | channel, control, value), 0);
   }
 
   public void onProgramChange(int channel, int program) {
-    notify2(0xC0 | channel, program);
+    onPackedMessage(PackedMessage.pack(0xC0 | channel, program, 0), 0);
   }
 
   public void onChannelAftertouch(int channel, int aftertouch) {
-    notify2(0xD0 | channel, aftertouch);
+    onPackedMessage(PackedMessage.pack(0xD0 | channel, aftertouch, 0), 0);
   }
 
   public void onPitchBend(int channel, int value) {
-    notify3(0xE0 | channel, value & 0x7F, (value >> 7) & 0x7F);
+    onPackedMessage(PackedMessage.pack(0xE0 | channel, value & 0x7F, (value >> 7) & 0x7F), 0);
   }
 
   public void onTimingClock() {
-    buffer_.write(0xF8);
+    notify1(0xF8);
   }
 
   public void onActiveSensing() {
-    buffer_.write(0xFE);
+    notify1(0xFE);
   }
 
   public void onSequenceNumber(int sequenceNumber) {
@@ -200,19 +215,30 @@ public abstract class MessageOutputProcessor implements MidiListener {
   }
 
   /**
-   * TODO(klimt): This might be wrong.  Double-check it. :)
+   * Sends the SysEx message in its wire form: 0xF0, the data, and 0xF7.  As in a midi file, data
+   * is everything after the 0xF0, usually including the 0xF7, which is added if it is missing.
    */
   public void onSysEx(byte[] data) {
     try {
       buffer_.write(0xF0);
-      MidiUtil.writeVarInt(buffer_, data.length);
       buffer_.write(data);
+      if (data.length == 0 || data[data.length - 1] != (byte) 0xF7) {
+        buffer_.write(0xF7);
+      }
       notifyMessage();
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  private void notify1(int b0) {
+    if (buf1_ == null) {
+      buf1_ = new byte[1];
+    }
+    buf1_[0] = (byte) b0;
+    onMessage(buf1_);
+  }
+
   private void notify2(int b0, int b1) {
     if (buf2_ == null) {
       buf2_ = new byte[2];
@@ -246,6 +272,7 @@ public abstract class MessageOutputProcessor implements MidiListener {
 
   // An internal byte buffer to hold intermediate output.
   private ByteArrayOutputStream buffer_;
+  private byte[] buf1_;
   private byte[] buf2_;
   private byte[] buf3_;
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A MidiBroadcaster passes every midi event on to any number of listeners.  The listeners are
+ * kept in a copy-on-write array behind an AtomicReference, so sending an event takes no lock,
+ * and listeners can be added and removed from any thread while events are flowing: each event
+ * goes to exactly the set of listeners that was current when it was sent.
+ *
+ * Every listener is called on the thread that sent the event.  A listener that may be slow, such
+ * as one that updates the UI, should be wrapped in an AsyncMidiListener so that it doesn't hold
+ * up the ones that feed the synthesizer.
+ * @see AsyncMidiListener
+ */
+public class MidiBroadcaster implements MidiListener, PackedMidiListener {
+  /**
+   * Creates a new MidiBroadcaster with no listeners.
+   */
+  public MidiBroadcaster() {
+    targets_ = new AtomicReference<Targets>(new Targets(new MidiListener[0]));
+  }
+
+  /**
+   * Adds a listener.  It starts receiving events from the next one sent.
+   */
+  public void addListener(MidiListener listener) {
+    while (true) {
+      Targets targets = targets_.get();
+      MidiListener[] listeners = new MidiListener[targets.listeners_.length + 1];
+      System.arraycopy(targets.listeners_, 0, listeners, 0, targets.listeners_.length);
+      listeners[listeners.length - 1] = listener;
+      if (targets_.compareAndSet(targets, new Targets(listeners))) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Removes a listener.  An event that is being sent on another thread at the same time may still
+   * reach it.
+   * @return false if listener wasn't added.
+   */
+  public boolean removeListener(MidiListener listener) {
+    while (true) {
+      Targets targets = targets_.get();
+      int index = -1;
+      for (int i = 0; i < targets.listeners_.length; ++i) {
+        if (targets.listeners_[i] == listener) {
+          index = i;
+          break;
+        }
+      }
+      if (index < 0) {
+        return false;
+      }
+      MidiListener[] listeners = new MidiListener[targets.listeners_.length - 1];
+      System.arraycopy(targets.listeners_, 0, listeners, 0, index);
+      System.arraycopy(targets.listeners_, index + 1, listeners, index,
+                       listeners.length - index);
+      if (targets_.compareAndSet(targets, new Targets(listeners))) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of listeners.
+   */
+  public int getListenerCount() {
+    return targets_.get().listeners_.length;
+  }
+
+  // Packed channel messages.
+  public void onPackedMessage(int packed, long timestampNanos) {
+    NoteTracer tracer = NoteTracer.getInstance();
+    if (tracer != null && (packed & 0xF0) == 0x90 && PackedMessage.getData2(packed) != 0) {
+      tracer.stamp(NoteTracer.HOP_FAN_OUT, PackedMessage.getData1(packed));
+    }
+    PackedMidiListener[] listeners = targets_.get().packedListeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onPackedMessage(packed, timestampNanos);
+    }
+  }
+
+  // Control events.
+  public void onNoteOff(int channel, int note, int velocity) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onNoteOff(channel, note, velocity);
+    }
+  }
+
+  public void onNoteOn(int channel, int note, int velocity) {
+    NoteTracer tracer = NoteTracer.getInstance();
+    if (tracer != null && velocity != 0) {
+      tracer.stamp(NoteTracer.HOP_FAN_OUT, note);
+    }
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onNoteOn(channel, note, velocity);
+    }
+  }
+
+  public void onNoteAftertouch(int channel, int note, int aftertouch) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onNoteAftertouch(channel, note, aftertouch);
+    }
+  }
+
+  public void onController(int channel, int control, int value) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onController(channel, control, value);
+    }
+  }
+
+  public void onProgramChange(int channel, int program) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onProgramChange(channel, program);
+    }
+  }
+
+  public void onChannelAftertouch(int channel, int aftertouch) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onChannelAftertouch(channel, aftertouch);
+    }
+  }
+
+  public void onPitchBend(int channel, int value) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onPitchBend(channel, value);
+    }
+  }
+
+  // Other events.
+  public void onTimingClock() {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onTimingClock();
+    }
+  }
+
+  public void onActiveSensing() {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onActiveSensing();
+    }
+  }
+
+  // Meta events.
+  public void onSequenceNumber(int sequenceNumber) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSequenceNumber(sequenceNumber);
+    }
+  }
+
+  public void onText(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onText(text);
+    }
+  }
+
+  public void onCopyrightNotice(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onCopyrightNotice(text);
+    }
+  }
+
+  public void onSequenceName(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSequenceName(text);
+    }
+  }
+
+  public void onInstrumentName(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onInstrumentName(text);
+    }
+  }
+
+  public void onLyrics(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onLyrics(text);
+    }
+  }
+
+  public void onMarker(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onMarker(text);
+    }
+  }
+
+  public void onCuePoint(byte[] text) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onCuePoint(text);
+    }
+  }
+
+  public void onChannelPrefix(int channel) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onChannelPrefix(channel);
+    }
+  }
+
+  public void onPort(byte[] data) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onPort(data);
+    }
+  }
+
+  public void onEndOfTrack() {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onEndOfTrack();
+    }
+  }
+
+  public void onSetTempo(int microsecondsPerQuarterNote) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSetTempo(microsecondsPerQuarterNote);
+    }
+  }
+
+  public void onSmpteOffset(byte[] data) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSmpteOffset(data);
+    }
+  }
+
+  public void onTimeSignature(int numerator,
+                              int denominator,
+                              int metronomePulse,
+                              int thirtySecondNotesPerQuarterNote) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onTimeSignature(numerator, denominator, metronomePulse,
+                                   thirtySecondNotesPerQuarterNote);
+    }
+  }
+
+  public void onKeySignature(int key, boolean isMinor) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onKeySignature(key, isMinor);
+    }
+  }
+
+  public void onSequencerSpecificEvent(byte[] data) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSequencerSpecificEvent(data);
+    }
+  }
+
+  // SysEx events.
+  public void onSysEx(byte[] data) {
+    MidiListener[] listeners = targets_.get().listeners_;
+    for (int i = 0; i < listeners.length; ++i) {
+      listeners[i].onSysEx(data);
+    }
+  }
+
+  /**
+   * An immutable snapshot of the listeners, along with the packed form of each one.
+   */
+  private static class Targets {
+    Targets(MidiListener[] listeners) {
+      listeners_ = listeners;
+      packedListeners_ = new PackedMidiListener[listeners.length];
+      for (int i = 0; i < listeners.length; ++i) {
+        packedListeners_[i] = PackedToMidiListener.adapt(listeners[i]);
+      }
+    }
+
+    final MidiListener[] listeners_;
+    final PackedMidiListener[] packedListeners_;
+  }
+
+  // The current listeners, replaced as a whole on every change.
+  private final AtomicReference<Targets> targets_;
+}
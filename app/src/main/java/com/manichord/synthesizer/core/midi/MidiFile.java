@@ -16,14 +16,21 @@
 
 package com.manichord.synthesizer.core.midi;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 /**
  * MidiFile represents all of the midi information that could be read from a .mid or .smf file.
  * It contains a MidiHeader and 1 or more MidiTrack.
+ *
+ * A MidiFile created with openIndexed() only records where each track's chunk is in the source
+ * buffer.  Tracks are then decoded on demand, either incrementally through openTrack() or all at
+ * once the first time getTrack() or readTrack() is called for them.
  */
 public class MidiFile {
   /**
@@ -45,6 +52,62 @@ public class MidiFile {
     MidiReader.readMidiFile(input, this);
   }
 
+  /**
+   * Creates a new MidiFile from the remaining bytes of a buffer.
+   * @param buffer - The buffer to read the data from, such as a MappedByteBuffer.
+   * @throws IOException - On any error reading the data.
+   */
+  public MidiFile(ByteBuffer buffer) throws IOException {
+    header_ = new MidiHeader();
+    tracks_ = new ArrayList<MidiTrack>();
+    MidiReader.readMidiFile(buffer, this);
+  }
+
+  /**
+   * Creates a new MidiFile from the remaining bytes of a buffer, decoding the tracks in parallel.
+   * @param buffer - The buffer to read the data from, such as a MappedByteBuffer.
+   * @param executor - The executor to decode tracks on, such as a ForkJoinPool.
+   * @throws IOException - On any error reading the data.
+   */
+  public MidiFile(ByteBuffer buffer, ExecutorService executor) throws IOException {
+    header_ = new MidiHeader();
+    tracks_ = new ArrayList<MidiTrack>();
+    MidiReader.readMidiFile(buffer, this, executor);
+  }
+
+  /**
+   * Creates a new MidiFile by mapping a file into memory and reading it in place.
+   * @param input - The file to read the data from.
+   * @throws IOException - On any error reading the data.
+   */
+  public MidiFile(File input) throws IOException {
+    header_ = new MidiHeader();
+    tracks_ = new ArrayList<MidiTrack>();
+    MidiReader.readMidiFile(input, this);
+  }
+
+  /**
+   * Creates a MidiFile that only indexes the track chunks of the file, without decoding any
+   * events.  The file is mapped into memory, so only the parts that are used get paged in.
+   * @param input - The file to read the data from.
+   * @throws IOException - On any error reading the header or chunk index.
+   */
+  public static MidiFile openIndexed(File input) throws IOException {
+    return openIndexed(MidiReader.mapFile(input));
+  }
+
+  /**
+   * Creates a MidiFile that only indexes the track chunks in buffer, without decoding any
+   * events.  The buffer must not be modified while the MidiFile is in use.
+   * @param buffer - The buffer to read the data from.
+   * @throws IOException - On any error reading the header or chunk index.
+   */
+  public static MidiFile openIndexed(ByteBuffer buffer) throws IOException {
+    MidiFile file = new MidiFile();
+    MidiReader.indexMidiFile(buffer, file);
+    return file;
+  }
+
   /**
    * Returns a mutable header object for the file.
    */
@@ -60,10 +123,52 @@ public class MidiFile {
   }
 
   /**
-   * Returns the mutable track at the given index.
+   * Returns the mutable track at the given index.  If the file was opened with openIndexed(),
+   * the whole track is decoded the first time this is called for it; use readTrack() to handle
+   * invalid track data as an IOException.
+   * @throws RuntimeException - If the track has to be decoded and its data is invalid.
    */
   public MidiTrack getTrack(int track) {
-    return tracks_.get(track);
+    try {
+      return readTrack(track);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Returns the mutable track at the given index, like getTrack(), decoding it first if the file
+   * was opened with openIndexed() and it hasn't been decoded yet.
+   * @throws IOException - If the track has to be decoded and its data is invalid.
+   */
+  public MidiTrack readTrack(int track) throws IOException {
+    MidiTrack result = tracks_.get(track);
+    if (result == null) {
+      result = new MidiTrack();
+      MidiReader.readEvents(source_.duplicate(), chunkStarts_[track], chunkEnds_[track], result);
+      tracks_.set(track, result);
+    }
+    return result;
+  }
+
+  /**
+   * Returns a new cursor over the events of the track at the given index.  Tracks that haven't
+   * been decoded yet are decoded incrementally as the cursor advances, so this is the cheapest
+   * way to iterate over a file opened with openIndexed().
+   */
+  public MidiTrackCursor openTrack(int track) {
+    MidiTrack decoded = tracks_.get(track);
+    if (decoded != null) {
+      return new MidiTrackCursor(decoded);
+    }
+    return new MidiTrackCursor(source_.duplicate(), chunkStarts_[track], chunkEnds_[track]);
+  }
+
+  /**
+   * Returns true if this file was opened with openIndexed().
+   */
+  public boolean isIndexed() {
+    return source_ != null;
   }
 
   /**
@@ -71,13 +176,59 @@ public class MidiFile {
    */
   public MidiTrack addTrack() {
     MidiTrack track = new MidiTrack();
-    tracks_.add(track);
+    addTrackEntry(track, null, 0, 0);
     return track;
   }
 
+  /**
+   * Returns the index in the source buffer of the first byte of a track's encoded data.
+   */
+  int getChunkStart(int track) {
+    return chunkStarts_[track];
+  }
+
+  /**
+   * Returns the index in the source buffer just past a track's encoded data.
+   */
+  int getChunkEnd(int track) {
+    return chunkEnds_[track];
+  }
+
+  /**
+   * Adds a track whose events are still encoded in buffer between start and end.
+   */
+  void addTrackChunk(ByteBuffer buffer, int start, int end) {
+    addTrackEntry(null, buffer, start, end);
+  }
+
+  private void addTrackEntry(MidiTrack track, ByteBuffer buffer, int start, int end) {
+    int index = tracks_.size();
+    if (buffer != null) {
+      source_ = buffer;
+    }
+    if (index == chunkStarts_.length) {
+      int[] starts = new int[Math.max(8, index * 2)];
+      int[] ends = new int[starts.length];
+      System.arraycopy(chunkStarts_, 0, starts, 0, index);
+      System.arraycopy(chunkEnds_, 0, ends, 0, index);
+      chunkStarts_ = starts;
+      chunkEnds_ = ends;
+    }
+    chunkStarts_[index] = start;
+    chunkEnds_[index] = end;
+    tracks_.add(track);
+  }
+
   // The header data.
   private MidiHeader header_;
 
-  // The list of tracks.
+  // The list of tracks.  Tracks that haven't been decoded yet are null.
   private List<MidiTrack> tracks_;
+
+  // For an indexed file, the buffer holding the encoded tracks.
+  private ByteBuffer source_;
+
+  // The bounds of each track's data in source_, for tracks that haven't been decoded.
+  private int[] chunkStarts_ = new int[0];
+  private int[] chunkEnds_ = new int[0];
 }
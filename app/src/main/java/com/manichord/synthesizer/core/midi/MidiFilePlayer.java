@@ -16,17 +16,29 @@
 
 package com.manichord.synthesizer.core.midi;
 
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
-import java.util.logging.Level;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 /**
  * A MidiFilePlayer can play .mid or .smf files using the specified MultiChannelSynthesizer.
  */
 public class MidiFilePlayer extends MidiAdapter {
+  /**
+   * A TimingListener is told how late each event was dispatched relative to its deadline.
+   */
+  public interface TimingListener {
+    /**
+     * Called from the playing thread just before an event is dispatched.
+     * @param tick - The time of the event, in midi "ticks" from the start of the file.
+     * @param latenessNanos - How long after its deadline the event is being dispatched.
+     */
+    void onEventTiming(long tick, long latenessNanos);
+  }
+
   /**
    * Creates a new MidiFilePlayer and connects it to a synthesizer.
    * @param listeners - The synthesizer to use for playback.
@@ -34,7 +46,19 @@ public class MidiFilePlayer extends MidiAdapter {
   public MidiFilePlayer(List<MidiListener> listeners) {
     logger_ = Logger.getLogger(getClass().getName());
     listeners_ = listeners;
-    microsecondsPerQuarterNote_ = 60000000 / 120;
+    microsecondsPerQuarterNote_ = TempoMap.DEFAULT_MICROSECONDS_PER_QUARTER_NOTE;
+    activeNotes_ = new boolean[16 * 128];
+    lock_ = new Object();
+    seekTick_ = -1;
+    seekNanos_ = -1;
+    seekPending_ = false;
+  }
+
+  /**
+   * Sets a listener to receive the measured lateness of every event played, or null for none.
+   */
+  public void setTimingListener(TimingListener timingListener) {
+    timingListener_ = timingListener;
   }
 
   /**
@@ -44,74 +68,290 @@ public class MidiFilePlayer extends MidiAdapter {
    * @throws IOException - On any kind of read error or invalid file format.
    */
   public void play(InputStream input) throws IOException {
-    microsecondsPerQuarterNote_ = 60000000 / 120;
+    play(new MidiFile(input));
+  }
+
+  /**
+   * Plays a midi file on its associated synthesizer.  Only the chunk index is read up front, and
+   * each track is decoded incrementally as playback reaches it, so playback starts immediately
+   * and memory use doesn't grow with the size of the file.
+   * The function blocks and returns only when the file has finished playing.
+   * @param input - The file to play.
+   * @throws IOException - On any kind of read error or invalid file format.
+   */
+  public void play(File input) throws IOException {
+    play(MidiFile.openIndexed(input));
+  }
+
+  /**
+   * Plays a midi file on its associated synthesizer, streaming it: the tracks are merged as they
+   * play and tempo changes are followed as they are reached.
+   *
+   * Streaming and playing a compiled MidiSequence trade start-up cost against per-event and
+   * seek cost.  Streaming reads nothing ahead of the first note and takes memory independent of
+   * the length of the file, but every event is decoded from its track and goes through the
+   * TrackHeap as it plays, and the first seek stalls playback while the whole file is scanned to
+   * build the tempo map and controller state.  Compiling with MidiSequence.compile() reads the
+   * whole file and holds every event in flat arrays before the first note, and in return
+   * play(MidiSequence) dispatches without decoding or allocating and seeks without a scan.  So
+   * stream a file that is played once from the start, and compile one that is played more than
+   * once or seeked in.
+   * The function blocks and returns only when the file has finished playing.
+   * @param midi - The file to play.
+   * @throws IOException - On any kind of read error or invalid file format.
+   */
+  public void play(MidiFile midi) throws IOException {
+    microsecondsPerQuarterNote_ = TempoMap.DEFAULT_MICROSECONDS_PER_QUARTER_NOTE;
     double bpm = 60000000.0 / microsecondsPerQuarterNote_;
     logger_.info("Setting tempo to " + bpm + " bpm.");
+    int ticksPerBeat = Math.max(1, midi.getHeader().getTicksPerBeat());
+
+    // Built the first time playback seeks.
+    TempoMap tempoMap = null;
+    MidiStateIndex stateIndex = null;
 
-    MidiFile midi = new MidiFile(input);
-    int ticksPerBeat = midi.getHeader().getTicksPerBeat();
+    // The play head in each track, positioned on the next event to play.
+    MidiTrackCursor[] cursors = new MidiTrackCursor[midi.getTrackCount()];
 
-    // The position of the play head in each track.
-    int[] position = new int[midi.getTrackCount()];
-    // The time until the next event in each track.
-    long[] deltaTime = new long[midi.getTrackCount()];
-    for (int i = 0; i < position.length; ++i) {
-      position[i] = 0;
-      deltaTime[i] = midi.getTrack(i).getEvent(position[i]).getDeltaTime();
+    // The tracks that still have events, ordered by the tick of their next event.
+    TrackHeap heap = new TrackHeap(cursors.length);
+    for (int i = 0; i < cursors.length; ++i) {
+      cursors[i] = midi.openTrack(i);
+      if (cursors[i].next()) {
+        heap.add(i, cursors[i].getTick());
+      }
     }
 
+    byte[] message = new byte[6];
+
+    // The tick of the last tempo change played, or of the start, and the System.nanoTime() at
+    // which it was due.  Every event's deadline is computed from these rather than from the
+    // previous event, so oversleeping never accumulates.
+    long anchorTick = 0;
+    long anchorNanos = System.nanoTime();
+    int tempo = microsecondsPerQuarterNote_;
+    long maxLateness = 0;
+    playThread_ = Thread.currentThread();
+
     while (true) {
-      // Find the track with the next available time...
-      int track = -1;
-      long minDeltaTime = -1;
-      for (int i = 0; i < midi.getTrackCount(); ++i) {
-        if (position[i] < midi.getTrack(i).getEventCount()) {
-          if (minDeltaTime == -1 || deltaTime[i] < minDeltaTime) {
-            track = i;
-            minDeltaTime = deltaTime[i];
+      if (seekPending_) {
+        if (tempoMap == null) {
+          tempoMap = new TempoMap(midi);
+        }
+        long seekTick = takeSeek(tempoMap);
+        if (seekTick >= 0) {
+          allNotesOff();
+          heap.clear();
+          for (int i = 0; i < cursors.length; ++i) {
+            if (cursors[i].seek(seekTick)) {
+              heap.add(i, cursors[i].getTick());
+            }
+          }
+          if (stateIndex == null) {
+            stateIndex = new MidiStateIndex(midi);
           }
+          stateIndex.restore(seekTick, this);
+          tempo = tempoMap.getMicrosecondsPerQuarterNote(seekTick);
+          onSetTempo(tempo);
+          anchorTick = seekTick;
+          anchorNanos = System.nanoTime();
         }
       }
-      if (track == -1) {
+
+      // The track with the next available time is at the top of the heap.
+      if (heap.isEmpty()) {
+        playThread_ = null;
+        logger_.info("Finished playing, max lateness " + maxLateness / 1000 + " us.");
         return;
       }
+      MidiTrackCursor cursor = cursors[heap.peekTrack()];
+      long tick = cursor.getTick();
+      long deadline = anchorNanos + TempoMap.ticksToNanos(tick - anchorTick, tempo, ticksPerBeat);
+      if (!sleepUntil(deadline)) {
+        continue;
+      }
+      long lateness = System.nanoTime() - deadline;
+      maxLateness = Math.max(maxLateness, lateness);
+      TimingListener timingListener = timingListener_;
+      if (timingListener != null) {
+        timingListener.onEventTiming(tick, lateness);
+      }
 
-      // Extract the next event we're going to do.
-      MidiEvent event = midi.getTrack(track).getEvent(position[track]);
-      if (deltaTime[track] != 0) {
-        try {
-          // Sleep until the next event should occur.
-          double microsecondsPerTick = (double)microsecondsPerQuarterNote_ / ticksPerBeat;
-          double millisecondsPerTick = microsecondsPerTick / 1000.0;
-          double milliseconds = Math.round(millisecondsPerTick * deltaTime[track]);
-          Thread.sleep((int)(milliseconds));
-        } catch (InterruptedException e) {
-          throw new RuntimeException("Interrupted during sleep.");
-        }
+      // Process the event.  As with a compiled sequence, only channel messages and tempo changes
+      // are played.
+      int packed = cursor.getPackedMessage();
+      int newTempo = packed == 0 ? TempoMap.getTempo(cursor, message) : -1;
+
+      // Move past the event.
+      if (cursor.next()) {
+        heap.replaceTop(cursor.getTick());
+      } else {
+        heap.removeTop();
       }
 
-      // Move past the event, and subtract the time passed from every pending event.
-      for (int i = 0; i < midi.getTrackCount(); ++i) {
-        if (i != track) {
-          if (position[i] < midi.getTrack(i).getEventCount()) {
-            deltaTime[i] -= deltaTime[track];
-          }
+      if (packed != 0) {
+        PackedMessage.send(packed, this);
+      } else if (newTempo >= 0) {
+        anchorNanos = deadline;
+        anchorTick = tick;
+        tempo = newTempo;
+        onSetTempo(tempo);
+      }
+    }
+  }
+
+  /**
+   * Plays a compiled sequence on its associated synthesizer.  Events are dispatched straight
+   * from the sequence's arrays, without parsing or allocating anything.  See play(MidiFile) for
+   * when compiling is worth its up-front cost.
+   * The function blocks and returns only when the sequence has finished playing.
+   * @param sequence - The sequence to play.
+   */
+  public void play(MidiSequence sequence) {
+    microsecondsPerQuarterNote_ = TempoMap.DEFAULT_MICROSECONDS_PER_QUARTER_NOTE;
+    double bpm = 60000000.0 / microsecondsPerQuarterNote_;
+    logger_.info("Setting tempo to " + bpm + " bpm.");
+
+    TempoMap tempoMap = sequence.getTempoMap();
+
+    // The controller and program state of the sequence, built the first time playback seeks.
+    MidiStateIndex stateIndex = null;
+
+    // The next event to play.
+    int index = 0;
+    int count = sequence.getEventCount();
+
+    // The System.nanoTime() at which tick 0 is due.  Every event's deadline is computed from this
+    // rather than from the previous event, so oversleeping never accumulates.
+    long startNanos = System.nanoTime();
+    long maxLateness = 0;
+    playThread_ = Thread.currentThread();
+
+    while (true) {
+      long seekTick = takeSeek(tempoMap);
+      if (seekTick >= 0) {
+        allNotesOff();
+        index = sequence.findEvent(seekTick);
+        if (stateIndex == null) {
+          stateIndex = new MidiStateIndex(sequence);
         }
+        stateIndex.restore(seekTick, this);
+        onSetTempo(tempoMap.getMicrosecondsPerQuarterNote(seekTick));
+        startNanos = System.nanoTime() - tempoMap.tickToNanos(seekTick);
       }
-      position[track]++;
-      if (position[track] < midi.getTrack(track).getEventCount()) {
-        deltaTime[track] = midi.getTrack(track).getEvent(position[track]).getDeltaTime();
-      } else {
-        deltaTime[track] = -1;
+
+      if (index >= count) {
+        playThread_ = null;
+        logger_.info("Finished playing, max lateness " + maxLateness / 1000 + " us.");
+        return;
+      }
+
+      long deadline = startNanos + sequence.getTimeNanos(index);
+      if (!sleepUntil(deadline)) {
+        continue;
+      }
+      long lateness = System.nanoTime() - deadline;
+      maxLateness = Math.max(maxLateness, lateness);
+      TimingListener timingListener = timingListener_;
+      if (timingListener != null) {
+        timingListener.onEventTiming(sequence.getTick(index), lateness);
       }
 
       // Process the event.
-      try {
-        MessageInputProcessor.process(new ByteArrayInputStream(event.getMessage()), 0, this);
-      } catch (IndexOutOfBoundsException e) {
-        logger_.log(Level.SEVERE, "Bad message: \n" + event.getMessage(), e);
-      } catch (IOException e) {
-        logger_.log(Level.SEVERE, "Bad message: \n" + event.getMessage(), e);
+      int message = sequence.getMessage(index++);
+      if (MidiSequence.isTempoChange(message)) {
+        onSetTempo(MidiSequence.getTempo(message));
+      } else {
+        PackedMessage.send(message, this);
+      }
+    }
+  }
+
+  /**
+   * Moves the play head of the file being played to tick.  Notes that are sounding are turned
+   * off, and the program, controllers and pitch bend of every channel are set to what they would
+   * have been had the file been played up to tick.  This may be called from any thread.
+   * @param tick - The new position, in midi "ticks" from the start of the file.
+   */
+  public void seek(long tick) {
+    synchronized (lock_) {
+      seekTick_ = Math.max(0, tick);
+      seekNanos_ = -1;
+      seekPending_ = true;
+    }
+    wakePlayThread();
+  }
+
+  /**
+   * Moves the play head of the file being played to a point in time, taking every tempo change
+   * before it into account.  This may be called from any thread.
+   * @see #seek(long)
+   * @param nanos - The new position, in nanoseconds from the start of the file.
+   */
+  public void seekNanos(long nanos) {
+    synchronized (lock_) {
+      seekNanos_ = Math.max(0, nanos);
+      seekTick_ = -1;
+      seekPending_ = true;
+    }
+    wakePlayThread();
+  }
+
+  /**
+   * Returns the tick of the pending seek request, or -1 if there is none, and clears it.
+   */
+  private long takeSeek(TempoMap tempoMap) {
+    synchronized (lock_) {
+      long tick = seekTick_;
+      if (seekNanos_ >= 0) {
+        tick = tempoMap.nanosToTick(seekNanos_);
+      }
+      seekTick_ = -1;
+      seekNanos_ = -1;
+      seekPending_ = false;
+      return tick;
+    }
+  }
+
+  /**
+   * Waits until System.nanoTime() reaches deadline.  The thread parks until shortly before the
+   * deadline and then spins for the final stretch, since parking alone can overshoot by a
+   * scheduler quantum.
+   * @return false if the wait was cut short by a seek request.
+   */
+  private boolean sleepUntil(long deadline) {
+    while (!seekPending_) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return true;
+      }
+      if (remaining > SPIN_NANOS) {
+        LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+        if (Thread.interrupted()) {
+          throw new RuntimeException("Interrupted during sleep.");
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wakes the playing thread, if there is one, so that it notices a seek request.
+   */
+  private void wakePlayThread() {
+    Thread playThread = playThread_;
+    if (playThread != null) {
+      LockSupport.unpark(playThread);
+    }
+  }
+
+  /**
+   * Sends a note-off for every note that is still sounding.
+   */
+  private void allNotesOff() {
+    for (int i = 0; i < activeNotes_.length; ++i) {
+      if (activeNotes_[i]) {
+        onNoteOff(i >> 7, i & 0x7F, 0);
       }
     }
   }
@@ -124,8 +364,8 @@ public class MidiFilePlayer extends MidiAdapter {
     microsecondsPerQuarterNote_ = microsecondsPerQuarterNote;
     double bpm = 60000000.0 / microsecondsPerQuarterNote_;
     logger_.info("Changing tempo to " + bpm + " bpm.");
-    for (MidiListener listener : listeners_) {
-      listener.onSetTempo(microsecondsPerQuarterNote);
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onSetTempo(microsecondsPerQuarterNote);
     }
   }
 
@@ -134,8 +374,9 @@ public class MidiFilePlayer extends MidiAdapter {
    */
   @Override
   public void onNoteOn(int channel, int note, int velocity) {
-    for (MidiListener listener : listeners_) {
-      listener.onNoteOn(channel, note, velocity);
+    activeNotes_[(channel << 7) | (note & 0x7F)] = velocity != 0;
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onNoteOn(channel, note, velocity);
     }
   }
 
@@ -144,18 +385,71 @@ public class MidiFilePlayer extends MidiAdapter {
    */
   @Override
   public void onNoteOff(int channel, int note, int velocity) {
-    for (MidiListener listener : listeners_) {
-      listener.onNoteOff(channel, note, velocity);
+    activeNotes_[(channel << 7) | (note & 0x7F)] = false;
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onNoteOff(channel, note, velocity);
     }
   }
   
+  /**
+   * Called on midi controller events.
+   */
+  @Override
+  public void onController(int channel, int control, int value) {
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onController(channel, control, value);
+    }
+  }
+
+  /**
+   * Called on midi program change events.
+   */
+  @Override
+  public void onProgramChange(int channel, int program) {
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onProgramChange(channel, program);
+    }
+  }
+
+  /**
+   * Called on midi pitch bend events.
+   */
+  @Override
+  public void onPitchBend(int channel, int value) {
+    for (int i = 0; i < listeners_.size(); ++i) {
+      listeners_.get(i).onPitchBend(channel, value);
+    }
+  }
+
   // TODO(klimt):  Override all the other MidiListener methods.
 
-  // The synthesizer to play the song.
+  // The synthesizer to play the song.  It is iterated by index so dispatching doesn't allocate.
   private List<MidiListener> listeners_;
 
   // The current tempo of the file.
   private int microsecondsPerQuarterNote_;
 
+  // For each channel and note, whether the note is sounding.
+  private final boolean[] activeNotes_;
+
+  // How long before a deadline the playing thread stops parking and starts spinning.
+  private static final long SPIN_NANOS = 1000000;
+
+  // Guards the pending seek request.
+  private final Object lock_;
+
+  // The pending seek request, in ticks or in nanoseconds, or -1 if there is none.
+  private long seekTick_;
+  private long seekNanos_;
+
+  // Whether there is a pending seek request, readable without taking lock_.
+  private volatile boolean seekPending_;
+
+  // The thread inside play(), to unpark when a seek comes in.
+  private volatile Thread playThread_;
+
+  // Told how late each event is, or null.
+  private volatile TimingListener timingListener_;
+
   private Logger logger_;
 }
@@ -47,6 +47,13 @@ public class MidiHeader {
       throw new ArrayIndexOutOfBoundsException(index);
     }
 
+    /**
+     * Returns the integer value that represents this format in the file's header.
+     */
+    public int getIndex() {
+      return index_;
+    }
+
     private int index_;
   }
 
@@ -22,12 +22,21 @@ package com.manichord.synthesizer.core.midi;
  * methods.
  * @see MidiListener
  */
-public class MidiListenerProxy implements MidiListener {
+public class MidiListenerProxy implements MidiListener, PackedMidiListener {
   /**
    * Creates a new MidiListenerProxy that passes all its events on to listener.
    */
   public MidiListenerProxy(MidiListener listener) {
     listener_ = listener;
+    packedListener_ = PackedToMidiListener.adapt(listener);
+  }
+
+  /**
+   * Passes a packed message straight on to listener, without unpacking it if listener is itself
+   * a PackedMidiListener.
+   */
+  public void onPackedMessage(int packed, long timestampNanos) {
+    packedListener_.onPackedMessage(packed, timestampNanos);
   }
 
   //
@@ -144,4 +153,7 @@ public class MidiListenerProxy implements MidiListener {
 
   // The listener to forward events to.
   protected MidiListener listener_;
+
+  // The same listener, for packed messages.
+  protected PackedMidiListener packedListener_;
 }
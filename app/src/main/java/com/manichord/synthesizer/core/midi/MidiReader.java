@@ -16,17 +16,28 @@
 
 package com.manichord.synthesizer.core.midi;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
- * MidiReader is a set of static functions for reading midi data from a stream into the various
+ * MidiReader is a set of static functions for reading midi data from a buffer into the various
  * parts of a MidiFile.  You probably don't want to use these methods directly, but rather use
  * the constructor for MidiFile when reading a midi file.
+ *
+ * All of the decoding works on a ByteBuffer with absolute indexing, so a file can be mapped into
+ * memory and parsed in place without copying each chunk or reading one byte at a time from a
+ * stream.
  * @see MidiFile
  */
 public class MidiReader {
@@ -37,47 +48,181 @@ public class MidiReader {
    * @throws IOException - On any kind of read error or invalid format.
    */
   public static void readMidiFile(InputStream input, MidiFile file) throws IOException {
-    // This code makes use of mark() and reset(), so if that's not available, wrap the input with
-    // a buffer that enables them.
-    if (!input.markSupported()) {
-      BufferedInputStream buffer = new BufferedInputStream(input);
-      if (!buffer.markSupported()) {
-        throw new IOException("BufferedInputStream does not support mark?");
+    readMidiFile(ByteBuffer.wrap(MidiUtil.readFully(input)), file);
+  }
+
+  /**
+   * Maps a midi file into memory and reads it into file.
+   * @param input - The file to read from.
+   * @param file - The object to store the data from the file in.
+   * @throws IOException - On any kind of read error or invalid format.
+   */
+  public static void readMidiFile(File input, MidiFile file) throws IOException {
+    readMidiFile(mapFile(input), file);
+  }
+
+  /**
+   * Reads an entire midi file from the remaining bytes of buffer into file.  The position of
+   * buffer is not changed.
+   * @param buffer - The buffer to read from, typically a MappedByteBuffer.
+   * @param file - The object to store the data from the file in.
+   * @throws IOException - On any kind of read error or invalid format.
+   */
+  public static void readMidiFile(ByteBuffer buffer, MidiFile file) throws IOException {
+    int end = buffer.limit();
+    int pos = readHeader(buffer, buffer.position(), end, file.getHeader());
+    while (pos < end) {
+      pos = readTrack(buffer, pos, end, file.addTrack());
+    }
+  }
+
+  /**
+   * Reads an entire midi file from the remaining bytes of buffer into file, decoding the tracks
+   * concurrently.  The chunk index is read first, then every MTrk chunk is decoded as its own
+   * task on executor, and the tracks are added to file in their original order.  The result is
+   * identical to readMidiFile(buffer, file).
+   * @param buffer - The buffer to read from, typically a MappedByteBuffer.
+   * @param file - The object to store the data from the file in.
+   * @param executor - The executor to decode tracks on, such as a ForkJoinPool.
+   * @throws IOException - On any kind of read error or invalid format.
+   */
+  public static void readMidiFile(ByteBuffer buffer,
+                                  MidiFile file,
+                                  ExecutorService executor) throws IOException {
+    MidiFile index = new MidiFile();
+    indexMidiFile(buffer, index);
+    MidiHeader header = index.getHeader();
+    file.getHeader().setFormat(header.getFormat());
+    file.getHeader().setTrackCount(header.getTrackCount());
+    file.getHeader().setTicksPerBeat(header.getTicksPerBeat());
+
+    int trackCount = index.getTrackCount();
+    if (trackCount < 2) {
+      for (int i = 0; i < trackCount; ++i) {
+        readEvents(buffer, index.getChunkStart(i), index.getChunkEnd(i), file.addTrack());
       }
-      readMidiFile(buffer, file);
       return;
     }
 
-    readHeader(input, file.getHeader());
-    input.mark(1);
-    int b = input.read();
-    while (b >= 0) {
-      input.reset();
-      readTrack(input, file.addTrack());
-      input.mark(1);
-      b = input.read();
+    List<Future<?>> futures = new ArrayList<Future<?>>(trackCount);
+    for (int i = 0; i < trackCount; ++i) {
+      futures.add(executor.submit(new TrackDecoder(buffer.duplicate(),
+                                                   index.getChunkStart(i),
+                                                   index.getChunkEnd(i),
+                                                   file.addTrack())));
+    }
+    try {
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decoding tracks.");
+    } catch (ExecutionException e) {
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+      // Some executors, such as ForkJoinPool, wrap checked exceptions thrown by the task.
+      for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        }
+      }
+      throw new IOException("Failed to decode track.", e.getCause());
+    }
+  }
+
+  /**
+   * A task that decodes one MTrk chunk into a track that nothing else touches until the task is
+   * done.
+   */
+  private static class TrackDecoder implements Callable<Void> {
+    TrackDecoder(ByteBuffer buffer, int start, int end, MidiTrack track) {
+      buffer_ = buffer;
+      start_ = start;
+      end_ = end;
+      track_ = track;
+    }
+
+    public Void call() throws IOException {
+      readEvents(buffer_, start_, end_, track_);
+      return null;
+    }
+
+    private final ByteBuffer buffer_;
+    private final int start_;
+    private final int end_;
+    private final MidiTrack track_;
+  }
+
+  /**
+   * Reads only the header and the position of each MTrk chunk from buffer into file, without
+   * decoding any events.  The tracks are decoded later, on demand.
+   * @param buffer - The buffer to read from, typically a MappedByteBuffer.
+   * @param file - The object to store the header and chunk index in.
+   * @throws IOException - On any kind of read error or invalid format.
+   */
+  public static void indexMidiFile(ByteBuffer buffer, MidiFile file) throws IOException {
+    int end = buffer.limit();
+    int pos = readHeader(buffer, buffer.position(), end, file.getHeader());
+    while (pos < end) {
+      int size = readTrackSize(buffer, pos, end);
+      pos += 8;
+      file.addTrackChunk(buffer, pos, pos + size);
+      pos += size;
+    }
+  }
+
+  /**
+   * Maps the contents of a file into a read-only buffer.
+   * @param input - The file to map.
+   * @return A buffer positioned at the start of the file.
+   * @throws IOException - If the file can't be opened or is too large to map.
+   */
+  public static ByteBuffer mapFile(File input) throws IOException {
+    FileInputStream stream = new FileInputStream(input);
+    try {
+      FileChannel channel = stream.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("File too large to map: " + size + " bytes.");
+      }
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    } finally {
+      stream.close();
     }
   }
 
   /**
    * Reads the header from a midi file and stores it in header.
-   * @param input - The input file to read from.
+   * @param buffer - The buffer to read from.
+   * @param pos - The index of the start of the header chunk.
+   * @param end - The index just past the last readable byte.
    * @param header - The object to store the data in.
+   * @return The index just past the header chunk.
    * @throws IOException - On any kind of read error or invalid format.
    */
-  private static void readHeader(InputStream input, MidiHeader header) throws IOException {
-    verifyString(input, "MThd");
-    if (MidiUtil.readDWord(input) != 6) {
+  private static int readHeader(ByteBuffer buffer,
+                                int pos,
+                                int end,
+                                MidiHeader header) throws IOException {
+    pos = verifyString(buffer, pos, end, "MThd");
+    checkAvailable(pos, 10, end);
+    if (readDWord(buffer, pos) != 6) {
       throw new IOException("Expected header size == 6.");
     }
-    int formatNumber = MidiUtil.readWord(input);
+    int formatNumber = readWord(buffer, pos + 4);
     MidiHeader.Format format = MidiHeader.Format.valueOf(formatNumber);
     if (format == null) {
       throw new IOException("Invalid format " + formatNumber + ".");
     }
     header.setFormat(format);
-    header.setTrackCount(MidiUtil.readWord(input));
-    int timeDivision = MidiUtil.readWord(input);
+    header.setTrackCount(readWord(buffer, pos + 6));
+    int timeDivision = readWord(buffer, pos + 8);
     if ((timeDivision & 0x8000) == 0) {
       header.setTicksPerBeat(timeDivision & 0x7FFF);
     } else {
@@ -85,187 +230,112 @@ public class MidiReader {
       header.setTicksPerFrame(timeDivision & 0xFF);
       throw new IOException("SMPTE time codes are not yet supported.");
     }
+    return pos + 10;
   }
 
   /**
    * Reads one track from a midi file and stores it in track.
-   * @param input - The input file to read from.
+   * @param buffer - The buffer to read from.
+   * @param pos - The index of the start of the track chunk.
+   * @param end - The index just past the last readable byte.
    * @param track - The object to store the data in.
+   * @return The index just past the track chunk.
    * @throws IOException - On any kind of read error or invalid format.
    */
-  private static void readTrack(InputStream input, MidiTrack track) throws IOException {
-    verifyString(input, "MTrk");
-    int size = MidiUtil.readDWord(input);
-    byte[] trackBytes = new byte[size];
-    MidiUtil.readBytes(input, size, trackBytes);
-    ByteArrayInputStream trackStream = new ByteArrayInputStream(trackBytes);
-    readEvents(trackStream, track);
-    if (trackStream.read() >= 0) {
-      throw new IOException("Unexpected data at end of track.");
-    }
+  private static int readTrack(ByteBuffer buffer,
+                               int pos,
+                               int end,
+                               MidiTrack track) throws IOException {
+    int size = readTrackSize(buffer, pos, end);
+    pos += 8;
+    readEvents(buffer, pos, pos + size, track);
+    return pos + size;
   }
 
   /**
-   * Reads the events from a track in a midi file and stores it in track.
-   * @param input - The input file to read from.
-   * @param track - The object to store the data in.
+   * Reads the header of a track chunk.
+   * @param buffer - The buffer to read from.
+   * @param pos - The index of the start of the track chunk.
+   * @param end - The index just past the last readable byte.
+   * @return The size of the track data, which starts 8 bytes after pos.
    * @throws IOException - On any kind of read error or invalid format.
    */
-  private static void readEvents(InputStream input, MidiTrack track) throws IOException {
-    // This code makes use of mark() and reset(), so if that's not available, wrap the input with
-    // a buffer that enables them.
-    if (!input.markSupported()) {
-      BufferedInputStream buffer = new BufferedInputStream(input);
-      if (!buffer.markSupported()) {
-        throw new IOException("BufferedInputStream does not support mark?");
-      }
-      readEvents(buffer, track);
-      return;
+  private static int readTrackSize(ByteBuffer buffer, int pos, int end) throws IOException {
+    pos = verifyString(buffer, pos, end, "MTrk");
+    checkAvailable(pos, 4, end);
+    int size = readDWord(buffer, pos);
+    if (size < 0 || size > end - pos - 4) {
+      throw new IOException("Unexpected EOF while reading bytes.");
     }
-
-    int runningStatus = 0;
-    input.mark(1);
-    int b = input.read();
-    while (b >= 0) {
-      input.reset();
-      runningStatus = readEvent(input, runningStatus, track.addEvent(new MidiEvent()));
-      input.mark(1);
-      b = input.read();
-    }    
-  }
-
-  /**
-   * Reads one event from a track in a midi file and stores it in event.
-   * @param input - The input file to read from.
-   * @param previousCode - The code byte from the most recent message read, for "Running Status".
-   * @param event - The object to store the data in.
-   * @throws IOException - On any kind of read error or invalid format.
-   * @return The code for the read message, needed for "Running Status" decoding.
-   */
-  private static int readEvent(InputStream input,
-                               int previousCode,
-                               MidiEvent event) throws IOException {
-    event.setDeltaTime(MidiUtil.readVarInt(input));
-    return readMessage(input, previousCode, event);
+    return size;
   }
 
   /**
-   * Reads one message from a track in a midi file and stores it in event.
-   * @param input - The input file to read from.
-   * @param previousCode - The code byte from the most recent message read, for "Running Status".
-   * @param event - The object to store the data in.
+   * Reads the events from a track in a midi file and stores it in track.  Channel messages are
+   * packed into the track without allocating, and the bytes of other messages are copied straight
+   * into the track's storage.
+   * @param buffer - The buffer to read from.
+   * @param pos - The index of the first event.
+   * @param end - The index just past the end of the track data.
+   * @param track - The object to store the data in.
    * @throws IOException - On any kind of read error or invalid format.
-   * @return The code for the read message, needed for "Running Status" decoding.
    */
-  private static int readMessage(InputStream input,
-                                 int previousCode,
-                                 MidiEvent event) throws IOException {
-    // This code makes use of mark() and reset(), so if that's not available, wrap the input with
-    // a buffer that enables them.
-    if (!input.markSupported()) {
-      BufferedInputStream buffer = new BufferedInputStream(input);
-      if (!buffer.markSupported()) {
-        throw new IOException("BufferedInputStream does not support mark?");
-      }
-      return readEvent(buffer, previousCode, event);
+  static void readEvents(ByteBuffer buffer,
+                         int pos,
+                         int end,
+                         MidiTrack track) throws IOException {
+    MidiTrackCursor cursor = new MidiTrackCursor(buffer, pos, end);
+    while (cursor.next()) {
+      cursor.appendTo(track);
     }
-
-    input.mark(1);
-    int code = MidiUtil.readByte(input);
-    if ((code & 0x80) == 0 && previousCode != 0) {
-      code = previousCode;
-      input.reset();
-    }
-
-    ByteArrayOutputStream output = new ByteArrayOutputStream();
-    output.write(code);
-
-    if (code == 0xFF) {
-      readMetaEvent(input, output);
-    } else if (code == 0xF0 || code == 0xF7) {
-      readSysExEvent(input, output);
-    } else if ((code & 0x80) == 0x80 && (code & 0xF0) != 0xF0) {
-      readControlEvent(input, code, output);
-    } else {
-      // This will only ever happen if either:
-      //   (1) the first event doesn't have the first bit set, or
-      //   (2) the code is in one of the ranges 0xF1-0xF6 or 0xF8-0xFE inclusive.
-      throw new IOException("Invalid midi event code " + code + ".");
-    }
-
-    event.setMessage(output.toByteArray());
-    return code;
   }
 
   /**
-   * Copies one midi control message from input to output.
-   * @param input - The input stream to read from.
-   * @param code - The code byte of the message.
-   * @param output - The output stream to write to.
-   * @throws IOException - On any kind of read error or invalid format.
+   * Reads a 32-bit signed big-endian value at pos, regardless of the buffer's byte order.
    */
-  private static void readControlEvent(InputStream input,
-                                       int code,
-                                       OutputStream output) throws IOException {
-    int length = 0;
-    int type = (code & 0xF0);
-    switch (type) {
-      case 0x80: length = 2; break;
-      case 0x90: length = 2; break;
-      case 0xA0: length = 2; break;
-      case 0xB0: length = 2; break;
-      case 0xC0: length = 1; break;
-      case 0xD0: length = 1; break;
-      case 0xE0: length = 2; break;
-      default: {
-        throw new IOException("Invalid midi control event type " + type + ".");
-      }
-    }
-    MidiUtil.copyBytes(input, length, output);
+  private static int readDWord(ByteBuffer buffer, int pos) {
+    return (readWord(buffer, pos) << 16) | readWord(buffer, pos + 2);
   }
 
   /**
-   * Copies one midi meta event message from input to output.
-   * @param input - The input stream to read from.
-   * @param output - The output stream to write to.
-   * @throws IOException - On any kind of read error or invalid format.
+   * Reads a 16 bit unsigned big-endian value at pos.
    */
-  private static void readMetaEvent(InputStream input,
-                                    OutputStream output) throws IOException {
-    MidiUtil.copyByte(input, output);  // Copy the subtype.
-    int size = MidiUtil.copyVarInt(input, output);
-    MidiUtil.copyBytes(input, size, output);
+  private static int readWord(ByteBuffer buffer, int pos) {
+    return ((buffer.get(pos) & 0xFF) << 8) | (buffer.get(pos + 1) & 0xFF);
   }
 
   /**
-   * Copies one midi SysEx event message from input to output.
-   * @param input - The input stream to read from.
-   * @param output - The output stream to write to.
-   * @throws IOException - On any kind of read error or invalid format.
+   * Throws if fewer than size bytes are readable at pos.
+   * @throws IOException on EOF.
    */
-  private static void readSysExEvent(InputStream input,
-                                     OutputStream output) throws IOException {
-    int size = MidiUtil.copyVarInt(input, output);
-    MidiUtil.copyBytes(input, size, output);
+  private static void checkAvailable(int pos, int size, int end) throws IOException {
+    if (size > end - pos) {
+      throw new IOException("Unexpected EOF.");
+    }
   }
 
   /**
-   * Reads string.length bytes from input and verifies that they match the contents of string.
-   * @param input - The input stream to read from.
+   * Verifies that the bytes at pos match the contents of string.
+   * @param buffer - The buffer to read from.
+   * @param pos - The index to start matching at.
+   * @param end - The index just past the last readable byte.
    * @param string - The string to match the contents of.
-   * @throws IOException if the stream doesn't have the string as its next content.
+   * @return The index just past the matched string.
+   * @throws IOException if the buffer doesn't have the string as its next content.
    */
-  private static void verifyString(InputStream input, String string) throws IOException {
+  private static int verifyString(ByteBuffer buffer,
+                                  int pos,
+                                  int end,
+                                  String string) throws IOException {
+    checkAvailable(pos, string.length(), end);
     for (int i = 0; i < string.length(); ++i) {
-      int b = input.read();
-      if (b < 0) {
-        throw new IOException("Unexpected EOF.");
-      }
+      int b = buffer.get(pos + i) & 0xFF;
       if (string.charAt(i) != (char)b) {
         throw new IOException("Invalid format. " +
                               "Expected " + string.charAt(i) + ". " +
                               "Got " + (char)b + ".");
       }
     }
+    return pos + string.length();
   }
 }
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A MidiRouter sends each channel message to the destinations set up for its channel and message
+ * type, and every other event to a list of system destinations.  The routes are compiled into a
+ * table with one entry per channel and message type, so routing a message costs a single array
+ * lookup no matter how many channels are split or layered.
+ *
+ * The table is immutable and replaced as a whole by setTable(), so it can be changed from any
+ * thread while events are flowing: each event is routed entirely by either the old table or the
+ * new one, and none are dropped.
+ */
+public class MidiRouter implements MidiListener, PackedMidiListener {
+  // Bits for the message types a route applies to.
+  public static final int NOTE_OFF = 1 << 0;
+  public static final int NOTE_ON = 1 << 1;
+  public static final int NOTE_AFTERTOUCH = 1 << 2;
+  public static final int CONTROLLER = 1 << 3;
+  public static final int PROGRAM_CHANGE = 1 << 4;
+  public static final int CHANNEL_AFTERTOUCH = 1 << 5;
+  public static final int PITCH_BEND = 1 << 6;
+  public static final int ALL_TYPES = 0x7F;
+
+  /**
+   * A Table is a mutable description of the routes, to be installed with setTable().
+   */
+  public static class Table {
+    /**
+     * Creates a table with no routes, which drops every event.
+     */
+    public Table() {
+      channelRoutes_ = new ArrayList<Route>();
+      systemRoutes_ = new ArrayList<MidiListener>();
+    }
+
+    /**
+     * Sends messages on channel whose type is in types to destination.
+     * @param channel - The channel, 0-15.
+     * @param destination - The listener to send to.
+     * @param types - A combination of NOTE_OFF, NOTE_ON, ..., or ALL_TYPES.
+     */
+    public Table addRoute(int channel, MidiListener destination, int types) {
+      if (channel < 0 || channel > 15) {
+        throw new IllegalArgumentException("Invalid channel " + channel + ".");
+      }
+      channelRoutes_.add(new Route(channel, destination, types));
+      return this;
+    }
+
+    /**
+     * Sends every event that doesn't belong to a channel (SysEx, realtime and meta events) to
+     * destination.
+     */
+    public Table addSystemRoute(MidiListener destination) {
+      systemRoutes_.add(destination);
+      return this;
+    }
+
+    private final List<Route> channelRoutes_;
+    private final List<MidiListener> systemRoutes_;
+  }
+
+  /**
+   * Creates a new MidiRouter with no routes.
+   */
+  public MidiRouter() {
+    setTable(new Table());
+  }
+
+  /**
+   * Creates a new MidiRouter with the given routes.
+   */
+  public MidiRouter(Table table) {
+    setTable(table);
+  }
+
+  /**
+   * Replaces all the routes at once.  Later changes to table have no effect on the router.
+   */
+  public void setTable(Table table) {
+    PackedMidiListener[][] routes = new PackedMidiListener[16 * 8][];
+    for (int channel = 0; channel < 16; ++channel) {
+      for (int type = 0; type < 8; ++type) {
+        List<PackedMidiListener> destinations = new ArrayList<PackedMidiListener>();
+        for (Route route : table.channelRoutes_) {
+          if (route.channel_ == channel && (route.types_ & (1 << type)) != 0) {
+            destinations.add(PackedToMidiListener.adapt(route.destination_));
+          }
+        }
+        routes[(channel << 3) | type] =
+            destinations.toArray(new PackedMidiListener[destinations.size()]);
+      }
+    }
+    MidiListener[] systemRoutes =
+        table.systemRoutes_.toArray(new MidiListener[table.systemRoutes_.size()]);
+    routes_ = new Routes(routes, systemRoutes);
+  }
+
+  // Packed channel messages.
+  public void onPackedMessage(int packed, long timestampNanos) {
+    // The low 3 bits of the type nibble (0x8-0xE) index the types of a channel.
+    PackedMidiListener[] destinations =
+        routes_.channelRoutes_[((packed & 0x0F) << 3) | ((packed >> 4) & 0x07)];
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onPackedMessage(packed, timestampNanos);
+    }
+  }
+
+  //
+  // The rest of these methods are just midi listener events.
+  //
+
+  public void onNoteOff(int channel, int note, int velocity) {
+    onPackedMessage(PackedMessage.pack(0x80 | channel, note, velocity), 0);
+  }
+
+  public void onNoteOn(int channel, int note, int velocity) {
+    onPackedMessage(PackedMessage.pack(0x90 | channel, note, velocity), 0);
+  }
+
+  public void onNoteAftertouch(int channel, int note, int aftertouch) {
+    onPackedMessage(PackedMessage.pack(0xA0 | channel, note, aftertouch), 0);
+  }
+
+  public void onController(int channel, int control, int value) {
+    onPackedMessage(PackedMessage.pack(0xB0 | channel, control, value), 0);
+  }
+
+  public void onProgramChange(int channel, int program) {
+    onPackedMessage(PackedMessage.pack(0xC0 | channel, program, 0), 0);
+  }
+
+  public void onChannelAftertouch(int channel, int aftertouch) {
+    onPackedMessage(PackedMessage.pack(0xD0 | channel, aftertouch, 0), 0);
+  }
+
+  public void onPitchBend(int channel, int value) {
+    onPackedMessage(PackedMessage.pack(0xE0 | channel, value & 0x7F, (value >> 7) & 0x7F), 0);
+  }
+
+  public void onTimingClock() {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onTimingClock();
+    }
+  }
+
+  public void onActiveSensing() {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onActiveSensing();
+    }
+  }
+
+  public void onSequenceNumber(int sequenceNumber) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSequenceNumber(sequenceNumber);
+    }
+  }
+
+  public void onText(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onText(text);
+    }
+  }
+
+  public void onCopyrightNotice(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onCopyrightNotice(text);
+    }
+  }
+
+  public void onSequenceName(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSequenceName(text);
+    }
+  }
+
+  public void onInstrumentName(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onInstrumentName(text);
+    }
+  }
+
+  public void onLyrics(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onLyrics(text);
+    }
+  }
+
+  public void onMarker(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onMarker(text);
+    }
+  }
+
+  public void onCuePoint(byte[] text) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onCuePoint(text);
+    }
+  }
+
+  public void onChannelPrefix(int channel) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onChannelPrefix(channel);
+    }
+  }
+
+  public void onPort(byte[] data) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onPort(data);
+    }
+  }
+
+  public void onEndOfTrack() {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onEndOfTrack();
+    }
+  }
+
+  public void onSetTempo(int microsecondsPerQuarterNote) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSetTempo(microsecondsPerQuarterNote);
+    }
+  }
+
+  public void onSmpteOffset(byte[] data) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSmpteOffset(data);
+    }
+  }
+
+  public void onTimeSignature(int numerator,
+                              int denominator,
+                              int metronomePulse,
+                              int thirtySecondNotesPerQuarterNote) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onTimeSignature(numerator, denominator, metronomePulse,
+                                      thirtySecondNotesPerQuarterNote);
+    }
+  }
+
+  public void onKeySignature(int key, boolean isMinor) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onKeySignature(key, isMinor);
+    }
+  }
+
+  public void onSequencerSpecificEvent(byte[] data) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSequencerSpecificEvent(data);
+    }
+  }
+
+  public void onSysEx(byte[] data) {
+    MidiListener[] destinations = routes_.systemRoutes_;
+    for (int i = 0; i < destinations.length; ++i) {
+      destinations[i].onSysEx(data);
+    }
+  }
+
+  /**
+   * One entry of a Table.
+   */
+  private static class Route {
+    Route(int channel, MidiListener destination, int types) {
+      channel_ = channel;
+      destination_ = destination;
+      types_ = types;
+    }
+
+    final int channel_;
+    final MidiListener destination_;
+    final int types_;
+  }
+
+  /**
+   * The compiled, immutable form of a Table.
+   */
+  private static class Routes {
+    Routes(PackedMidiListener[][] channelRoutes, MidiListener[] systemRoutes) {
+      channelRoutes_ = channelRoutes;
+      systemRoutes_ = systemRoutes;
+    }
+
+    // The destinations for each channel and message type, indexed by channel * 8 + type.
+    final PackedMidiListener[][] channelRoutes_;
+    final MidiListener[] systemRoutes_;
+  }
+
+  // The current routes, replaced as a whole by setTable().
+  private volatile Routes routes_;
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.IOException;
+
+/**
+ * A MidiSequence is a MidiFile compiled for playback: every track merged into one list of
+ * events in play order, each one a timestamp in nanoseconds with tempo already resolved and a
+ * message packed into an int.  Nothing is left to parse or allocate while it plays, and since it
+ * is immutable it can be played any number of times, from any number of threads.
+ *
+ * Channel messages are packed with PackedMessage.  Set-tempo events are kept, so listeners can
+ * still follow the tempo, with TEMPO_STATUS in the low byte and the tempo in microseconds per
+ * quarter note in the upper 24 bits.  Other meta events and SysEx are left out, as are channel
+ * messages with invalid data bytes.
+ * @see MidiFilePlayer#play(MidiSequence)
+ */
+public class MidiSequence {
+  // The low byte of a set-tempo event in getMessage().
+  public static final int TEMPO_STATUS = 0xFF;
+
+  /**
+   * Compiles file into a sequence.  The tracks are merged straight from their cursors, so an
+   * index-only file is decoded without building any MidiTracks.
+   * @throws IOException - If a track can't be decoded.
+   */
+  public static MidiSequence compile(MidiFile file) throws IOException {
+    TempoMap tempoMap = new TempoMap(file);
+    MidiTrackCursor[] cursors = new MidiTrackCursor[file.getTrackCount()];
+    TrackHeap heap = new TrackHeap(cursors.length);
+    for (int i = 0; i < cursors.length; ++i) {
+      cursors[i] = file.openTrack(i);
+      if (cursors[i].next()) {
+        heap.add(i, cursors[i].getTick());
+      }
+    }
+
+    long[] ticks = new long[256];
+    int[] messages = new int[256];
+    int count = 0;
+    byte[] meta = new byte[6];
+    while (!heap.isEmpty()) {
+      MidiTrackCursor cursor = cursors[heap.peekTrack()];
+      int message = cursor.getPackedMessage();
+      if (message == 0 && cursor.getMessageLength() == 6) {
+        cursor.copyMessage(meta, 0);
+        if (meta[0] == (byte)0xFF && meta[1] == 0x51 && meta[2] == 3) {
+          int tempo = ((meta[3] & 0xFF) << 16) | ((meta[4] & 0xFF) << 8) | (meta[5] & 0xFF);
+          message = (tempo << 8) | TEMPO_STATUS;
+        }
+      }
+      if (message != 0) {
+        if (count == ticks.length) {
+          long[] newTicks = new long[count * 2];
+          int[] newMessages = new int[count * 2];
+          System.arraycopy(ticks, 0, newTicks, 0, count);
+          System.arraycopy(messages, 0, newMessages, 0, count);
+          ticks = newTicks;
+          messages = newMessages;
+        }
+        ticks[count] = cursor.getTick();
+        messages[count] = message;
+        ++count;
+      }
+      if (cursor.next()) {
+        heap.replaceTop(cursor.getTick());
+      } else {
+        heap.removeTop();
+      }
+    }
+
+    long[] exactTicks = new long[count];
+    int[] exactMessages = new int[count];
+    long[] nanos = new long[count];
+    System.arraycopy(ticks, 0, exactTicks, 0, count);
+    System.arraycopy(messages, 0, exactMessages, 0, count);
+    for (int i = 0; i < count; ++i) {
+      nanos[i] = tempoMap.tickToNanos(exactTicks[i]);
+    }
+    return new MidiSequence(tempoMap, exactTicks, nanos, exactMessages);
+  }
+
+  private MidiSequence(TempoMap tempoMap, long[] ticks, long[] nanos, int[] messages) {
+    tempoMap_ = tempoMap;
+    ticks_ = ticks;
+    nanos_ = nanos;
+    messages_ = messages;
+  }
+
+  /**
+   * Returns true if message, as returned by getMessage(), is a set-tempo event.
+   */
+  public static boolean isTempoChange(int message) {
+    return (message & 0xFF) == TEMPO_STATUS;
+  }
+
+  /**
+   * Returns the tempo of a set-tempo event, in microseconds per quarter note.
+   */
+  public static int getTempo(int message) {
+    return message >>> 8;
+  }
+
+  /**
+   * Returns the tempo map the sequence was compiled with.
+   */
+  public TempoMap getTempoMap() {
+    return tempoMap_;
+  }
+
+  /**
+   * Returns the number of events in the sequence.
+   */
+  public int getEventCount() {
+    return messages_.length;
+  }
+
+  /**
+   * Returns the time of event i, in midi "ticks" from the start of the file.
+   */
+  public long getTick(int i) {
+    return ticks_[i];
+  }
+
+  /**
+   * Returns the time of event i, in nanoseconds from the start of the file.
+   */
+  public long getTimeNanos(int i) {
+    return nanos_[i];
+  }
+
+  /**
+   * Returns event i: either a PackedMessage, or a set-tempo event if isTempoChange() is true.
+   */
+  public int getMessage(int i) {
+    return messages_[i];
+  }
+
+  /**
+   * Returns the index of the first event at or after tick, or getEventCount() if there is none.
+   */
+  public int findEvent(long tick) {
+    int lo = 0;
+    int hi = ticks_.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ticks_[mid] < tick) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private final TempoMap tempoMap_;
+
+  // The time of each event, in ticks and in nanoseconds, in play order.
+  private final long[] ticks_;
+  private final long[] nanos_;
+
+  // Each event's packed message or set-tempo event.
+  private final int[] messages_;
+}
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.IOException;
+
+/**
+ * A MidiStateIndex records every controller, program change and pitch bend in a MidiFile, per
+ * channel and sorted by tick, so that the state of each channel at any point in the file can be
+ * rebuilt with a binary search per controller instead of replaying the file from the start.
+ *
+ * Data entry (controllers 6 and 38) is recorded against the RPN or NRPN selected when it was
+ * sent, so that each parameter is restored with its own value.  Reset All Controllers is recorded
+ * as a change of each controller it resets back to its default.  The other channel mode messages
+ * (controllers 120-127), and data increment and decrement, aren't recorded.
+ */
+public class MidiStateIndex {
+  /**
+   * Builds the index for file.
+   * @throws IOException - If a track can't be decoded.
+   */
+  public MidiStateIndex(MidiFile file) throws IOException {
+    this();
+    for (int i = 0; i < file.getTrackCount(); ++i) {
+      resetSelection();
+      MidiTrackCursor cursor = file.openTrack(i);
+      while (cursor.next()) {
+        addMessage(cursor.getTick(), cursor.getPackedMessage());
+      }
+    }
+    sortChanges();
+  }
+
+  /**
+   * Builds the index for a compiled sequence.
+   */
+  public MidiStateIndex(MidiSequence sequence) {
+    this();
+    resetSelection();
+    for (int i = 0; i < sequence.getEventCount(); ++i) {
+      int message = sequence.getMessage(i);
+      if (!MidiSequence.isTempoChange(message)) {
+        addMessage(sequence.getTick(i), message);
+      }
+    }
+    sortChanges();
+  }
+
+  private MidiStateIndex() {
+    ticks_ = new long[16 * KEYS_PER_CHANNEL][];
+    values_ = new int[16 * KEYS_PER_CHANNEL][];
+    counts_ = new int[16 * KEYS_PER_CHANNEL];
+    parameterChannels_ = new int[8];
+    parameters_ = new int[8];
+    rpnMsb_ = new int[16];
+    rpnLsb_ = new int[16];
+    nrpnMsb_ = new int[16];
+    nrpnLsb_ = new int[16];
+    selected_ = new int[16];
+  }
+
+  /**
+   * Sends listener the messages needed to bring every channel to the state it would be in just
+   * before tick: the latest bank select, program, controller values, parameters and pitch bend.
+   * Anything that changes somewhere in the file but not before tick is sent its default, so that
+   * seeking backwards undoes the changes after tick.
+   */
+  public void restore(long tick, MidiListener listener) {
+    for (int channel = 0; channel < 16; ++channel) {
+      int base = channel * KEYS_PER_CHANNEL;
+      // Bank select has to come before the program change it applies to.
+      restoreController(channel, 0, tick, listener);
+      restoreController(channel, 32, tick, listener);
+      if (counts_[base + PROGRAM] > 0) {
+        listener.onProgramChange(channel, valueAt(base + PROGRAM, tick, 0));
+      }
+      for (int control = 1; control < 120; ++control) {
+        if (control != 32 && !isParameterController(control)) {
+          restoreController(channel, control, tick, listener);
+        }
+      }
+      restoreParameters(channel, tick, listener);
+      if (counts_[base + PITCH_BEND] > 0) {
+        listener.onPitchBend(channel, valueAt(base + PITCH_BEND, tick, 8192));
+      }
+    }
+  }
+
+  private void restoreController(int channel, int control, long tick, MidiListener listener) {
+    int k = channel * KEYS_PER_CHANNEL + control;
+    if (counts_[k] > 0) {
+      listener.onController(channel, control, valueAt(k, tick, defaultController(control)));
+    }
+  }
+
+  /**
+   * Sends each parameter of channel with data entry in the file its value just before tick,
+   * selecting it first, and then selects the parameter that was selected just before tick.
+   */
+  private void restoreParameters(int channel, long tick, MidiListener listener) {
+    boolean selectionChanged = false;
+    for (int slot = 0; slot < parameterCount_; ++slot) {
+      if (parameterChannels_[slot] != channel) {
+        continue;
+      }
+      int parameter = parameters_[slot];
+      int k = 16 * KEYS_PER_CHANNEL + 2 * slot;
+      int msb = find(k, tick);
+      int lsb = find(k + 1, tick);
+      int defaultValue = defaultParameter(parameter);
+      if (msb < 0 && lsb < 0 && defaultValue < 0) {
+        continue;
+      }
+      select(channel, parameter, listener);
+      selectionChanged = true;
+      if (counts_[k] > 0 && (msb >= 0 || defaultValue >= 0)) {
+        listener.onController(channel, 6, msb >= 0 ? values_[k][msb] : defaultValue >> 7);
+      }
+      if (counts_[k + 1] > 0 && (lsb >= 0 || defaultValue >= 0)) {
+        listener.onController(channel, 38, lsb >= 0 ? values_[k + 1][lsb] : defaultValue & 0x7F);
+      }
+    }
+    int k = channel * KEYS_PER_CHANNEL + SELECTION;
+    if (selectionChanged || counts_[k] > 0) {
+      select(channel, valueAt(k, tick, RPN_NULL), listener);
+    }
+  }
+
+  private static void select(int channel, int parameter, MidiListener listener) {
+    boolean nrpn = (parameter & NRPN) != 0;
+    listener.onController(channel, nrpn ? 99 : 101, (parameter >> 7) & 0x7F);
+    listener.onController(channel, nrpn ? 98 : 100, parameter & 0x7F);
+  }
+
+  /**
+   * Returns the value of key k just before tick, or defaultValue if it hadn't changed by then.
+   */
+  private int valueAt(int k, long tick, int defaultValue) {
+    int i = find(k, tick);
+    return i >= 0 ? values_[k][i] : defaultValue;
+  }
+
+  /**
+   * Returns the index of the last change to key k before tick, or -1 if there is none.
+   */
+  private int find(int k, long tick) {
+    long[] ticks = ticks_[k];
+    int lo = 0;
+    int hi = counts_[k];
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ticks[mid] < tick) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo - 1;
+  }
+
+  /**
+   * Records packed if it is a controller, program change or pitch bend.
+   */
+  private void addMessage(long tick, int packed) {
+    int channel = PackedMessage.getChannel(packed);
+    int base = channel * KEYS_PER_CHANNEL;
+    switch (PackedMessage.getType(packed)) {
+      case 0xB0:
+        addController(channel, PackedMessage.getData1(packed), tick,
+            PackedMessage.getData2(packed));
+        break;
+      case 0xC0:
+        add(base + PROGRAM, tick, PackedMessage.getData1(packed));
+        break;
+      case 0xE0:
+        add(base + PITCH_BEND, tick,
+            (PackedMessage.getData2(packed) << 7) | PackedMessage.getData1(packed));
+        break;
+    }
+  }
+
+  private void addController(int channel, int control, long tick, int value) {
+    int base = channel * KEYS_PER_CHANNEL;
+    switch (control) {
+      case 101:
+        rpnMsb_[channel] = value;
+        addSelection(channel, tick, (rpnMsb_[channel] << 7) | rpnLsb_[channel]);
+        break;
+      case 100:
+        rpnLsb_[channel] = value;
+        addSelection(channel, tick, (rpnMsb_[channel] << 7) | rpnLsb_[channel]);
+        break;
+      case 99:
+        nrpnMsb_[channel] = value;
+        addSelection(channel, tick, NRPN | (nrpnMsb_[channel] << 7) | nrpnLsb_[channel]);
+        break;
+      case 98:
+        nrpnLsb_[channel] = value;
+        addSelection(channel, tick, NRPN | (nrpnMsb_[channel] << 7) | nrpnLsb_[channel]);
+        break;
+      case 6:
+      case 38:
+        // Data entry with no parameter selected does nothing.
+        if ((selected_[channel] & RPN_NULL) != RPN_NULL) {
+          add(parameterKey(channel, selected_[channel]) + (control == 38 ? 1 : 0), tick, value);
+        }
+        break;
+      case 121:
+        // Reset All Controllers, as in RP-015.  Volume, pan, bank and program are kept.
+        for (int i = 0; i < RESET_CONTROLLERS.length; ++i) {
+          int k = base + RESET_CONTROLLERS[i];
+          if (counts_[k] > 0) {
+            add(k, tick, defaultController(RESET_CONTROLLERS[i]));
+          }
+        }
+        if (counts_[base + PITCH_BEND] > 0) {
+          add(base + PITCH_BEND, tick, 8192);
+        }
+        rpnMsb_[channel] = rpnLsb_[channel] = nrpnMsb_[channel] = nrpnLsb_[channel] = 127;
+        addSelection(channel, tick, RPN_NULL);
+        break;
+      default:
+        if (control < 120 && control != 96 && control != 97) {
+          add(base + control, tick, value);
+        }
+        break;
+    }
+  }
+
+  private void addSelection(int channel, long tick, int parameter) {
+    selected_[channel] = parameter;
+    add(channel * KEYS_PER_CHANNEL + SELECTION, tick, parameter);
+  }
+
+  /**
+   * Forgets the selected parameters, as at the start of a track.
+   */
+  private void resetSelection() {
+    for (int channel = 0; channel < 16; ++channel) {
+      rpnMsb_[channel] = rpnLsb_[channel] = nrpnMsb_[channel] = nrpnLsb_[channel] = 127;
+      selected_[channel] = RPN_NULL;
+    }
+  }
+
+  /**
+   * Returns the key of the data entry MSB of a parameter, adding it if it is new; the LSB is the
+   * key after it.
+   */
+  private int parameterKey(int channel, int parameter) {
+    int slot = 0;
+    while (slot < parameterCount_ &&
+        (parameterChannels_[slot] != channel || parameters_[slot] != parameter)) {
+      ++slot;
+    }
+    if (slot == parameterCount_) {
+      if (slot == parameters_.length) {
+        int[] channels = new int[slot * 2];
+        int[] parameters = new int[slot * 2];
+        System.arraycopy(parameterChannels_, 0, channels, 0, slot);
+        System.arraycopy(parameters_, 0, parameters, 0, slot);
+        parameterChannels_ = channels;
+        parameters_ = parameters;
+      }
+      parameterChannels_[slot] = channel;
+      parameters_[slot] = parameter;
+      ++parameterCount_;
+      int keys = 16 * KEYS_PER_CHANNEL + 2 * parameterCount_;
+      if (keys > counts_.length) {
+        int length = Math.max(keys, counts_.length + 16);
+        long[][] ticks = new long[length][];
+        int[][] values = new int[length][];
+        int[] counts = new int[length];
+        System.arraycopy(ticks_, 0, ticks, 0, counts_.length);
+        System.arraycopy(values_, 0, values, 0, counts_.length);
+        System.arraycopy(counts_, 0, counts, 0, counts_.length);
+        ticks_ = ticks;
+        values_ = values;
+        counts_ = counts;
+      }
+    }
+    return 16 * KEYS_PER_CHANNEL + 2 * slot;
+  }
+
+  /**
+   * Appends a change to key k.  The changes are sorted by sortChanges() once they have all been
+   * added.
+   */
+  private void add(int k, long tick, int value) {
+    int count = counts_[k];
+    if (ticks_[k] == null) {
+      ticks_[k] = new long[4];
+      values_[k] = new int[4];
+    } else if (count == ticks_[k].length) {
+      long[] ticks = new long[count * 2];
+      int[] values = new int[count * 2];
+      System.arraycopy(ticks_[k], 0, ticks, 0, count);
+      System.arraycopy(values_[k], 0, values, 0, count);
+      ticks_[k] = ticks;
+      values_[k] = values;
+    }
+    ticks_[k][count] = tick;
+    values_[k][count] = value;
+    counts_[k] = count + 1;
+  }
+
+  /**
+   * Sorts the changes to each key by tick.  Each track's changes are already in order, so only
+   * keys that change in more than one track need sorting.  The sort is stable: changes at the
+   * same tick stay in the order they were added, which is the order they would be played in.
+   */
+  private void sortChanges() {
+    long[] tickBuffer = null;
+    int[] valueBuffer = null;
+    for (int k = 0; k < counts_.length; ++k) {
+      long[] ticks = ticks_[k];
+      int count = counts_[k];
+      int i = 1;
+      while (i < count && ticks[i - 1] <= ticks[i]) {
+        ++i;
+      }
+      if (i >= count) {
+        continue;
+      }
+      if (tickBuffer == null || tickBuffer.length < count) {
+        tickBuffer = new long[ticks.length];
+        valueBuffer = new int[ticks.length];
+      }
+      mergeSort(ticks, values_[k], tickBuffer, valueBuffer, count);
+    }
+  }
+
+  /**
+   * Sorts the first count ticks, and the values that go with them, with a stable bottom-up merge
+   * sort.  tickBuffer and valueBuffer must have room for count entries.
+   */
+  private static void mergeSort(long[] ticks, int[] values, long[] tickBuffer,
+                                int[] valueBuffer, int count) {
+    for (int width = 1; width < count; width *= 2) {
+      for (int lo = 0; lo < count - width; lo += 2 * width) {
+        int mid = lo + width;
+        int hi = Math.min(mid + width, count);
+        if (ticks[mid - 1] <= ticks[mid]) {
+          continue;
+        }
+        System.arraycopy(ticks, lo, tickBuffer, lo, hi - lo);
+        System.arraycopy(values, lo, valueBuffer, lo, hi - lo);
+        int left = lo;
+        int right = mid;
+        for (int i = lo; i < hi; ++i) {
+          if (right >= hi || (left < mid && tickBuffer[left] <= tickBuffer[right])) {
+            ticks[i] = tickBuffer[left];
+            values[i] = valueBuffer[left++];
+          } else {
+            ticks[i] = tickBuffer[right];
+            values[i] = valueBuffer[right++];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether control selects a parameter or enters its data, and so is restored with the
+   * parameters rather than on its own.
+   */
+  private static boolean isParameterController(int control) {
+    return control == 6 || control == 38 || (control >= 96 && control <= 101);
+  }
+
+  /**
+   * Returns the value a controller has after Reset All Controllers, or at power on.
+   */
+  static int defaultController(int control) {
+    switch (control) {
+      case 7:
+        return 100;
+      case 8:
+      case 10:
+        return 64;
+      case 11:
+        return 127;
+      default:
+        return 0;
+    }
+  }
+
+  /**
+   * Returns the default 14-bit value of a parameter, or -1 if it isn't known.
+   */
+  static int defaultParameter(int parameter) {
+    switch (parameter) {
+      case 0:
+        // Pitch bend sensitivity, 2 semitones.
+        return 2 << 7;
+      case 1:
+      case 2:
+        // Fine and coarse tuning, centered.
+        return 64 << 7;
+      default:
+        return -1;
+    }
+  }
+
+  // Keys 0-127 are controllers.
+  private static final int PROGRAM = 128;
+  private static final int PITCH_BEND = 129;
+  // The selected RPN or NRPN.
+  private static final int SELECTION = 130;
+  private static final int KEYS_PER_CHANNEL = 131;
+
+  // A parameter number is its MSB and LSB, as 14 bits, with NRPN set for an NRPN.  Selecting
+  // 127, 127 of either kind deselects.
+  private static final int NRPN = 1 << 14;
+  private static final int RPN_NULL = (127 << 7) | 127;
+
+  // The controllers Reset All Controllers resets.
+  private static final int[] RESET_CONTROLLERS = { 1, 11, 64, 65, 66, 67, 68, 69 };
+
+  // For each channel and key, then for each parameter its data entry MSB and LSB, the tick and
+  // value of every change, sorted by tick.
+  private long[][] ticks_;
+  private int[][] values_;
+  private int[] counts_;
+
+  // The channel and number of each parameter with data entry.
+  private int[] parameterChannels_;
+  private int[] parameters_;
+  private int parameterCount_;
+
+  // While building, the RPN and NRPN numbers last selected on each channel, and the parameter
+  // data entry goes to.
+  private final int[] rpnMsb_;
+  private final int[] rpnLsb_;
+  private final int[] nrpnMsb_;
+  private final int[] nrpnLsb_;
+  private final int[] selected_;
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MidiStreamParser decodes a live stream of midi bytes, such as the payload of USB packets or
+ * socket reads, and sends each complete message to a MidiListener.  Bytes can be pushed in
+ * fragments of any size: a message split across fragments is completed by a later one.
+ *
+ * Unlike MessageFromBytes, it keeps the state that the wire protocol needs between messages:
+ * "Running Status", realtime bytes interleaved anywhere (even in the middle of another message),
+ * and SysEx messages of any length.  Channel and realtime messages are dispatched without
+ * allocating.  SysEx is collected in a reusable buffer, and only the byte[] handed to onSysEx()
+ * is allocated, once per complete SysEx message.
+ * @see MessageFromBytes
+ */
+public class MidiStreamParser {
+  // SysEx messages longer than this are dropped rather than buffered.
+  public static final int MAX_SYSEX_SIZE = 65536;
+
+  /**
+   * Creates a new parser that sends messages to listener.
+   */
+  public MidiStreamParser(MidiListener listener) {
+    setListener(listener);
+    sysEx_ = new byte[256];
+    reset();
+  }
+
+  /**
+   * Sets the listener that receives the decoded messages.  If it is also a PackedMidiListener,
+   * channel messages are sent to onPackedMessage(), stamped with the time they were completed.
+   */
+  public void setListener(MidiListener listener) {
+    listener_ = listener;
+    packedListener_ = listener instanceof PackedMidiListener ? (PackedMidiListener)listener : null;
+  }
+
+  /**
+   * Forgets any partial message and the running status, as after a reconnect.
+   */
+  public void reset() {
+    status_ = 0;
+    needed_ = 0;
+    count_ = 0;
+    data1_ = 0;
+    inSysEx_ = false;
+    sysExSize_ = 0;
+  }
+
+  /**
+   * Parses len bytes of data, starting at off.
+   */
+  public void parse(byte[] data, int off, int len) {
+    for (int i = off; i < off + len; ++i) {
+      parse(data[i] & 0xFF);
+    }
+  }
+
+  /**
+   * Parses the remaining bytes of buffer, advancing its position to its limit.
+   */
+  public void parse(ByteBuffer buffer) {
+    while (buffer.hasRemaining()) {
+      parse(buffer.get() & 0xFF);
+    }
+  }
+
+  /**
+   * Parses one byte.
+   * @param b - The byte, as a value between 0 and 255.
+   */
+  public void parse(int b) {
+    if (b >= 0xF8) {
+      // Realtime messages may appear anywhere and don't affect any other state.
+      if (b == 0xF8) {
+        listener_.onTimingClock();
+      } else if (b == 0xFE) {
+        listener_.onActiveSensing();
+      }
+      return;
+    }
+
+    if (b < 0x80) {
+      if (inSysEx_) {
+        appendSysEx(b);
+      } else if (needed_ > 0) {
+        if (count_ == 0) {
+          data1_ = b;
+        }
+        ++count_;
+        if (count_ == needed_) {
+          count_ = 0;
+          if (status_ != 0) {
+            int packed = PackedMessage.pack(status_, data1_, b);
+            PackedMidiListener packedListener = packedListener_;
+            if (packedListener != null) {
+              packedListener.onPackedMessage(packed, System.nanoTime());
+            } else {
+              PackedMessage.send(packed, listener_);
+            }
+          } else {
+            // A system common message, which has no listener callback.
+            needed_ = 0;
+          }
+        }
+      }
+      // Otherwise it is a data byte without a status, which is dropped.
+      return;
+    }
+
+    // Any status byte other than realtime ends a SysEx message.
+    if (inSysEx_) {
+      if (b == 0xF7) {
+        appendSysEx(b);
+      }
+      endSysEx();
+      if (b == 0xF7) {
+        return;
+      }
+    }
+    count_ = 0;
+    if (b < 0xF0) {
+      status_ = b;
+      needed_ = PackedMessage.lengthForStatus(b) - 1;
+      return;
+    }
+
+    // System common messages cancel running status.
+    status_ = 0;
+    needed_ = 0;
+    switch (b) {
+      case 0xF0:
+        inSysEx_ = true;
+        sysExSize_ = 0;
+        break;
+      case 0xF1:
+      case 0xF3:
+        needed_ = 1;
+        break;
+      case 0xF2:
+        needed_ = 2;
+        break;
+    }
+  }
+
+  /**
+   * Adds a byte to the SysEx message being collected, dropping the message if it gets too long.
+   */
+  private void appendSysEx(int b) {
+    if (sysExSize_ < 0) {
+      return;
+    }
+    if (sysExSize_ == sysEx_.length) {
+      if (sysExSize_ >= MAX_SYSEX_SIZE) {
+        sysExSize_ = -1;
+        return;
+      }
+      byte[] sysEx = new byte[Math.min(sysExSize_ * 2, MAX_SYSEX_SIZE)];
+      System.arraycopy(sysEx_, 0, sysEx, 0, sysExSize_);
+      sysEx_ = sysEx;
+    }
+    sysEx_[sysExSize_++] = (byte)b;
+  }
+
+  /**
+   * Sends the collected SysEx message.  As in a midi file, the data is everything after the 0xF0,
+   * including the terminating 0xF7 if there was one.
+   */
+  private void endSysEx() {
+    inSysEx_ = false;
+    if (sysExSize_ >= 0) {
+      byte[] data = new byte[sysExSize_];
+      System.arraycopy(sysEx_, 0, data, 0, sysExSize_);
+      listener_.onSysEx(data);
+    }
+    sysExSize_ = 0;
+  }
+
+  // The listener to send messages to, and the same listener if it takes packed messages.
+  private MidiListener listener_;
+  private PackedMidiListener packedListener_;
+
+  // The current channel status, used for "running status", or 0 if there is none.
+  private int status_;
+
+  // The number of data bytes the current message needs, and how many have arrived.
+  private int needed_;
+  private int count_;
+
+  // The first data byte of the current message.
+  private int data1_;
+
+  // The SysEx message being collected, or a size of -1 if it was too long and is being dropped.
+  private boolean inSysEx_;
+  private byte[] sysEx_;
+  private int sysExSize_;
+}
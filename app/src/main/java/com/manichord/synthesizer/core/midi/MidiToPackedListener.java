@@ -0,0 +1,68 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+/**
+ * A MidiToPackedListener is a MidiListener that packs each channel voice message and passes it
+ * on to a PackedMidiListener, stamped with the time it arrived.  All other events are ignored.
+ * @see PackedToMidiListener
+ */
+public class MidiToPackedListener extends MidiAdapter {
+  /**
+   * Creates a new MidiToPackedListener that passes messages on to listener.
+   */
+  public MidiToPackedListener(PackedMidiListener listener) {
+    listener_ = listener;
+  }
+
+  public void onNoteOff(int channel, int note, int velocity) {
+    listener_.onPackedMessage(PackedMessage.pack(0x80 | channel, note, velocity),
+                              System.nanoTime());
+  }
+
+  public void onNoteOn(int channel, int note, int velocity) {
+    listener_.onPackedMessage(PackedMessage.pack(0x90 | channel, note, velocity),
+                              System.nanoTime());
+  }
+
+  public void onNoteAftertouch(int channel, int note, int aftertouch) {
+    listener_.onPackedMessage(PackedMessage.pack(0xA0 | channel, note, aftertouch),
+                              System.nanoTime());
+  }
+
+  public void onController(int channel, int control, int value) {
+    listener_.onPackedMessage(PackedMessage.pack(0xB0 | channel, control, value),
+                              System.nanoTime());
+  }
+
+  public void onProgramChange(int channel, int program) {
+    listener_.onPackedMessage(PackedMessage.pack(0xC0 | channel, program, 0), System.nanoTime());
+  }
+
+  public void onChannelAftertouch(int channel, int aftertouch) {
+    listener_.onPackedMessage(PackedMessage.pack(0xD0 | channel, aftertouch, 0),
+                              System.nanoTime());
+  }
+
+  public void onPitchBend(int channel, int value) {
+    listener_.onPackedMessage(PackedMessage.pack(0xE0 | channel, value & 0x7F, value >> 7),
+                              System.nanoTime());
+  }
+
+  // The listener to forward messages to.
+  private final PackedMidiListener listener_;
+}
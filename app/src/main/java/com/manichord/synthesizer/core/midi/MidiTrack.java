@@ -16,42 +16,249 @@
 
 package com.manichord.synthesizer.core.midi;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 /**
  * A MidiTrack is simply a sequence of MidiEvent.
+ *
+ * The events are stored in columns of primitives rather than as MidiEvent objects: the absolute
+ * tick of each event, an int per event holding short channel messages inline (see PackedMessage),
+ * and one contiguous byte[] holding the bytes of every other message, indexed by offset.  A track
+ * with a hundred thousand events is therefore a handful of arrays instead of hundreds of thousands
+ * of small objects.  MidiEvent objects are only created on demand by getEvent().
+ *
+ * Events are therefore held by value.  addEvent() copies the message of the MidiEvent it is given
+ * and getEvent() returns a new MidiEvent on every call, so changing an event after adding it, or
+ * changing one returned by getEvent(), leaves the track as it was.  Code that used to edit events
+ * in place has to build the track with the final events instead.
  */
 public class MidiTrack {
   /**
    * Creates an empty track.
    */
   public MidiTrack() {
-    events_ = new ArrayList<MidiEvent>();
+    ticks_ = new long[16];
+    packed_ = new int[16];
+    offsets_ = new int[17];
+    data_ = new byte[256];
+    eventCount_ = 0;
   }
 
   /**
-   * Adds an event to the track.
+   * Adds an event to the track.  The track keeps a copy of the event's data, so later changes to
+   * the event are not reflected in the track.
+   * @return The event that was passed in.
    */
   public MidiEvent addEvent(MidiEvent event) {
-    events_.add(event);
+    byte[] message = event.getMessage();
+    addEvent(event.getDeltaTime(), message, 0, message == null ? 0 : message.length);
     return event;
   }
 
+  /**
+   * Adds an event to the track, copying len bytes of message starting at off.
+   * @param deltaTime - The time in midi "ticks" since the previous event in the track.
+   * @param message - The midi message as an opaque array of bytes.
+   * @param off - The offset of the message in the array.
+   * @param len - The length of the message in bytes.
+   */
+  public void addEvent(long deltaTime, byte[] message, int off, int len) {
+    int packed = PackedMessage.pack(message, off, len);
+    if (packed != 0) {
+      addPackedEvent(deltaTime, packed);
+      return;
+    }
+    int index = appendEvent(deltaTime, 0, len);
+    if (len > 0) {
+      System.arraycopy(message, off, data_, offsets_[index], len);
+    }
+  }
+
+  /**
+   * Adds an event holding a channel message packed with PackedMessage.
+   * @param deltaTime - The time in midi "ticks" since the previous event in the track.
+   * @param packedMessage - The packed message.
+   */
+  public void addPackedEvent(long deltaTime, int packedMessage) {
+    appendEvent(deltaTime, packedMessage, 0);
+  }
+
+  /**
+   * Adds an event whose message is code followed by size bytes of buffer starting at pos.  This
+   * is used by MidiReader to copy message bodies straight out of the file.
+   */
+  void addEvent(long deltaTime, int code, ByteBuffer buffer, int pos, int size) {
+    int index = appendEvent(deltaTime, 0, size + 1);
+    int off = offsets_[index];
+    data_[off] = (byte)code;
+    if (buffer.hasArray()) {
+      System.arraycopy(buffer.array(), buffer.arrayOffset() + pos, data_, off + 1, size);
+    } else {
+      for (int i = 0; i < size; ++i) {
+        data_[off + 1 + i] = buffer.get(pos + i);
+      }
+    }
+  }
+
   /**
    * Returns the current number of events.
    */
   public int getEventCount() {
-    return events_.size();
+    return eventCount_;
   }
 
   /**
-   * Gets the event at index i.
+   * Gets the event at index i.  The returned MidiEvent is created on demand and is detached from
+   * the track, so modifying it does not change the track.
    */
   public MidiEvent getEvent(int i) {
-    return events_.get(i);
+    checkIndex(i);
+    return new MidiEvent(getDeltaTime(i), getMessage(i));
+  }
+
+  /**
+   * Returns the absolute time of the event at index i, in midi "ticks" from the start of the
+   * track.
+   */
+  public long getTick(int i) {
+    checkIndex(i);
+    return ticks_[i];
+  }
+
+  /**
+   * Returns the index of the first event at or after tick, or getEventCount() if there is none.
+   * This is a binary search over the absolute ticks of the events.
+   */
+  public int findEvent(long tick) {
+    int lo = 0;
+    int hi = eventCount_;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (ticks_[mid] < tick) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Returns the time in midi "ticks" between the previous event and the one at index i.
+   */
+  public long getDeltaTime(int i) {
+    checkIndex(i);
+    return i == 0 ? ticks_[0] : ticks_[i] - ticks_[i - 1];
+  }
+
+  /**
+   * Returns the message of the event at index i packed with PackedMessage, or 0 if it is not a
+   * short channel message.
+   */
+  public int getPackedMessage(int i) {
+    checkIndex(i);
+    return packed_[i];
+  }
+
+  /**
+   * Returns the length in bytes of the message of the event at index i.
+   */
+  public int getMessageLength(int i) {
+    checkIndex(i);
+    if (packed_[i] != 0) {
+      return PackedMessage.getLength(packed_[i]);
+    }
+    return offsets_[i + 1] - offsets_[i];
+  }
+
+  /**
+   * Returns a copy of the message of the event at index i, or null if it is empty.
+   */
+  public byte[] getMessage(int i) {
+    int length = getMessageLength(i);
+    if (length == 0) {
+      return null;
+    }
+    byte[] message = new byte[length];
+    copyMessage(i, message, 0);
+    return message;
   }
 
-  // The list of events in the track.
-  List<MidiEvent> events_;
+  /**
+   * Copies the message of the event at index i into output without allocating.
+   * @return The number of bytes copied.
+   */
+  public int copyMessage(int i, byte[] output, int off) {
+    checkIndex(i);
+    if (packed_[i] != 0) {
+      return PackedMessage.unpack(packed_[i], output, off);
+    }
+    int length = offsets_[i + 1] - offsets_[i];
+    System.arraycopy(data_, offsets_[i], output, off, length);
+    return length;
+  }
+
+  /**
+   * Copies the bytes of the message of the event at index i, starting at byte from, into output,
+   * as many as it has room for.  The event must not be packed.  This is used by MidiWriter to
+   * write message bodies without copying them through a temporary array.
+   * @return The number of bytes copied.
+   */
+  int copyMessage(int i, int from, ByteBuffer output) {
+    checkIndex(i);
+    int length = Math.min(offsets_[i + 1] - offsets_[i] - from, output.remaining());
+    output.put(data_, offsets_[i] + from, length);
+    return length;
+  }
+
+  /**
+   * Appends a new event with room for size bytes of data, and returns its index.
+   */
+  private int appendEvent(long deltaTime, int packedMessage, int size) {
+    int index = eventCount_;
+    if (index == ticks_.length) {
+      int capacity = index * 2;
+      long[] ticks = new long[capacity];
+      System.arraycopy(ticks_, 0, ticks, 0, index);
+      ticks_ = ticks;
+      int[] packed = new int[capacity];
+      System.arraycopy(packed_, 0, packed, 0, index);
+      packed_ = packed;
+      int[] offsets = new int[capacity + 1];
+      System.arraycopy(offsets_, 0, offsets, 0, index + 1);
+      offsets_ = offsets;
+    }
+    int off = offsets_[index];
+    if (off + size > data_.length) {
+      byte[] data = new byte[Math.max(data_.length * 2, off + size)];
+      System.arraycopy(data_, 0, data, 0, off);
+      data_ = data;
+    }
+    ticks_[index] = index == 0 ? deltaTime : ticks_[index - 1] + deltaTime;
+    packed_[index] = packedMessage;
+    offsets_[index + 1] = off + size;
+    eventCount_ = index + 1;
+    return index;
+  }
+
+  private void checkIndex(int i) {
+    if (i < 0 || i >= eventCount_) {
+      throw new IndexOutOfBoundsException("Invalid event index " + i + ".");
+    }
+  }
+
+  // The absolute time of each event in midi "ticks".
+  private long[] ticks_;
+
+  // Each event's message packed with PackedMessage, or 0 if its bytes are in data_.
+  private int[] packed_;
+
+  // The bytes of event i that aren't packed are data_[offsets_[i]] to data_[offsets_[i + 1]].
+  private int[] offsets_;
+
+  // The bytes of every message that isn't packed, end to end.
+  private byte[] data_;
+
+  // The number of events in the track.
+  private int eventCount_;
 }
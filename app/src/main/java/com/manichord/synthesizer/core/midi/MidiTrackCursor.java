@@ -0,0 +1,382 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A MidiTrackCursor steps through the events of one track in order.  It can either decode
+ * events on demand straight from an MTrk chunk in a ByteBuffer, or walk a MidiTrack that has
+ * already been decoded.  Decoding from a chunk keeps only the current event's position and
+ * running status, so iterating a track of any size takes constant memory.  The first seek() over
+ * a chunk records where each event starts, so that seeking is a binary search from then on.
+ * @see MidiFile#openTrack(int)
+ */
+public class MidiTrackCursor {
+  /**
+   * Creates a cursor that decodes the events stored in buffer between start and end, which is
+   * the body of an MTrk chunk.
+   */
+  public MidiTrackCursor(ByteBuffer buffer, int start, int end) {
+    buffer_ = buffer;
+    start_ = start;
+    end_ = end;
+    track_ = null;
+    rewind();
+  }
+
+  /**
+   * Creates a cursor over a track that has already been decoded.
+   */
+  public MidiTrackCursor(MidiTrack track) {
+    buffer_ = null;
+    start_ = 0;
+    end_ = 0;
+    track_ = track;
+    rewind();
+  }
+
+  /**
+   * Moves the cursor back to before the first event of the track.
+   */
+  public void rewind() {
+    pos_ = start_;
+    index_ = -1;
+    runningStatus_ = 0;
+    tick_ = 0;
+    deltaTime_ = 0;
+    code_ = 0;
+    packed_ = 0;
+  }
+
+  /**
+   * Advances to the next event.
+   * @return false if there are no more events in the track.
+   * @throws IOException - If the track data is invalid.
+   */
+  public boolean next() throws IOException {
+    if (track_ != null) {
+      if (index_ + 1 >= track_.getEventCount()) {
+        index_ = track_.getEventCount();
+        return false;
+      }
+      ++index_;
+      tick_ = track_.getTick(index_);
+      deltaTime_ = track_.getDeltaTime(index_);
+      packed_ = track_.getPackedMessage(index_);
+      return true;
+    }
+    if (pos_ >= end_) {
+      return false;
+    }
+    decodeEvent();
+    ++index_;
+    return true;
+  }
+
+  /**
+   * Moves the cursor to the first event at or after tick.  This is a binary search, over the
+   * ticks of a decoded track or over the seek index of an encoded chunk.  The seek index is built
+   * by the first call, which decodes the whole chunk once.
+   * @return false if there are no events at or after tick.
+   * @throws IOException - If the track data is invalid.
+   */
+  public boolean seek(long tick) throws IOException {
+    rewind();
+    if (track_ != null) {
+      index_ = track_.findEvent(tick) - 1;
+      return next();
+    }
+    if (seekTicks_ == null) {
+      buildSeekIndex();
+    }
+    int lo = 0;
+    int hi = seekCount_;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (seekTicks_[mid] < tick) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == seekCount_) {
+      // Leave the cursor past the last event, as next() does.
+      pos_ = end_;
+      index_ = seekCount_ - 1;
+      tick_ = seekCount_ > 0 ? seekTicks_[seekCount_ - 1] : 0;
+      return false;
+    }
+    if (lo > 0) {
+      pos_ = seekPositions_[lo];
+      runningStatus_ = seekStatuses_[lo];
+      tick_ = seekTicks_[lo - 1];
+      index_ = lo - 1;
+    }
+    return next();
+  }
+
+  /**
+   * Returns the index of the current event within the track.
+   */
+  public int getIndex() {
+    return index_;
+  }
+
+  /**
+   * Returns the absolute time of the current event, in midi "ticks" from the start of the track.
+   */
+  public long getTick() {
+    return tick_;
+  }
+
+  /**
+   * Returns the time in midi "ticks" between the previous event and the current one.
+   */
+  public long getDeltaTime() {
+    return deltaTime_;
+  }
+
+  /**
+   * Returns the current message packed with PackedMessage, or 0 if it isn't a short channel
+   * message.
+   */
+  public int getPackedMessage() {
+    return packed_;
+  }
+
+  /**
+   * Returns the length in bytes of the current message.
+   */
+  public int getMessageLength() {
+    if (track_ != null) {
+      return track_.getMessageLength(index_);
+    }
+    if (packed_ != 0) {
+      return PackedMessage.getLength(packed_);
+    }
+    return 1 + bodyEnd_ - bodyStart_;
+  }
+
+  /**
+   * Copies the current message into output without allocating.
+   * @return The number of bytes copied.
+   */
+  public int copyMessage(byte[] output, int off) {
+    if (track_ != null) {
+      return track_.copyMessage(index_, output, off);
+    }
+    if (packed_ != 0) {
+      return PackedMessage.unpack(packed_, output, off);
+    }
+    output[off] = (byte)code_;
+    int size = bodyEnd_ - bodyStart_;
+    if (buffer_.hasArray()) {
+      System.arraycopy(buffer_.array(), buffer_.arrayOffset() + bodyStart_, output, off + 1, size);
+    } else {
+      for (int i = 0; i < size; ++i) {
+        output[off + 1 + i] = buffer_.get(bodyStart_ + i);
+      }
+    }
+    return size + 1;
+  }
+
+  /**
+   * Appends the current event to track, copying its bytes straight from the source buffer.
+   */
+  void appendTo(MidiTrack track) {
+    if (packed_ != 0) {
+      track.addPackedEvent(deltaTime_, packed_);
+    } else if (track_ != null) {
+      byte[] message = track_.getMessage(index_);
+      track.addEvent(deltaTime_, message, 0, message == null ? 0 : message.length);
+    } else {
+      track.addEvent(deltaTime_, code_, buffer_, bodyStart_, bodyEnd_ - bodyStart_);
+    }
+  }
+
+  /**
+   * Decodes the whole chunk, recording the position, tick and running status of each event, and
+   * leaves the cursor rewound.
+   * @throws IOException - If the track data is invalid.
+   */
+  private void buildSeekIndex() throws IOException {
+    int capacity = 16;
+    int[] positions = new int[capacity];
+    int[] statuses = new int[capacity];
+    long[] ticks = new long[capacity];
+    int count = 0;
+    rewind();
+    while (pos_ < end_) {
+      if (count == capacity) {
+        capacity *= 2;
+        int[] newPositions = new int[capacity];
+        System.arraycopy(positions, 0, newPositions, 0, count);
+        positions = newPositions;
+        int[] newStatuses = new int[capacity];
+        System.arraycopy(statuses, 0, newStatuses, 0, count);
+        statuses = newStatuses;
+        long[] newTicks = new long[capacity];
+        System.arraycopy(ticks, 0, newTicks, 0, count);
+        ticks = newTicks;
+      }
+      positions[count] = pos_;
+      statuses[count] = runningStatus_;
+      decodeEvent();
+      ticks[count] = tick_;
+      ++count;
+    }
+    rewind();
+    seekPositions_ = positions;
+    seekStatuses_ = statuses;
+    seekTicks_ = ticks;
+    seekCount_ = count;
+  }
+
+  /**
+   * Decodes the event at pos_.  Delta times and "Running Status" are decoded inline, and the
+   * message body is located but not copied.
+   * @throws IOException - On any kind of read error or invalid format.
+   */
+  private void decodeEvent() throws IOException {
+    ByteBuffer buffer = buffer_;
+    int pos = pos_;
+    int end = end_;
+
+    // The delta time, as a variable-size int.
+    int b = buffer.get(pos++);
+    long deltaTime = b & 0x7F;
+    while ((b & 0x80) != 0) {
+      checkAvailable(pos, 1, end);
+      b = buffer.get(pos++);
+      deltaTime = (deltaTime << 7) | (b & 0x7F);
+    }
+
+    // The code byte, which may be implied by "Running Status".
+    checkAvailable(pos, 1, end);
+    int code = buffer.get(pos) & 0xFF;
+    if ((code & 0x80) == 0 && runningStatus_ != 0) {
+      code = runningStatus_;
+    } else {
+      pos++;
+    }
+
+    // Find the end of the message body without copying anything.
+    int bodyEnd;
+    if (code == 0xFF) {
+      checkAvailable(pos, 1, end);
+      bodyEnd = skipVarIntPrefixedBytes(buffer, pos + 1, end);
+    } else if (code == 0xF0 || code == 0xF7) {
+      bodyEnd = skipVarIntPrefixedBytes(buffer, pos, end);
+    } else if (PackedMessage.isPackable(code)) {
+      bodyEnd = pos + PackedMessage.lengthForStatus(code) - 1;
+      checkAvailable(pos, bodyEnd - pos, end);
+    } else {
+      // This will only ever happen if either:
+      //   (1) the first event doesn't have the first bit set, or
+      //   (2) the code is in one of the ranges 0xF1-0xF6 or 0xF8-0xFE inclusive.
+      throw new IOException("Invalid midi event code " + code + ".");
+    }
+
+    int packed = 0;
+    if (PackedMessage.isPackable(code)) {
+      int data1 = buffer.get(pos);
+      int data2 = bodyEnd - pos > 1 ? buffer.get(pos + 1) : 0;
+      // Malformed channel messages keep their raw bytes.
+      if (((data1 | data2) & 0x80) == 0) {
+        packed = PackedMessage.pack(code, data1, data2);
+      }
+    }
+
+    // The delta time is truncated to an int, as the original stream reader did.
+    deltaTime_ = (int)deltaTime;
+    tick_ += deltaTime_;
+    code_ = code;
+    packed_ = packed;
+    bodyStart_ = pos;
+    bodyEnd_ = bodyEnd;
+    runningStatus_ = code;
+    pos_ = bodyEnd;
+  }
+
+  /**
+   * Skips over a variable-size length followed by that many bytes.
+   * @return The index just past the data.
+   * @throws IOException on EOF or an invalid length.
+   */
+  private static int skipVarIntPrefixedBytes(ByteBuffer buffer,
+                                             int pos,
+                                             int end) throws IOException {
+    checkAvailable(pos, 1, end);
+    int b = buffer.get(pos++);
+    long size = b & 0x7F;
+    while ((b & 0x80) != 0) {
+      checkAvailable(pos, 1, end);
+      b = buffer.get(pos++);
+      size = (size << 7) | (b & 0x7F);
+    }
+    if ((int)size < 0) {
+      throw new IOException("Invalid length " + (int)size + ".");
+    }
+    checkAvailable(pos, (int)size, end);
+    return pos + (int)size;
+  }
+
+  /**
+   * Throws if fewer than size bytes are readable at pos.
+   * @throws IOException on EOF.
+   */
+  private static void checkAvailable(int pos, int size, int end) throws IOException {
+    if (size > end - pos) {
+      throw new IOException("Unexpected EOF.");
+    }
+  }
+
+  // The source of chunk data, or null when walking a decoded track.
+  private final ByteBuffer buffer_;
+  private final int start_;
+  private final int end_;
+
+  // The decoded track to walk, or null when decoding from a chunk.
+  private final MidiTrack track_;
+
+  // The index of the next undecoded byte in the chunk.
+  private int pos_;
+
+  // The index of the current event in the track.
+  private int index_;
+
+  // The most recent code seen in the chunk, used for "running status" encoding.
+  private int runningStatus_;
+
+  // The current event.
+  private long tick_;
+  private long deltaTime_;
+  private int code_;
+  private int packed_;
+  private int bodyStart_;
+  private int bodyEnd_;
+
+  // The seek index of a chunk, built by the first seek(): where each event starts, the running
+  // status before it, and its absolute time.  The ticks never decrease, since delta times can't
+  // be negative.
+  private int[] seekPositions_;
+  private int[] seekStatuses_;
+  private long[] seekTicks_;
+  private int seekCount_;
+}
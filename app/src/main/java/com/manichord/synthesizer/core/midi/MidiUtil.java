@@ -19,6 +19,7 @@ package com.manichord.synthesizer.core.midi;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A collection of basic functions for reading Midi data from a stream.
@@ -61,6 +62,35 @@ public class MidiUtil {
     }
   }
 
+  /**
+   * Reads everything remaining in a stream into a byte array.
+   * @param input - The stream to read from.
+   * @return The bytes read, which may be an empty array.
+   * @throws IOException on any read error.
+   */
+  public static byte[] readFully(InputStream input) throws IOException {
+    byte[] buffer = new byte[Math.max(input.available(), 8192)];
+    int size = 0;
+    while (true) {
+      if (size == buffer.length) {
+        byte[] grown = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, grown, 0, size);
+        buffer = grown;
+      }
+      int read = input.read(buffer, size, buffer.length - size);
+      if (read < 0) {
+        break;
+      }
+      size += read;
+    }
+    if (size == buffer.length) {
+      return buffer;
+    }
+    byte[] result = new byte[size];
+    System.arraycopy(buffer, 0, result, 0, size);
+    return result;
+  }
+
   /**
    * Reads a variable-size int from input, as defined by the Midi format.
    * @param input - The stream to read from.
@@ -96,6 +126,46 @@ public class MidiUtil {
     output.write(value & 0x7F);
   }
 
+  /**
+   * Writes a variable-size int into a buffer, as defined by the Midi format.
+   * @param output - The buffer to write to, which must have at least varIntSize(value) bytes
+   *     remaining.
+   */
+  public static void writeVarInt(ByteBuffer output, int value) {
+    if ((value & 0xF0000000) != 0) {
+      output.put((byte)(0x80 | ((value >> 28) & 0x7F)));
+    }
+    if ((value & 0xFFE00000) != 0) {
+      output.put((byte)(0x80 | ((value >> 21) & 0x7F)));
+    }
+    if ((value & 0xFFFFC000) != 0) {
+      output.put((byte)(0x80 | ((value >> 14) & 0x7F)));
+    }
+    if ((value & 0xFFFFFF80) != 0) {
+      output.put((byte)(0x80 | ((value >> 7) & 0x7F)));
+    }
+    output.put((byte)(value & 0x7F));
+  }
+
+  /**
+   * Returns the number of bytes writeVarInt() uses for value.
+   */
+  public static int varIntSize(int value) {
+    if ((value & 0xF0000000) != 0) {
+      return 5;
+    }
+    if ((value & 0xFFE00000) != 0) {
+      return 4;
+    }
+    if ((value & 0xFFFFC000) != 0) {
+      return 3;
+    }
+    if ((value & 0xFFFFFF80) != 0) {
+      return 2;
+    }
+    return 1;
+  }
+
   /**
    * Copies a variable-size int from input to output, as defined by the Midi format.
    * @param input - The stream to read from.
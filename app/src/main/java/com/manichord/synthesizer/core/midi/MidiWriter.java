@@ -0,0 +1,311 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MidiWriter streams a MidiFile to a channel in Standard MIDI File format.  It is the inverse of
+ * MidiReader.
+ *
+ * Everything is encoded straight into one direct buffer that is reused for every track and every
+ * file written with the same MidiWriter, so saving a long performance doesn't allocate in
+ * proportion to its size.  Each MTrk chunk length is back-patched once the track has been
+ * written: in the buffer if the chunk header hasn't been flushed yet, or by seeking if the
+ * channel is a FileChannel.  For other channels the length is measured before the track is
+ * written.
+ * @see MidiReader
+ */
+public class MidiWriter {
+  /**
+   * Creates a new MidiWriter with a 64 KB buffer.
+   */
+  public MidiWriter() {
+    this(65536);
+  }
+
+  /**
+   * Creates a new MidiWriter.
+   * @param bufferSize - The size of the reusable output buffer, in bytes.
+   */
+  public MidiWriter(int bufferSize) {
+    if (bufferSize < 16) {
+      throw new IllegalArgumentException("Buffer size too small: " + bufferSize + ".");
+    }
+    buffer_ = ByteBuffer.allocateDirect(bufferSize);
+    patch_ = ByteBuffer.allocateDirect(4);
+    runningStatus_ = true;
+  }
+
+  /**
+   * Sets whether to omit repeated status bytes of channel messages ("Running Status").  It is
+   * enabled by default.
+   */
+  public void setRunningStatus(boolean runningStatus) {
+    runningStatus_ = runningStatus;
+  }
+
+  /**
+   * Writes file to a new file at output.
+   * @throws IOException - On any write error.
+   */
+  public void writeMidiFile(MidiFile file, File output) throws IOException {
+    FileOutputStream stream = new FileOutputStream(output);
+    try {
+      writeMidiFile(file, stream.getChannel());
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Writes file to channel.  The channel is left open.
+   * @param file - The file to write.
+   * @param channel - The channel to write to.
+   * @throws IOException - On any write error, or if a track can't be decoded.
+   * @throws IllegalArgumentException - If a delta time is negative or too long for the format.
+   */
+  public void writeMidiFile(MidiFile file, WritableByteChannel channel) throws IOException {
+    channel_ = channel;
+    seekable_ = channel instanceof FileChannel ? (FileChannel)channel : null;
+    start_ = seekable_ != null ? seekable_.position() : 0;
+    flushed_ = 0;
+    buffer_.clear();
+    try {
+      writeHeader(file.getHeader(), file.getTrackCount());
+      for (int i = 0; i < file.getTrackCount(); ++i) {
+        writeTrack(file.readTrack(i));
+      }
+      flush();
+    } finally {
+      channel_ = null;
+      seekable_ = null;
+    }
+  }
+
+  /**
+   * Writes the MThd chunk.
+   */
+  private void writeHeader(MidiHeader header, int trackCount) throws IOException {
+    MidiHeader.Format format = header.getFormat();
+    if (format == null) {
+      format = trackCount > 1 ? MidiHeader.Format.MULTIPLE_TRACKS_SYNCH
+                              : MidiHeader.Format.SINGLE_TRACK;
+    }
+    ensure(14);
+    putString("MThd");
+    buffer_.putInt(6);
+    buffer_.putShort((short)format.getIndex());
+    buffer_.putShort((short)trackCount);
+    buffer_.putShort((short)(header.getTicksPerBeat() & 0x7FFF));
+  }
+
+  /**
+   * Writes one MTrk chunk, adding an end of track event if the track doesn't end with one.
+   */
+  private void writeTrack(MidiTrack track) throws IOException {
+    ensure(8);
+    putString("MTrk");
+    long lengthPosition = flushed_ + buffer_.position();
+    if (seekable_ != null) {
+      buffer_.putInt(0);
+    } else {
+      buffer_.putInt(measureTrack(track));
+    }
+    long trackStart = flushed_ + buffer_.position();
+
+    int status = 0;
+    int count = track.getEventCount();
+    for (int i = 0; i < count; ++i) {
+      int deltaTime = getDeltaTime(track, i);
+      ensure(MAX_VAR_INT_SIZE + 3);
+      MidiUtil.writeVarInt(buffer_, deltaTime);
+      int packed = track.getPackedMessage(i);
+      if (packed != 0) {
+        int packedStatus = PackedMessage.getStatus(packed);
+        if (packedStatus != status || !runningStatus_) {
+          buffer_.put((byte)packedStatus);
+        }
+        buffer_.put((byte)PackedMessage.getData1(packed));
+        if (PackedMessage.getLength(packed) > 2) {
+          buffer_.put((byte)PackedMessage.getData2(packed));
+        }
+        status = packedStatus;
+      } else {
+        putMessage(track, i);
+        // Meta events and SysEx cancel "Running Status".
+        status = 0;
+      }
+    }
+    if (!endsWithEndOfTrack(track)) {
+      ensure(4);
+      buffer_.put(END_OF_TRACK);
+    }
+
+    if (seekable_ != null) {
+      patchLength(lengthPosition, (int)(flushed_ + buffer_.position() - trackStart));
+    }
+  }
+
+  /**
+   * Returns the number of bytes writeTrack() will write for the events of track.
+   */
+  private int measureTrack(MidiTrack track) {
+    long size = 0;
+    int status = 0;
+    int count = track.getEventCount();
+    for (int i = 0; i < count; ++i) {
+      size += MidiUtil.varIntSize(getDeltaTime(track, i));
+      int packed = track.getPackedMessage(i);
+      if (packed != 0) {
+        int packedStatus = PackedMessage.getStatus(packed);
+        int length = PackedMessage.getLength(packed);
+        size += (packedStatus != status || !runningStatus_) ? length : length - 1;
+        status = packedStatus;
+      } else {
+        size += track.getMessageLength(i);
+        status = 0;
+      }
+    }
+    if (!endsWithEndOfTrack(track)) {
+      size += END_OF_TRACK.length;
+    }
+    return (int)size;
+  }
+
+  /**
+   * Returns the delta time of the event at index i of track, checking that it can be written.
+   * @throws IllegalArgumentException - If it is negative or longer than a variable-length
+   *     quantity can hold.
+   */
+  private static int getDeltaTime(MidiTrack track, int i) {
+    long deltaTime = track.getDeltaTime(i);
+    if (deltaTime < 0 || deltaTime > MAX_DELTA_TIME) {
+      throw new IllegalArgumentException("Invalid delta time " + deltaTime + " at event " + i + ".");
+    }
+    return (int)deltaTime;
+  }
+
+  private boolean endsWithEndOfTrack(MidiTrack track) {
+    int last = track.getEventCount() - 1;
+    if (last < 0 || track.getPackedMessage(last) != 0 || track.getMessageLength(last) != 3) {
+      return false;
+    }
+    track.copyMessage(last, lastMessage_, 0);
+    return lastMessage_[0] == (byte)0xFF && lastMessage_[1] == 0x2F && lastMessage_[2] == 0x00;
+  }
+
+  /**
+   * Fills in a chunk length that was written as a placeholder.
+   * @param position - The position of the length field, relative to the start of the file.
+   * @param length - The length to write.
+   */
+  private void patchLength(long position, int length) throws IOException {
+    if (position >= flushed_) {
+      // The chunk header is still in the buffer.
+      buffer_.putInt((int)(position - flushed_), length);
+      return;
+    }
+    flush();
+    long end = seekable_.position();
+    seekable_.position(start_ + position);
+    patch_.clear();
+    patch_.putInt(length);
+    patch_.flip();
+    while (patch_.hasRemaining()) {
+      seekable_.write(patch_);
+    }
+    seekable_.position(end);
+  }
+
+  /**
+   * Copies the message of an event that isn't packed into the output, flushing as often as
+   * needed.
+   */
+  private void putMessage(MidiTrack track, int i) throws IOException {
+    int length = track.getMessageLength(i);
+    int offset = 0;
+    while (offset < length) {
+      if (!buffer_.hasRemaining()) {
+        flush();
+      }
+      offset += track.copyMessage(i, offset, buffer_);
+    }
+  }
+
+  private void putString(String string) {
+    for (int i = 0; i < string.length(); ++i) {
+      buffer_.put((byte)string.charAt(i));
+    }
+  }
+
+  /**
+   * Makes sure there is room for at least size more bytes in the buffer.
+   */
+  private void ensure(int size) throws IOException {
+    if (buffer_.remaining() < size) {
+      flush();
+    }
+  }
+
+  /**
+   * Writes everything in the buffer to the channel and empties it.
+   */
+  private void flush() throws IOException {
+    buffer_.flip();
+    flushed_ += buffer_.remaining();
+    while (buffer_.hasRemaining()) {
+      channel_.write(buffer_);
+    }
+    buffer_.clear();
+  }
+
+  private static final int MAX_VAR_INT_SIZE = 5;
+
+  // The longest delta time a 4 byte variable-length quantity can hold, as the format requires.
+  private static final int MAX_DELTA_TIME = 0x0FFFFFFF;
+
+  // Delta time 0, then the end of track meta event.
+  private static final byte[] END_OF_TRACK = { 0x00, (byte)0xFF, 0x2F, 0x00 };
+
+  // The reusable output buffer.
+  private final ByteBuffer buffer_;
+
+  // A reusable buffer for back-patching chunk lengths through a FileChannel.
+  private final ByteBuffer patch_;
+
+  // Room for the last event of a track, to check whether it is an end of track event.
+  private final byte[] lastMessage_ = new byte[3];
+
+  // Whether to omit repeated status bytes.
+  private boolean runningStatus_;
+
+  // The channel being written to, and the same channel if it is a FileChannel.
+  private WritableByteChannel channel_;
+  private FileChannel seekable_;
+
+  // The position of the channel when writing started.
+  private long start_;
+
+  // The number of bytes flushed to the channel so far.
+  private long flushed_;
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A NoteTracer follows note-ons from the input they came from towards the synthesizer, stamping
+ * the System.nanoTime() at which each one passes each hop, so that the latency of every hop can be
+ * measured.  The source gives each note-on an id with begin(), and the hops after it find that id
+ * by the note number, until the last Java hop takes it with take() and hands it on to the
+ * synthesizer, which reports the rest of the hops under the same id.
+ *
+ * Between begin() and take(), a trace is found by its note number alone, not by channel or
+ * input.  If another note-on of the same note begins before the first is taken, the hops after
+ * that are stamped on the newer trace, and the older one is never handed to the synthesizer.  So
+ * two channels or inputs playing the same note at the same moment can have their hops counted
+ * against each other's trace.  This is rare when one keyboard is played, and only skews the
+ * latencies of those notes.
+ *
+ * Tracing is off until a tracer is installed with setInstance().  Each hop first checks
+ * getInstance(), so with no tracer installed it costs one volatile read.  All methods are
+ * thread-safe and never block.  The stamps of the most recent 1024 notes are kept.
+ */
+public class NoteTracer {
+  // The hops, in the order a note-on passes them.
+  /** A key touched on the screen or a USB packet received. */
+  public static final int HOP_SOURCE = 0;
+  /** Passed to the listeners of a MidiBroadcaster. */
+  public static final int HOP_FAN_OUT = 1;
+  /** Written into the synthesizer's input by AndroidGlue. */
+  public static final int HOP_SEND = 2;
+  /** Read by the synthesizer. */
+  public static final int HOP_PARSE = 3;
+  /** Rendered into the first audio buffer that sounds it. */
+  public static final int HOP_RENDER = 4;
+  public static final int HOP_COUNT = 5;
+
+  /**
+   * Creates a new NoteTracer, which does nothing until it is installed.
+   */
+  public NoteTracer() {
+    nextId_ = new AtomicInteger();
+    pending_ = new AtomicIntegerArray(128);
+    ids_ = new AtomicIntegerArray(SLOTS);
+    stamps_ = new AtomicLongArray(SLOTS * HOP_COUNT);
+  }
+
+  /**
+   * Returns the installed tracer, or null if tracing is off.
+   */
+  public static NoteTracer getInstance() {
+    return instance_;
+  }
+
+  /**
+   * Installs a tracer, or turns tracing off if tracer is null.
+   */
+  public static void setInstance(NoteTracer tracer) {
+    instance_ = tracer;
+  }
+
+  /**
+   * Starts tracing a note-on at its source.
+   * @param note - The note number.
+   * @param timestampNanos - The System.nanoTime() at which the note-on arrived.
+   * @return The id of the new trace, which is never 0.
+   */
+  public int begin(int note, long timestampNanos) {
+    int id;
+    do {
+      id = nextId_.incrementAndGet() & 0x7FFFFFFF;
+    } while (id == 0);
+    int slot = id & (SLOTS - 1);
+    ids_.set(slot, 0);
+    for (int hop = 0; hop < HOP_COUNT; hop++) {
+      stamps_.set(slot * HOP_COUNT + hop, 0);
+    }
+    stamps_.set(slot * HOP_COUNT + HOP_SOURCE, timestampNanos);
+    ids_.set(slot, id);
+    pending_.set(note & 0x7F, id);
+    return id;
+  }
+
+  /**
+   * Stamps the time at which the latest traced note-on of a note passes a hop.  Only the first
+   * time it passes each hop counts.
+   */
+  public void stamp(int hop, int note) {
+    stampId(hop, pending_.get(note & 0x7F));
+  }
+
+  /**
+   * Stamps a hop like stamp(), and stops looking for the note-on by its note number, for the
+   * last hop that does.
+   * @return The id of the note-on's trace, or 0 if the note isn't being traced.
+   */
+  public int take(int hop, int note) {
+    int id = pending_.getAndSet(note & 0x7F, 0);
+    stampId(hop, id);
+    return id;
+  }
+
+  /**
+   * Copies the stamps of a trace, with 0 for each hop it hasn't passed.
+   * @param id - The id of the trace.
+   * @param stamps - Room for HOP_COUNT stamps.
+   * @return false if the trace is too old and has been forgotten.
+   */
+  public boolean getStamps(int id, long[] stamps) {
+    int slot = id & (SLOTS - 1);
+    if (id == 0 || ids_.get(slot) != id) {
+      return false;
+    }
+    for (int hop = 0; hop < HOP_COUNT; hop++) {
+      stamps[hop] = stamps_.get(slot * HOP_COUNT + hop);
+    }
+    // Make sure a newer trace didn't take the slot while copying.
+    return ids_.get(slot) == id;
+  }
+
+  private void stampId(int hop, int id) {
+    int slot = id & (SLOTS - 1);
+    if (id != 0 && ids_.get(slot) == id) {
+      stamps_.compareAndSet(slot * HOP_COUNT + hop, 0, System.nanoTime());
+    }
+  }
+
+  // The number of traces kept, a power of 2.
+  private static final int SLOTS = 1024;
+
+  private static volatile NoteTracer instance_;
+
+  private final AtomicInteger nextId_;
+
+  // The id of the latest traced note-on of each note number, whatever its channel, until it is
+  // taken.
+  private final AtomicIntegerArray pending_;
+
+  // The id of the trace in each slot, or 0 while it is being replaced, and its stamps.
+  private final AtomicIntegerArray ids_;
+  private final AtomicLongArray stamps_;
+}
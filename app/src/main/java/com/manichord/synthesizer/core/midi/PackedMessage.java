@@ -0,0 +1,170 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+/**
+ * PackedMessage is a set of static functions for storing a short midi channel message in a
+ * single int, so that it can be kept in primitive arrays instead of its own byte[].
+ *
+ * The layout is:
+ * <pre>
+ *   bits  0-7   status byte (always has the high bit set, so a packed message is never 0)
+ *   bits  8-15  first data byte
+ *   bits 16-23  second data byte
+ *   bits 24-25  length of the message in bytes (2 or 3)
+ * </pre>
+ */
+public class PackedMessage {
+  /**
+   * Returns true if a message with this status byte can be packed into an int.  Only channel
+   * voice messages (0x80-0xEF) are packable.
+   */
+  public static boolean isPackable(int status) {
+    return (status & 0x80) != 0 && (status & 0xF0) != 0xF0;
+  }
+
+  /**
+   * Returns the length in bytes of a channel voice message with the given status byte.
+   */
+  public static int lengthForStatus(int status) {
+    int type = status & 0xF0;
+    return (type == 0xC0 || type == 0xD0) ? 2 : 3;
+  }
+
+  /**
+   * Packs a channel voice message.  For two byte messages, data2 is ignored.
+   * @param status - The status byte, including the channel.
+   * @param data1 - The first data byte.
+   * @param data2 - The second data byte.
+   * @return The packed message.
+   */
+  public static int pack(int status, int data1, int data2) {
+    int length = lengthForStatus(status);
+    if (length == 2) {
+      data2 = 0;
+    }
+    return (status & 0xFF) | ((data1 & 0x7F) << 8) | ((data2 & 0x7F) << 16) | (length << 24);
+  }
+
+  /**
+   * Packs the message at message[off], or returns 0 if it isn't a well-formed channel voice
+   * message of exactly len bytes.
+   */
+  public static int pack(byte[] message, int off, int len) {
+    if (len < 2) {
+      return 0;
+    }
+    int status = message[off] & 0xFF;
+    if (!isPackable(status) || lengthForStatus(status) != len) {
+      return 0;
+    }
+    int data1 = message[off + 1];
+    int data2 = len > 2 ? message[off + 2] : 0;
+    if (((data1 | data2) & 0x80) != 0) {
+      return 0;
+    }
+    return pack(status, data1, data2);
+  }
+
+  /**
+   * Returns the status byte of a packed message.
+   */
+  public static int getStatus(int packed) {
+    return packed & 0xFF;
+  }
+
+  /**
+   * Returns the channel of a packed message.
+   */
+  public static int getChannel(int packed) {
+    return packed & 0x0F;
+  }
+
+  /**
+   * Returns the message type (status without the channel) of a packed message.
+   */
+  public static int getType(int packed) {
+    return packed & 0xF0;
+  }
+
+  /**
+   * Returns the first data byte of a packed message.
+   */
+  public static int getData1(int packed) {
+    return (packed >> 8) & 0x7F;
+  }
+
+  /**
+   * Returns the second data byte of a packed message.
+   */
+  public static int getData2(int packed) {
+    return (packed >> 16) & 0x7F;
+  }
+
+  /**
+   * Returns the length in bytes of a packed message.
+   */
+  public static int getLength(int packed) {
+    return (packed >>> 24) & 0x3;
+  }
+
+  /**
+   * Sends a packed message to the matching listener callback, without any parsing.
+   */
+  public static void send(int packed, MidiListener listener) {
+    int channel = packed & 0x0F;
+    int data1 = (packed >> 8) & 0x7F;
+    int data2 = (packed >> 16) & 0x7F;
+    switch (packed & 0xF0) {
+      case 0x80:
+        listener.onNoteOff(channel, data1, data2);
+        break;
+      case 0x90:
+        listener.onNoteOn(channel, data1, data2);
+        break;
+      case 0xA0:
+        listener.onNoteAftertouch(channel, data1, data2);
+        break;
+      case 0xB0:
+        listener.onController(channel, data1, data2);
+        break;
+      case 0xC0:
+        listener.onProgramChange(channel, data1);
+        break;
+      case 0xD0:
+        listener.onChannelAftertouch(channel, data1);
+        break;
+      case 0xE0:
+        listener.onPitchBend(channel, (data2 << 7) | data1);
+        break;
+    }
+  }
+
+  /**
+   * Writes the bytes of a packed message into output.
+   * @return The number of bytes written.
+   */
+  public static int unpack(int packed, byte[] output, int off) {
+    int length = getLength(packed);
+    output[off] = (byte)packed;
+    output[off + 1] = (byte)(packed >> 8);
+    if (length > 2) {
+      output[off + 2] = (byte)(packed >> 16);
+    }
+    return length;
+  }
+}
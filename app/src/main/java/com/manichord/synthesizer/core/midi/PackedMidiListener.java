@@ -0,0 +1,36 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+/**
+ * A PackedMidiListener receives channel voice messages packed into a single int, with the time
+ * they were generated, through one callback instead of the seven of MidiListener.  Stages that
+ * implement it pass each message on with a single monomorphic call, so a note can travel from
+ * an input to the synthesizer without being unpacked and re-dispatched at every step.
+ * @see PackedMessage
+ * @see PackedToMidiListener
+ * @see MidiToPackedListener
+ */
+public interface PackedMidiListener {
+  /**
+   * Called for each channel voice message.
+   * @param packed - The message, packed with PackedMessage.
+   * @param timestampNanos - The System.nanoTime() at which the message was generated or received,
+   *     or 0 if it isn't known.
+   */
+  void onPackedMessage(int packed, long timestampNanos);
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+/**
+ * A PackedToMidiListener is a PackedMidiListener that unpacks each message and passes it on to
+ * the matching callback of a MidiListener.  The timestamp is dropped.
+ * @see MidiToPackedListener
+ */
+public class PackedToMidiListener implements PackedMidiListener {
+  /**
+   * Creates a new PackedToMidiListener that passes messages on to listener.
+   */
+  public PackedToMidiListener(MidiListener listener) {
+    listener_ = listener;
+  }
+
+  /**
+   * Returns listener itself if it already implements PackedMidiListener, so that its own fast
+   * path is used, or else a PackedToMidiListener that wraps it.
+   */
+  public static PackedMidiListener adapt(MidiListener listener) {
+    if (listener instanceof PackedMidiListener) {
+      return (PackedMidiListener)listener;
+    }
+    return new PackedToMidiListener(listener);
+  }
+
+  public void onPackedMessage(int packed, long timestampNanos) {
+    PackedMessage.send(packed, listener_);
+  }
+
+  // The listener to forward messages to.
+  private final MidiListener listener_;
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.IOException;
+
+/**
+ * A TempoMap converts between midi "ticks" and real time for a whole MidiFile, taking every
+ * set-tempo meta event in every track into account.  It is built once by scanning the file, and
+ * each conversion is then a binary search over the tempo changes.
+ */
+public class TempoMap {
+  // The tempo in effect until the first set-tempo event: 120 bpm.
+  public static final int DEFAULT_MICROSECONDS_PER_QUARTER_NOTE = 60000000 / 120;
+
+  /**
+   * Builds the tempo map for file.
+   * @throws IOException - If a track can't be decoded.
+   */
+  public TempoMap(MidiFile file) throws IOException {
+    ticksPerBeat_ = Math.max(1, file.getHeader().getTicksPerBeat());
+    ticks_ = new long[8];
+    tempos_ = new int[8];
+    count_ = 1;
+    ticks_[0] = 0;
+    tempos_[0] = DEFAULT_MICROSECONDS_PER_QUARTER_NOTE;
+
+    byte[] message = new byte[6];
+    for (int i = 0; i < file.getTrackCount(); ++i) {
+      MidiTrackCursor cursor = file.openTrack(i);
+      while (cursor.next()) {
+        int tempo = getTempo(cursor, message);
+        if (tempo >= 0) {
+          addTempoChange(cursor.getTick(), tempo);
+        }
+      }
+    }
+
+    nanos_ = new long[count_];
+    for (int i = 1; i < count_; ++i) {
+      nanos_[i] = nanos_[i - 1] + ticksToNanos(ticks_[i] - ticks_[i - 1], tempos_[i - 1]);
+    }
+  }
+
+  /**
+   * Returns the number of ticks per quarter note that this map uses.
+   */
+  public int getTicksPerBeat() {
+    return ticksPerBeat_;
+  }
+
+  /**
+   * Returns the tempo in effect at tick, in microseconds per quarter note.
+   */
+  public int getMicrosecondsPerQuarterNote(long tick) {
+    return tempos_[findByTick(tick)];
+  }
+
+  /**
+   * Returns the time of tick in nanoseconds from the start of the file.
+   */
+  public long tickToNanos(long tick) {
+    int i = findByTick(tick);
+    return nanos_[i] + ticksToNanos(tick - ticks_[i], tempos_[i]);
+  }
+
+  /**
+   * Returns the last tick at or before the time nanos, in nanoseconds from the start of the file.
+   */
+  public long nanosToTick(long nanos) {
+    if (nanos <= 0) {
+      return 0;
+    }
+    int lo = 0;
+    int hi = count_ - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (nanos_[mid] <= nanos) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    long elapsed = nanos - nanos_[lo];
+    long nanosPerQuarterNote = tempos_[lo] * 1000L;
+    long ticks = (elapsed / nanosPerQuarterNote) * ticksPerBeat_ +
+        (elapsed % nanosPerQuarterNote) * ticksPerBeat_ / nanosPerQuarterNote;
+    // tickToNanos() rounds down, so the next tick may still be at or before nanos.
+    if (ticksToNanos(ticks + 1, tempos_[lo]) <= elapsed) {
+      ++ticks;
+    }
+    return ticks_[lo] + ticks;
+  }
+
+  /**
+   * Returns the tempo set by the current event of cursor, in microseconds per quarter note, or -1
+   * if it isn't a set-tempo event.
+   * @param message - At least 6 bytes to copy the event into.
+   */
+  static int getTempo(MidiTrackCursor cursor, byte[] message) {
+    if (cursor.getPackedMessage() != 0 || cursor.getMessageLength() != 6) {
+      return -1;
+    }
+    cursor.copyMessage(message, 0);
+    if (message[0] != (byte)0xFF || message[1] != 0x51 || message[2] != 3) {
+      return -1;
+    }
+    return ((message[3] & 0xFF) << 16) | ((message[4] & 0xFF) << 8) | (message[5] & 0xFF);
+  }
+
+  /**
+   * Returns the duration of ticks at a tempo, in nanoseconds, without overflowing for any
+   * reasonable song length.
+   */
+  private long ticksToNanos(long ticks, int microsecondsPerQuarterNote) {
+    return ticksToNanos(ticks, microsecondsPerQuarterNote, ticksPerBeat_);
+  }
+
+  /**
+   * Returns the duration of ticks at a tempo, at ticksPerBeat ticks per quarter note.
+   */
+  static long ticksToNanos(long ticks, int microsecondsPerQuarterNote, int ticksPerBeat) {
+    long micros = ticks * microsecondsPerQuarterNote;
+    return (micros / ticksPerBeat) * 1000 + (micros % ticksPerBeat) * 1000 / ticksPerBeat;
+  }
+
+  /**
+   * Returns the index of the last tempo change at or before tick.
+   */
+  private int findByTick(long tick) {
+    int lo = 0;
+    int hi = count_ - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (ticks_[mid] <= tick) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Inserts a tempo change, keeping the changes sorted by tick.  A later change at the same tick
+   * replaces an earlier one, just as it would during playback.
+   */
+  private void addTempoChange(long tick, int tempo) {
+    int i = count_;
+    while (i > 0 && ticks_[i - 1] > tick) {
+      --i;
+    }
+    if (i > 0 && ticks_[i - 1] == tick) {
+      tempos_[i - 1] = tempo;
+      return;
+    }
+    if (count_ == ticks_.length) {
+      long[] ticks = new long[count_ * 2];
+      int[] tempos = new int[count_ * 2];
+      System.arraycopy(ticks_, 0, ticks, 0, count_);
+      System.arraycopy(tempos_, 0, tempos, 0, count_);
+      ticks_ = ticks;
+      tempos_ = tempos;
+    }
+    System.arraycopy(ticks_, i, ticks_, i + 1, count_ - i);
+    System.arraycopy(tempos_, i, tempos_, i + 1, count_ - i);
+    ticks_[i] = tick;
+    tempos_[i] = tempo;
+    ++count_;
+  }
+
+  private final int ticksPerBeat_;
+
+  // The tick at which each tempo takes effect, in increasing order.
+  private long[] ticks_;
+
+  // The tempo from ticks_[i] on, in microseconds per quarter note.
+  private int[] tempos_;
+
+  // The time of ticks_[i], in nanoseconds from the start of the file.
+  private long[] nanos_;
+
+  // The number of tempo changes, including the initial default tempo.
+  private int count_;
+}
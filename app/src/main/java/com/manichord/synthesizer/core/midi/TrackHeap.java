@@ -0,0 +1,137 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+/**
+ * A TrackHeap is a binary min-heap of track indexes keyed on the absolute tick of each track's
+ * next event, kept in primitive arrays so that merging tracks doesn't box anything.  Tracks with
+ * equal ticks come out lowest index first, which is the order a type 1 file is meant to be played
+ * in.  Finding the next track is O(1) and advancing it is O(log tracks).
+ */
+class TrackHeap {
+  /**
+   * Creates an empty heap with room for capacity tracks.
+   */
+  public TrackHeap(int capacity) {
+    tracks_ = new int[Math.max(1, capacity)];
+    ticks_ = new long[Math.max(1, capacity)];
+    size_ = 0;
+  }
+
+  /**
+   * Removes every track from the heap.
+   */
+  public void clear() {
+    size_ = 0;
+  }
+
+  /**
+   * Returns the number of tracks in the heap.
+   */
+  public int size() {
+    return size_;
+  }
+
+  /**
+   * Returns true if there are no tracks in the heap.
+   */
+  public boolean isEmpty() {
+    return size_ == 0;
+  }
+
+  /**
+   * Adds a track whose next event is at tick.
+   */
+  public void add(int track, long tick) {
+    int i = size_++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!less(tick, track, ticks_[parent], tracks_[parent])) {
+        break;
+      }
+      tracks_[i] = tracks_[parent];
+      ticks_[i] = ticks_[parent];
+      i = parent;
+    }
+    tracks_[i] = track;
+    ticks_[i] = tick;
+  }
+
+  /**
+   * Returns the track with the earliest next event.  The heap must not be empty.
+   */
+  public int peekTrack() {
+    return tracks_[0];
+  }
+
+  /**
+   * Returns the tick of the earliest next event.  The heap must not be empty.
+   */
+  public long peekTick() {
+    return ticks_[0];
+  }
+
+  /**
+   * Changes the tick of the track at the top of the heap, after it has moved on to its next
+   * event.
+   */
+  public void replaceTop(long tick) {
+    siftDown(tracks_[0], tick);
+  }
+
+  /**
+   * Removes the track at the top of the heap, after it has run out of events.
+   */
+  public void removeTop() {
+    --size_;
+    if (size_ > 0) {
+      siftDown(tracks_[size_], ticks_[size_]);
+    }
+  }
+
+  /**
+   * Places a track at the top of the heap and moves it down to where it belongs.
+   */
+  private void siftDown(int track, long tick) {
+    int i = 0;
+    int half = size_ >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      int right = child + 1;
+      if (right < size_ && less(ticks_[right], tracks_[right], ticks_[child], tracks_[child])) {
+        child = right;
+      }
+      if (!less(ticks_[child], tracks_[child], tick, track)) {
+        break;
+      }
+      tracks_[i] = tracks_[child];
+      ticks_[i] = ticks_[child];
+      i = child;
+    }
+    tracks_[i] = track;
+    ticks_[i] = tick;
+  }
+
+  private static boolean less(long tick1, int track1, long tick2, int track2) {
+    return tick1 < tick2 || (tick1 == tick2 && track1 < track2);
+  }
+
+  // The track indexes, in heap order, and the tick of each one's next event.
+  private final int[] tracks_;
+  private final long[] ticks_;
+  private int size_;
+}
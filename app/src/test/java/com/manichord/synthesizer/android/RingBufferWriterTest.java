@@ -0,0 +1,204 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Checks that messages written by several threads at once reach the reader whole, in order per
+ * writer, and never interleaved.
+ */
+public class RingBufferWriterTest {
+  private static final int PRODUCERS = 4;
+  private static final int MESSAGES_PER_PRODUCER = 50000;
+  private static final int MAX_PAYLOAD = 300;
+  // A message is the producer, a 4 byte sequence number, a 2 byte payload length, and the payload.
+  private static final int HEADER_SIZE = 7;
+
+  @Test(timeout = 120000)
+  public void concurrentWritersDeliverWholeMessages() throws InterruptedException {
+    final RingBufferWriter writer = new RingBufferWriter();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] producers = new Thread[PRODUCERS];
+    for (int p = 0; p < PRODUCERS; p++) {
+      final int producer = p;
+      producers[p] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            Random random = new Random(producer);
+            byte[] message = new byte[HEADER_SIZE + MAX_PAYLOAD];
+            for (int seq = 0; seq < MESSAGES_PER_PRODUCER; seq++) {
+              int payload = 1 + random.nextInt(MAX_PAYLOAD);
+              writeHeader(message, producer, seq, payload);
+              for (int i = 0; i < payload; i++) {
+                message[HEADER_SIZE + i] = payloadByte(producer, seq, i);
+              }
+              // Split some messages into prefix and data, as timed messages are.
+              if (seq % 3 == 0) {
+                writer.write(message, HEADER_SIZE, message, HEADER_SIZE, payload, Long.MAX_VALUE);
+              } else {
+                writer.write(message, 0, HEADER_SIZE + payload);
+              }
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      });
+    }
+    for (Thread producer : producers) {
+      producer.start();
+    }
+
+    Reader reader = new Reader(writer.getBuffer());
+    int[] nextSeq = new int[PRODUCERS];
+    byte[] header = new byte[HEADER_SIZE];
+    long bytes = 0;
+    for (int n = 0; n < PRODUCERS * MESSAGES_PER_PRODUCER; n++) {
+      reader.read(header, HEADER_SIZE);
+      int producer = header[0];
+      int seq = ((header[1] & 0xFF) << 24) | ((header[2] & 0xFF) << 16) |
+          ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+      int payload = ((header[5] & 0xFF) << 8) | (header[6] & 0xFF);
+      assertFalse("bad producer " + producer, producer < 0 || producer >= PRODUCERS);
+      assertEquals("sequence of producer " + producer, nextSeq[producer], seq);
+      nextSeq[producer]++;
+      byte[] data = new byte[payload];
+      reader.read(data, payload);
+      for (int i = 0; i < payload; i++) {
+        assertEquals("byte " + i + " of message " + seq + " of producer " + producer,
+            payloadByte(producer, seq, i), data[i]);
+      }
+      bytes += HEADER_SIZE + payload;
+    }
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    assertNull(failure.get());
+    assertEquals(0, writer.bytesUsed());
+    assertFalse(bytes < PRODUCERS * MESSAGES_PER_PRODUCER * (HEADER_SIZE + 1));
+  }
+
+  @Test
+  public void tryWriteRejectsWholeMessageWhenFull() {
+    RingBufferWriter writer = new RingBufferWriter();
+    byte[] data = new byte[1000];
+    int written = 0;
+    while (writer.tryWrite(null, 0, data, 0, data.length) == data.length) {
+      written += data.length;
+    }
+    assertEquals(RingBufferWriter.MAX_MESSAGE_SIZE - RingBufferWriter.MAX_MESSAGE_SIZE % 1000,
+        written);
+    assertEquals(RingBufferWriter.MAX_MESSAGE_SIZE - written, writer.writeBytesAvailable());
+    assertEquals(written, writer.bytesUsed());
+    assertEquals(written, writer.getHighWater());
+  }
+
+  @Test
+  public void invalidArgumentsReserveNothing() {
+    RingBufferWriter writer = new RingBufferWriter();
+    byte[] data = { 1, 2, 3 };
+    int[][] invalid = { { 4, 0, 3 }, { -1, 0, 3 }, { 0, -1, 3 }, { 0, 1, 3 }, { 0, 0, -1 } };
+    for (int[] args : invalid) {
+      try {
+        writer.tryWrite(data, args[0], data, args[1], args[2]);
+        fail("prefixLen " + args[0] + ", off " + args[1] + ", len " + args[2]);
+      } catch (IndexOutOfBoundsException e) {
+        // Expected.
+      }
+    }
+    assertEquals(RingBufferWriter.MAX_MESSAGE_SIZE, writer.writeBytesAvailable());
+
+    // The ring still works, and nothing from the failed writes reaches the reader.
+    writer.write(data, 1, data, 1, 2, Long.MAX_VALUE);
+    byte[] read = new byte[3];
+    new Reader(writer.getBuffer()).read(read, 3);
+    assertEquals(1, read[0]);
+    assertEquals(2, read[1]);
+    assertEquals(3, read[2]);
+  }
+
+  private static void writeHeader(byte[] message, int producer, int seq, int payload) {
+    message[0] = (byte)producer;
+    message[1] = (byte)(seq >> 24);
+    message[2] = (byte)(seq >> 16);
+    message[3] = (byte)(seq >> 8);
+    message[4] = (byte)seq;
+    message[5] = (byte)(payload >> 8);
+    message[6] = (byte)payload;
+  }
+
+  private static byte payloadByte(int producer, int seq, int i) {
+    return (byte)(producer * 31 + seq * 7 + i);
+  }
+
+  /**
+   * Reads the ring the way RingBuffer::Read in ringbuffer.cc does: the write index, then the data
+   * it covers, then the read index past it.
+   */
+  private static class Reader {
+    Reader(ByteBuffer shared) {
+      buffer_ = shared.duplicate().order(shared.order());
+    }
+
+    void read(byte[] data, int len) {
+      int off = 0;
+      while (off < len) {
+        int wrIx = buffer_.getInt(RingBufferWriter.WRITE_INDEX_OFFSET);
+        fence();
+        int rdIx = buffer_.getInt(0);
+        int available = (wrIx - rdIx) & (RingBufferWriter.BUF_SIZE - 1);
+        // Writers commit in reservation order, so the write index never moves backwards.
+        assertFalse("write index moved back from " + available_ + " to " + available + " bytes",
+            available < available_);
+        available_ = available;
+        if (available == 0) {
+          Thread.yield();
+          continue;
+        }
+        int n = Math.min(available, len - off);
+        for (int i = 0; i < n; i++) {
+          data[off + i] = buffer_.get(RingBufferWriter.DATA_OFFSET +
+              ((rdIx + i) & (RingBufferWriter.BUF_SIZE - 1)));
+        }
+        off += n;
+        available_ -= n;
+        fence();
+        buffer_.putInt(0, (rdIx + n) & (RingBufferWriter.BUF_SIZE - 1));
+      }
+    }
+
+    private int fence() {
+      fence_ = 0;
+      return fence_;
+    }
+
+    private final ByteBuffer buffer_;
+    // The bytes available at the last read, less those read since.
+    private int available_;
+    private volatile int fence_;
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.android.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks the registry's counters, gauges and snapshots, and that a reporter writes them to a sink.
+ */
+public class MetricsRegistryTest {
+  @Test
+  public void snapshotListsMetricsInTheOrderAdded() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("a");
+    registry.gauge("b", constant(7));
+    registry.counter("c");
+    MetricsSnapshot snapshot = registry.snapshot();
+    assertEquals(3, snapshot.size());
+    assertEquals("a", snapshot.getName(0));
+    assertEquals("b", snapshot.getName(1));
+    assertEquals("c", snapshot.getName(2));
+    assertEquals(7, snapshot.getValue(1));
+    assertEquals(-1, snapshot.get("d", -1));
+  }
+
+  @Test
+  public void countersOnlyCountWhileReporting() {
+    MetricsRegistry registry = new MetricsRegistry();
+    MetricsReporter reporter = new MetricsReporter(registry, new MemorySink(1));
+    Counter counter = registry.counter("events");
+    counter.increment();
+    assertFalse(registry.isReporting());
+    assertEquals(0, counter.get());
+    reporter.start(60000);
+    counter.increment();
+    counter.add(2);
+    assertEquals(3, counter.get());
+    reporter.stop();
+    counter.increment();
+    assertEquals(3, counter.get());
+    assertTrue(registry.counter("events") == counter);
+  }
+
+  @Test
+  public void throwingGaugeIsLeftOutOfTheSnapshot() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.gauge("before", constant(1));
+    registry.gauge("broken", new Gauge() {
+      public long read() {
+        throw new IllegalStateException("not running");
+      }
+    });
+    registry.gauge("after", constant(2));
+    MetricsSnapshot snapshot = registry.snapshot();
+    assertEquals(2, snapshot.size());
+    assertEquals(1, snapshot.get("before", -1));
+    assertEquals(-1, snapshot.get("broken", -1));
+    assertEquals(2, snapshot.get("after", -1));
+  }
+
+  @Test
+  public void gaugeReplacesGaugeWithTheSameName() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.gauge("level", constant(1));
+    registry.gauge("level", constant(2));
+    assertEquals(1, registry.snapshot().size());
+    assertEquals(2, registry.snapshot().get("level", -1));
+    assertTrue(registry.remove("level"));
+    assertFalse(registry.remove("level"));
+    assertEquals(0, registry.snapshot().size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void counterNameCantBeUsedForAGauge() {
+    MetricsRegistry registry = new MetricsRegistry();
+    registry.counter("x");
+    registry.gauge("x", constant(0));
+  }
+
+  @Test
+  public void reporterWritesSnapshotsToTheSink() throws InterruptedException {
+    MetricsRegistry registry = new MetricsRegistry();
+    Counter counter = registry.counter("events");
+    registry.gauge("level", constant(5));
+    MemorySink sink = new MemorySink(2);
+    MetricsReporter reporter = new MetricsReporter(registry, sink);
+    assertNull(sink.getLatest());
+
+    reporter.start(10);
+    counter.add(4);
+    long deadline = System.currentTimeMillis() + 10000;
+    while (sink.getSnapshots().size() < 2 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    reporter.stop();
+    List<MetricsSnapshot> snapshots = sink.getSnapshots();
+    assertEquals(2, snapshots.size());
+    assertTrue(snapshots.get(0).getTimeMillis() <= snapshots.get(1).getTimeMillis());
+    assertEquals(5, snapshots.get(1).get("level", -1));
+
+    // A report on demand is written too, and the sink keeps only the latest ones.
+    counter.add(1);
+    reporter.report();
+    assertEquals(2, sink.getSnapshots().size());
+    assertEquals(4, sink.getLatest().get("events", -1));
+    sink.clear();
+    assertNull(sink.getLatest());
+  }
+
+  private static Gauge constant(final long value) {
+    return new Gauge() {
+      public long read() {
+        return value;
+      }
+    };
+  }
+}
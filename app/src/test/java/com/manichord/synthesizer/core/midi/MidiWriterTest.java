@@ -0,0 +1,192 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that files written by MidiWriter read back through MidiReader as they were written.
+ */
+public class MidiWriterTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void runningStatusReadsBackTheSameEvents() throws IOException {
+    MidiFile file = testFile();
+    MidiWriter writer = new MidiWriter();
+    byte[] running = writeToStream(writer, file);
+    writer.setRunningStatus(false);
+    byte[] full = writeToStream(writer, file);
+
+    // Five repeated statuses are left out, three in the first track and two in the second.  The
+    // meta event and SysEx in the middle of the first track make the next note repeat its status.
+    assertEquals(full.length - 5, running.length);
+    assertSameEvents(file, new MidiFile(ByteBuffer.wrap(running)));
+    assertSameEvents(file, new MidiFile(ByteBuffer.wrap(full)));
+  }
+
+  @Test
+  public void trackLengthsAreBackPatched() throws IOException {
+    MidiFile file = testFile();
+    byte[] measured = writeToStream(new MidiWriter(), file);
+
+    // With a buffer this small, each MTrk header is flushed long before its track ends, so the
+    // length is patched by seeking back in the file.
+    File output = folder.newFile("patched.mid");
+    new MidiWriter(16).writeMidiFile(file, output);
+    byte[] patched = readFile(output);
+
+    assertArrayEquals(measured, patched);
+    checkChunkLengths(patched);
+    assertSameEvents(file, MidiFile.openIndexed(output));
+  }
+
+  @Test
+  public void endOfTrackIsAddedOnlyWhenMissing() throws IOException {
+    MidiFile file = new MidiFile();
+    file.addTrack().addPackedEvent(0, PackedMessage.pack(0x90, 60, 100));
+    MidiTrack ended = file.addTrack();
+    ended.addPackedEvent(0, PackedMessage.pack(0x90, 60, 100));
+    ended.addEvent(0, new byte[] { (byte)0xFF, 0x2F, 0x00 }, 0, 3);
+    MidiFile read = new MidiFile(ByteBuffer.wrap(writeToStream(new MidiWriter(), file)));
+    assertEquals(2, read.getTrack(0).getEventCount());
+    assertEquals(2, read.getTrack(1).getEventCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void deltaTimeTooLongForTheFormatIsRejected() throws IOException {
+    MidiFile file = new MidiFile();
+    file.addTrack().addPackedEvent(0x10000000L, PackedMessage.pack(0x90, 60, 100));
+    writeToStream(new MidiWriter(), file);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void negativeDeltaTimeIsRejected() throws IOException {
+    MidiFile file = new MidiFile();
+    MidiTrack track = file.addTrack();
+    track.addPackedEvent(100, PackedMessage.pack(0x90, 60, 100));
+    track.addPackedEvent(-1, PackedMessage.pack(0x80, 60, 0));
+    writeToStream(new MidiWriter(), file);
+  }
+
+  /**
+   * Returns a file with runs of notes on one channel, a meta event and a SysEx between them, a
+   * long SysEx, and the longest delta time the format allows.
+   */
+  private static MidiFile testFile() {
+    MidiFile file = new MidiFile();
+    file.getHeader().setTicksPerBeat(480);
+    MidiTrack first = file.addTrack();
+    first.addEvent(0, new byte[] { (byte)0xFF, 0x51, 0x03, 0x07, (byte)0xA1, 0x20 }, 0, 6);
+    first.addPackedEvent(0, PackedMessage.pack(0x90, 60, 100));
+    first.addPackedEvent(120, PackedMessage.pack(0x90, 64, 100));
+    first.addPackedEvent(120, PackedMessage.pack(0x90, 67, 100));
+    first.addEvent(0, new byte[] { (byte)0xFF, 0x01, 0x02, 'h', 'i' }, 0, 5);
+    first.addPackedEvent(240, PackedMessage.pack(0x90, 60, 0));
+    first.addEvent(0, new byte[] { (byte)0xF0, 0x03, 0x7E, 0x00, (byte)0xF7 }, 0, 5);
+    first.addPackedEvent(0, PackedMessage.pack(0x90, 64, 0));
+    first.addPackedEvent(0x0FFFFFFF, PackedMessage.pack(0x90, 67, 0));
+    MidiTrack second = file.addTrack();
+    second.addPackedEvent(0, PackedMessage.pack(0xC1, 5, 0));
+    second.addPackedEvent(0, PackedMessage.pack(0xB1, 7, 90));
+    second.addPackedEvent(10, PackedMessage.pack(0xB1, 7, 91));
+    second.addPackedEvent(10, PackedMessage.pack(0xB1, 7, 92));
+    // A SysEx event as stored in a track: F0, the length as a variable-length quantity, then the
+    // data ending in F7.
+    byte[] sysEx = new byte[300];
+    sysEx[0] = (byte)0xF0;
+    sysEx[1] = (byte)0x82;
+    sysEx[2] = 0x29;
+    for (int i = 3; i < sysEx.length - 1; ++i) {
+      sysEx[i] = (byte)(i & 0x7F);
+    }
+    sysEx[sysEx.length - 1] = (byte)0xF7;
+    second.addEvent(0, sysEx, 0, sysEx.length);
+    second.addPackedEvent(5, PackedMessage.pack(0xE1, 0, 64));
+    return file;
+  }
+
+  private static byte[] writeToStream(MidiWriter writer, MidiFile file) throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    writer.writeMidiFile(file, Channels.newChannel(output));
+    return output.toByteArray();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int)input.length()];
+      input.readFully(bytes);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Checks that every chunk length covers exactly the bytes up to the next chunk.
+   */
+  private static void checkChunkLengths(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    int chunks = 0;
+    while (buffer.hasRemaining()) {
+      byte[] type = new byte[4];
+      buffer.get(type);
+      int length = buffer.getInt();
+      String name = new String(type);
+      assertTrue(name, name.equals(chunks == 0 ? "MThd" : "MTrk"));
+      assertTrue("chunk " + chunks + " runs past the end", length <= buffer.remaining());
+      buffer.position(buffer.position() + length);
+      ++chunks;
+    }
+    assertEquals(3, chunks);
+  }
+
+  /**
+   * Checks that read has the same tracks as expected, ending with an end of track event.
+   */
+  private static void assertSameEvents(MidiFile expected, MidiFile read) {
+    assertEquals(expected.getHeader().getTicksPerBeat(), read.getHeader().getTicksPerBeat());
+    assertEquals(expected.getTrackCount(), read.getTrackCount());
+    for (int t = 0; t < expected.getTrackCount(); ++t) {
+      MidiTrack want = expected.getTrack(t);
+      MidiTrack got = read.getTrack(t);
+      assertEquals("events in track " + t, want.getEventCount() + 1, got.getEventCount());
+      for (int i = 0; i < want.getEventCount(); ++i) {
+        String event = "track " + t + " event " + i;
+        assertEquals(event, want.getTick(i), got.getTick(i));
+        assertArrayEquals(event, want.getMessage(i), got.getMessage(i));
+      }
+      assertArrayEquals(new byte[] { (byte)0xFF, 0x2F, 0x00 },
+          got.getMessage(got.getEventCount() - 1));
+    }
+  }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import java.io.IOException;
+
+/**
+ * Times merging a 64-track file with a TrackHeap against scanning every track for the earliest
+ * event.  It has no tests, so the test task doesn't run it; run main() by hand.
+ */
+public class TrackHeapBenchmark {
+  private static final int TRACKS = 64;
+  private static final int EVENTS_PER_TRACK = 20000;
+  private static final int PASSES = 5;
+
+  public static void main(String[] args) throws IOException {
+    MidiFile file = TrackHeapTest.randomFile(TRACKS, EVENTS_PER_TRACK, TRACKS);
+    long[] order = new long[TRACKS * EVENTS_PER_TRACK];
+    // The best of several passes, after the first has warmed up the JIT.
+    long linear = Long.MAX_VALUE;
+    long heap = Long.MAX_VALUE;
+    for (int pass = 0; pass < PASSES; ++pass) {
+      long start = System.nanoTime();
+      TrackHeapTest.mergeLinear(file, order);
+      linear = Math.min(linear, System.nanoTime() - start);
+      start = System.nanoTime();
+      TrackHeapTest.mergeHeap(file, order);
+      heap = Math.min(heap, System.nanoTime() - start);
+    }
+    System.out.println("merging " + TRACKS + " tracks of " + EVENTS_PER_TRACK + " events: " +
+        "linear scan " + linear / 1000000 + "ms, heap " + heap / 1000000 + "ms");
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2026 The droid-synth Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.manichord.synthesizer.core.midi;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks that merging tracks with a TrackHeap, the way MidiFilePlayer merges them, gives the same
+ * event order as scanning every track for the earliest event.
+ * @see TrackHeapBenchmark
+ */
+public class TrackHeapTest {
+  @Test
+  public void mergesInTheSameOrderAsALinearScan() throws IOException {
+    for (int tracks = 1; tracks <= 64; tracks *= 2) {
+      MidiFile file = randomFile(tracks, 500, tracks);
+      assertArrayEquals("order with " + tracks + " tracks",
+          mergeLinear(file, null), mergeHeap(file, null));
+    }
+  }
+
+  /**
+   * Returns a file of tracks with events at random small deltas, often 0, so that many events on
+   * different tracks share a tick.
+   */
+  static MidiFile randomFile(int tracks, int events, long seed) {
+    Random random = new Random(seed);
+    MidiFile file = new MidiFile();
+    for (int t = 0; t < tracks; ++t) {
+      MidiTrack track = file.addTrack();
+      for (int i = 0; i < events; ++i) {
+        track.addPackedEvent(random.nextInt(4) * 10, PackedMessage.pack(0x90, t, 1 + i % 127));
+      }
+    }
+    return file;
+  }
+
+  /**
+   * Merges the tracks of file by scanning every track for the earliest event, ties going to the
+   * lowest track, as MidiFilePlayer did before it used a TrackHeap.  Returns the tick and track of
+   * each event in order.
+   */
+  static long[] mergeLinear(MidiFile file, long[] order) throws IOException {
+    int tracks = file.getTrackCount();
+    MidiTrackCursor[] cursors = openCursors(file);
+    boolean[] more = new boolean[tracks];
+    int total = 0;
+    for (int t = 0; t < tracks; ++t) {
+      more[t] = cursors[t].next();
+      total += file.getTrack(t).getEventCount();
+    }
+    if (order == null) {
+      order = new long[total];
+    }
+    for (int n = 0; ; ++n) {
+      int next = -1;
+      for (int t = 0; t < tracks; ++t) {
+        if (more[t] && (next < 0 || cursors[t].getTick() < cursors[next].getTick())) {
+          next = t;
+        }
+      }
+      if (next < 0) {
+        return order;
+      }
+      order[n] = (cursors[next].getTick() << 8) | next;
+      more[next] = cursors[next].next();
+    }
+  }
+
+  /**
+   * Merges the tracks of file with a TrackHeap, as MidiFilePlayer does.
+   */
+  static long[] mergeHeap(MidiFile file, long[] order) throws IOException {
+    int tracks = file.getTrackCount();
+    MidiTrackCursor[] cursors = openCursors(file);
+    TrackHeap heap = new TrackHeap(tracks);
+    int total = 0;
+    for (int t = 0; t < tracks; ++t) {
+      if (cursors[t].next()) {
+        heap.add(t, cursors[t].getTick());
+      }
+      total += file.getTrack(t).getEventCount();
+    }
+    if (order == null) {
+      order = new long[total];
+    }
+    for (int n = 0; !heap.isEmpty(); ++n) {
+      int next = heap.peekTrack();
+      order[n] = (heap.peekTick() << 8) | next;
+      if (cursors[next].next()) {
+        heap.replaceTop(cursors[next].getTick());
+      } else {
+        heap.removeTop();
+      }
+    }
+    return order;
+  }
+
+  private static MidiTrackCursor[] openCursors(MidiFile file) {
+    MidiTrackCursor[] cursors = new MidiTrackCursor[file.getTrackCount()];
+    for (int t = 0; t < cursors.length; ++t) {
+      cursors[t] = file.openTrack(t);
+    }
+    return cursors;
+  }
+}